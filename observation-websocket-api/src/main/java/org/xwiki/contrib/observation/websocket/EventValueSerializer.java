@@ -0,0 +1,54 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket;
+
+import java.io.IOException;
+
+import org.xwiki.component.annotation.Role;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+/**
+ * Serialize the values of a given type found in the events (and their source and data) sent to the WebSocket clients.
+ * <p>
+ * Implementations are registered as components with the role {@code EventValueSerializer<T>}, {@code T} being the
+ * serialized type. The serializer of a value is resolved along its type hierarchy: a serializer registered for a class
+ * or an interface is used for all its sub types that don't have their own serializer. Values with no serializer are
+ * serialized as beans, limited to a few levels of nesting.
+ *
+ * @param <T> the type of the serialized values
+ * @version $Id$
+ */
+@Role
+public interface EventValueSerializer<T>
+{
+    /**
+     * Write the value to the generator. The generator may be writing any of the supported encodings (e.g. JSON or
+     * Smile), so the value should be written only with the generator methods.
+     *
+     * @param value the value to serialize
+     * @param generator the generator to write the value to
+     * @param provider the provider to use to serialize the nested values (e.g. with
+     *            {@link SerializerProvider#defaultSerializeField(String, Object, JsonGenerator)})
+     * @throws IOException when failing to write the value
+     */
+    void serialize(T value, JsonGenerator generator, SerializerProvider provider) throws IOException;
+}
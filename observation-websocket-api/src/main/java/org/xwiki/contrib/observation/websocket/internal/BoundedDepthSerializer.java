@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.util.NameTransformer;
+
+/**
+ * Wraps the serializer of a bean (i.e. a type without a dedicated serializer) or of a container (map, collection,
+ * array) to stop the serialization of the object graph at a given nesting level: the deeper beans are serialized as
+ * strings (using {@link Object#toString()}) and the deeper containers as their type and size (their
+ * {@link Object#toString()} walks their content).
+ * <p>
+ * This prevents walking huge (or cyclic) object graphs when the source or the data of an event is not meant to be
+ * serialized.
+ *
+ * @version $Id$
+ */
+final class BoundedDepthSerializer extends JsonSerializer<Object> implements ResolvableSerializer, ContextualSerializer
+{
+    private final JsonSerializer<Object> serializer;
+
+    private final int maxDepth;
+
+    private final boolean container;
+
+    /**
+     * @param serializer the bean or container serializer
+     * @param maxDepth the maximum nesting level at which the value is serialized with the wrapped serializer
+     * @param container true if the wrapped serializer serializes containers
+     */
+    @SuppressWarnings("unchecked")
+    BoundedDepthSerializer(JsonSerializer<?> serializer, int maxDepth, boolean container)
+    {
+        this.serializer = (JsonSerializer<Object>) serializer;
+        this.maxDepth = maxDepth;
+        this.container = container;
+    }
+
+    @Override
+    public void resolve(SerializerProvider provider) throws JsonMappingException
+    {
+        if (this.serializer instanceof ResolvableSerializer) {
+            ((ResolvableSerializer) this.serializer).resolve(provider);
+        }
+    }
+
+    @Override
+    public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property)
+        throws JsonMappingException
+    {
+        if (this.serializer instanceof ContextualSerializer) {
+            JsonSerializer<?> contextual =
+                ((ContextualSerializer) this.serializer).createContextual(provider, property);
+            if (contextual != this.serializer) {
+                return new BoundedDepthSerializer(contextual, this.maxDepth, this.container);
+            }
+        }
+
+        return this;
+    }
+
+    @Override
+    public void serialize(Object value, JsonGenerator generator, SerializerProvider provider) throws IOException
+    {
+        if (isTooDeep(generator)) {
+            generator.writeString(toString(value));
+        } else {
+            this.serializer.serialize(value, generator, provider);
+        }
+    }
+
+    @Override
+    public void serializeWithType(Object value, JsonGenerator generator, SerializerProvider provider,
+        TypeSerializer typeSerializer) throws IOException
+    {
+        if (isTooDeep(generator)) {
+            generator.writeString(toString(value));
+        } else {
+            this.serializer.serializeWithType(value, generator, provider, typeSerializer);
+        }
+    }
+
+    private String toString(Object value)
+    {
+        if (!this.container) {
+            return value.toString();
+        }
+
+        int size = -1;
+        if (value instanceof Map) {
+            size = ((Map<?, ?>) value).size();
+        } else if (value instanceof Collection) {
+            size = ((Collection<?>) value).size();
+        } else if (value.getClass().isArray()) {
+            size = Array.getLength(value);
+        }
+
+        String type = value.getClass().getSimpleName();
+
+        return size >= 0 ? type + '(' + size + ')' : type;
+    }
+
+    private boolean isTooDeep(JsonGenerator generator)
+    {
+        int depth = 0;
+        for (JsonStreamContext context = generator.getOutputContext(); context != null && !context.inRoot();
+            context = context.getParent()) {
+            depth++;
+        }
+
+        return depth >= this.maxDepth;
+    }
+
+    @Override
+    public JsonSerializer<Object> unwrappingSerializer(NameTransformer unwrapper)
+    {
+        return this.serializer.unwrappingSerializer(unwrapper);
+    }
+
+    @Override
+    public boolean isEmpty(SerializerProvider provider, Object value)
+    {
+        return this.serializer.isEmpty(provider, value);
+    }
+
+    @Override
+    public boolean usesObjectId()
+    {
+        return this.serializer.usesObjectId();
+    }
+
+    @Override
+    public Class<Object> handledType()
+    {
+        return this.serializer.handledType();
+    }
+
+    @Override
+    public JsonSerializer<?> getDelegatee()
+    {
+        return this.serializer;
+    }
+}
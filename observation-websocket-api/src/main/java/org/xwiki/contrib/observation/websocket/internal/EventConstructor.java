@@ -0,0 +1,90 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.Type;
+import java.util.Map;
+
+import org.xwiki.observation.event.Event;
+import org.xwiki.properties.ConverterManager;
+
+/**
+ * The constructor of an event class matching a given set of parameter names, with everything needed to call it
+ * resolved once.
+ *
+ * @version $Id$
+ */
+final class EventConstructor
+{
+    private final Class<?> eventClass;
+
+    private final Constructor<?> constructor;
+
+    private final String[] parameterNames;
+
+    private final Type[] parameterTypes;
+
+    /**
+     * @param constructor the event constructor
+     */
+    EventConstructor(Constructor<?> constructor)
+    {
+        this.eventClass = constructor.getDeclaringClass();
+        this.constructor = constructor;
+
+        Parameter[] parameters = constructor.getParameters();
+        this.parameterNames = new String[parameters.length];
+        this.parameterTypes = new Type[parameters.length];
+        for (int i = 0; i < parameters.length; ++i) {
+            this.parameterNames[i] = parameters[i].getName();
+            this.parameterTypes[i] = parameters[i].getParameterizedType();
+        }
+    }
+
+    /**
+     * @return the event class
+     */
+    Class<?> getEventClass()
+    {
+        return this.eventClass;
+    }
+
+    /**
+     * @param params the parameters of the event, by name
+     * @param converter the converter to use to convert the parameters to the types expected by the constructor
+     * @return the new event
+     * @throws InstantiationException when failing to create the event
+     * @throws IllegalAccessException when failing to create the event
+     * @throws InvocationTargetException when failing to create the event
+     */
+    Event newInstance(Map<String, Object> params, ConverterManager converter)
+        throws InstantiationException, IllegalAccessException, InvocationTargetException
+    {
+        Object[] parameters = new Object[this.parameterNames.length];
+        for (int i = 0; i < parameters.length; ++i) {
+            parameters[i] = converter.convert(this.parameterTypes[i], params.get(this.parameterNames[i]));
+        }
+
+        return (Event) this.constructor.newInstance(parameters);
+    }
+}
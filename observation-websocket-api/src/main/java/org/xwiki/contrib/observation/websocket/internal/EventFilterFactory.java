@@ -0,0 +1,327 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Parameter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.observation.event.Event;
+import org.xwiki.properties.ConverterManager;
+
+/**
+ * Create the events used to filter the events sent to the WebSocket clients, from the event class name and the
+ * parameters sent by the clients.
+ * <p>
+ * Resolving the event class and its constructor is done once for each class name and set of parameter names: lots of
+ * clients register the same listeners (e.g. when they all reconnect after a restart). The resolved constructors are
+ * forgotten when an extension is installed or uninstalled, so that the cache does not keep the classes (and their class
+ * loader) of an uninstalled extension.
+ * <p>
+ * The conditions on the event source and data, which the event constructors cannot express, are compiled into
+ * {@link EventPredicate}s. The conditions can only test a list of known properties, extended by the configuration:
+ * resolving a property calls the getters of the event source and data (often the context of the request which fired
+ * the event), which could otherwise be used to probe values the client is not allowed to see.
+ *
+ * @version $Id$
+ */
+@Component(roles = EventFilterFactory.class)
+@Singleton
+public class EventFilterFactory
+{
+    private static final String PROPERTY = "property";
+
+    private static final String EQUALS = "equals";
+
+    private static final String IN = "in";
+
+    private static final String PREFIX = "prefix";
+
+    private static final String WIKI = "wiki";
+
+    private static final String SPACE = "space";
+
+    private static final List<String> OPERATORS = Arrays.asList(EQUALS, IN, PREFIX, WIKI, SPACE);
+
+    /**
+     * The properties which can always be tested: the references of the documents and of their authors, and the action
+     * of the request which fired the event.
+     */
+    private static final Set<String> PROPERTIES = new HashSet<>(Arrays.asList("source.documentReference",
+        "source.authorReference", "source.contentAuthorReference", "source.creatorReference", "data.action"));
+
+    @Inject
+    private ConverterManager converter;
+
+    @Inject
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    @Inject
+    private EntityReferenceResolver<String> referenceResolver;
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    private final ConcurrentMap<Pair<String, Set<String>>, EventConstructor> constructors = new ConcurrentHashMap<>();
+
+    /**
+     * @param eventClassName the name of the event class
+     * @param parameterNames the names of the parameters provided by the client
+     * @return the constructor of the event class having the provided parameters
+     * @throws ClassNotFoundException when the event class cannot be found
+     * @throws NoSuchMethodException when the event class doesn't have a constructor with the provided parameters
+     */
+    public EventConstructor getConstructor(String eventClassName, Set<String> parameterNames)
+        throws ClassNotFoundException, NoSuchMethodException
+    {
+        EventConstructor constructor = this.constructors.get(Pair.of(eventClassName, parameterNames));
+
+        if (constructor == null) {
+            constructor = resolve(eventClassName, parameterNames);
+
+            this.constructors.put(Pair.of(eventClassName, new HashSet<>(parameterNames)), constructor);
+        }
+
+        return constructor;
+    }
+
+    private EventConstructor resolve(String eventClassName, Set<String> parameterNames)
+        throws ClassNotFoundException, NoSuchMethodException
+    {
+        // Don't initialize the class before knowing that it's an event, since any class name can be sent by the clients
+        Class<?> eventClass = Class.forName(eventClassName, false, Thread.currentThread().getContextClassLoader());
+        if (!Event.class.isAssignableFrom(eventClass)) {
+            throw new IllegalArgumentException("[" + eventClass.getName() + "] is not an event");
+        }
+
+        Constructor<?> eventConstructor = null;
+        for (Constructor<?> constructor : eventClass.getConstructors()) {
+            if (constructor.getParameterCount() == parameterNames.size() && matches(constructor, parameterNames)) {
+                eventConstructor = constructor;
+            }
+        }
+
+        if (eventConstructor == null) {
+            throw new NoSuchMethodException("No constructor could be found for parameters " + parameterNames);
+        }
+
+        return new EventConstructor(eventConstructor);
+    }
+
+    private boolean matches(Constructor<?> constructor, Set<String> parameterNames)
+    {
+        for (Parameter parameter : constructor.getParameters()) {
+            if (!parameterNames.contains(parameter.getName())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param constructor the event constructor
+     * @param params the parameters provided by the client
+     * @return the new event
+     * @throws InstantiationException when failing to create the event
+     * @throws IllegalAccessException when failing to create the event
+     * @throws InvocationTargetException when failing to create the event
+     */
+    public Event createFilter(EventConstructor constructor, Map<String, Object> params)
+        throws InstantiationException, IllegalAccessException, InvocationTargetException
+    {
+        return constructor.newInstance(params, this.converter);
+    }
+
+    /**
+     * @param where the conditions sent by the client, a list of objects such as
+     *            {@code {"property": "source.documentReference", "space": "xwiki:Sandbox"}} testing a property of the
+     *            event source or data with one of the operators: {@code equals}, {@code in} (a list of values),
+     *            {@code prefix}, {@code wiki} and {@code space} (the referenced entity is in one of the given wikis or
+     *            spaces); {@code null} if there is no condition
+     * @return the predicate testing the conditions
+     * @throws IllegalArgumentException if the conditions are not valid or test a property the clients cannot use
+     */
+    public EventPredicate createPredicate(Object where)
+    {
+        if (where == null) {
+            return EventPredicate.ALWAYS;
+        }
+        if (!(where instanceof List)) {
+            throw new IllegalArgumentException("The conditions must be a list");
+        }
+
+        Set<String> allowedProperties = getAllowedProperties();
+        List<Pair<EventPredicate.Property, Predicate<Object>>> conditions = new ArrayList<>();
+        EventPredicate.Property scopeProperty = null;
+        Set<EntityReference> scopes = Collections.emptySet();
+        boolean spaceScope = false;
+        for (Object item : (List<?>) where) {
+            if (!(item instanceof Map)) {
+                throw new IllegalArgumentException("Each condition must be an object");
+            }
+            Map<?, ?> condition = (Map<?, ?>) item;
+            EventPredicate.Property property = createProperty(condition.get(PROPERTY), allowedProperties);
+            String operator = getOperator(condition);
+            Object operand = condition.get(operator);
+
+            Predicate<Object> test;
+            if (WIKI.equals(operator) || SPACE.equals(operator)) {
+                Set<EntityReference> references = new HashSet<>();
+                for (String name : toStrings(operand)) {
+                    references.add(WIKI.equals(operator) ? new WikiReference(name)
+                        : this.referenceResolver.resolve(name, EntityType.SPACE));
+                }
+                test = value -> isInScope(value, references);
+
+                // Index the subscriptions by space rather than by wiki when possible, it's more selective
+                if (scopeProperty == null || SPACE.equals(operator) && !spaceScope) {
+                    scopeProperty = property;
+                    scopes = references;
+                    spaceScope = SPACE.equals(operator);
+                }
+            } else if (IN.equals(operator)) {
+                Set<String> values = toStrings(operand);
+                test = value -> values.contains(toString(value));
+            } else if (PREFIX.equals(operator)) {
+                String prefix = String.valueOf(operand);
+                test = value -> value != null && toString(value).startsWith(prefix);
+            } else {
+                String expected = toString(operand);
+                test = value -> Objects.equals(expected, toString(value));
+            }
+            conditions.add(Pair.of(property, test));
+        }
+
+        return new EventPredicate(conditions, scopeProperty, scopes);
+    }
+
+    /**
+     * @param path the path of a property of the event source or data, as sent by the client
+     * @return the property
+     * @throws IllegalArgumentException if the property is not valid or cannot be tested by the clients
+     */
+    public EventPredicate.Property createProperty(Object path)
+    {
+        return createProperty(path, getAllowedProperties());
+    }
+
+    private EventPredicate.Property createProperty(Object path, Set<String> allowedProperties)
+    {
+        String name = String.valueOf(path);
+        if (!allowedProperties.contains(name)) {
+            throw new IllegalArgumentException(String.format("The property [%s] cannot be used", name));
+        }
+
+        return new EventPredicate.Property(name);
+    }
+
+    private Set<String> getAllowedProperties()
+    {
+        return Stream.concat(PROPERTIES.stream(), this.configuration.getFilterProperties().stream())
+            .collect(Collectors.toSet());
+    }
+
+    private String getOperator(Map<?, ?> condition)
+    {
+        String operator = null;
+        for (String candidate : OPERATORS) {
+            if (condition.containsKey(candidate)) {
+                if (operator != null) {
+                    throw new IllegalArgumentException(
+                        String.format("The condition %s has several operators", condition));
+                }
+                operator = candidate;
+            }
+        }
+        if (operator == null) {
+            throw new IllegalArgumentException(String.format("The condition %s has no operator", condition));
+        }
+
+        return operator;
+    }
+
+    private Set<String> toStrings(Object operand)
+    {
+        Set<String> values = new HashSet<>();
+        if (operand instanceof Collection) {
+            ((Collection<?>) operand).forEach(value -> values.add(toString(value)));
+        } else {
+            values.add(toString(operand));
+        }
+
+        return values;
+    }
+
+    private String toString(Object value)
+    {
+        if (value instanceof EntityReference) {
+            return this.referenceSerializer.serialize((EntityReference) value);
+        }
+
+        return value != null ? value.toString() : null;
+    }
+
+    private boolean isInScope(Object value, Set<EntityReference> scopes)
+    {
+        if (value instanceof EntityReference) {
+            for (EntityReference reference = (EntityReference) value; reference != null;
+                reference = reference.getParent()) {
+                if (scopes.contains(reference)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Forget the resolved constructors.
+     */
+    public void invalidate()
+    {
+        this.constructors.clear();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * A filter on the source and data of the events, compiled from the conditions sent by a client (see
+ * {@link EventFilterFactory#createPredicate(Object)}). All the conditions have to be met.
+ * <p>
+ * The predicate can have a scope: the wikis or spaces holding the entity referenced by one of the tested properties.
+ * The subscriptions are indexed by scope (see {@link EventSubscriptionIndex}) so that an event is tested only against
+ * the predicates which can match it.
+ *
+ * @version $Id$
+ */
+final class EventPredicate
+{
+    /**
+     * The predicate of the subscriptions without conditions.
+     */
+    static final EventPredicate ALWAYS = new EventPredicate(Collections.emptyList(), null, Collections.emptySet());
+
+    private final List<Pair<Property, Predicate<Object>>> conditions;
+
+    private final Property scopeProperty;
+
+    private final Set<EntityReference> scopes;
+
+    /**
+     * A property of the event source or data, such as {@code source.documentReference}.
+     */
+    static final class Property
+    {
+        static final String SOURCE = "source";
+
+        static final String DATA = "data";
+
+        private final String path;
+
+        private final boolean source;
+
+        private final String[] names;
+
+        /**
+         * The getters resolved for each runtime class, for each name of the path.
+         */
+        private final List<ConcurrentMap<Class<?>, Optional<Method>>> getters = new ArrayList<>();
+
+        /**
+         * @param path the path of the property, starting with {@code source} or {@code data}, the names being separated
+         *            by dots
+         */
+        Property(String path)
+        {
+            this.path = path;
+
+            String[] segments = StringUtils.split(path, '.');
+            if (segments.length == 0 || (!SOURCE.equals(segments[0]) && !DATA.equals(segments[0]))) {
+                throw new IllegalArgumentException(
+                    String.format("The property [%s] doesn't start with source or data", path));
+            }
+            this.source = SOURCE.equals(segments[0]);
+            this.names = new String[segments.length - 1];
+            System.arraycopy(segments, 1, this.names, 0, this.names.length);
+            for (int i = 0; i < this.names.length; i++) {
+                this.getters.add(new ConcurrentHashMap<>());
+            }
+        }
+
+        /**
+         * @param eventSource the event source
+         * @param eventData the event data
+         * @return the value of the property, {@code null} if one of the objects along the path doesn't have it
+         */
+        Object getValue(Object eventSource, Object eventData)
+        {
+            Object value = this.source ? eventSource : eventData;
+            for (int i = 0; i < this.names.length && value != null; i++) {
+                value = getValue(value, i);
+            }
+
+            return value;
+        }
+
+        private Object getValue(Object object, int index)
+        {
+            if (object instanceof Map) {
+                return ((Map<?, ?>) object).get(this.names[index]);
+            }
+
+            Optional<Method> getter =
+                this.getters.get(index).computeIfAbsent(object.getClass(), key -> getGetter(key, this.names[index]));
+            if (getter.isPresent()) {
+                try {
+                    return getter.get().invoke(object);
+                } catch (Exception e) {
+                    // Same as a missing property
+                }
+            }
+
+            return null;
+        }
+
+        private static Optional<Method> getGetter(Class<?> objectClass, String name)
+        {
+            String suffix = StringUtils.capitalize(name);
+            Method getter = MethodUtils.getAccessibleMethod(objectClass, "get" + suffix);
+            if (getter == null) {
+                getter = MethodUtils.getAccessibleMethod(objectClass, "is" + suffix);
+            }
+
+            return Optional.ofNullable(getter);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Property && this.path.equals(((Property) obj).path);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.path.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.path;
+        }
+    }
+
+    /**
+     * @param conditions the conditions to meet, each one testing the value of a property
+     * @param scopeProperty the property referencing the entity which has to be in one of the scopes, {@code null} if
+     *            the predicate has no scope
+     * @param scopes the wikis or spaces one of which holds the entity referenced by the scope property
+     */
+    EventPredicate(List<Pair<Property, Predicate<Object>>> conditions, Property scopeProperty,
+        Set<EntityReference> scopes)
+    {
+        this.conditions = conditions;
+        this.scopeProperty = scopeProperty;
+        this.scopes = scopes;
+    }
+
+    /**
+     * @return the property referencing the entity which has to be in one of the scopes, {@code null} if the predicate
+     *         has no scope
+     */
+    Property getScopeProperty()
+    {
+        return this.scopeProperty;
+    }
+
+    /**
+     * @return the wikis or spaces one of which holds the entity referenced by the scope property
+     */
+    Set<EntityReference> getScopes()
+    {
+        return this.scopes;
+    }
+
+    /**
+     * @param values the values of the properties of the event, shared by the predicates tested against the same event
+     *            so that each property is resolved only once
+     * @return true if the event meets all the conditions
+     */
+    boolean test(PropertyValues values)
+    {
+        for (Pair<Property, Predicate<Object>> condition : this.conditions) {
+            if (!condition.getRight().test(values.get(condition.getLeft()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The values of the properties of an event, resolved when they are first needed.
+     */
+    static final class PropertyValues
+    {
+        private final Object source;
+
+        private final Object data;
+
+        private final Map<Property, Object> values = new HashMap<>();
+
+        /**
+         * @param source the event source
+         * @param data the event data
+         */
+        PropertyValues(Object source, Object data)
+        {
+            this.source = source;
+            this.data = data;
+        }
+
+        /**
+         * @param property a property of the event
+         * @return the value of the property
+         */
+        Object get(Property property)
+        {
+            Object value = this.values.get(property);
+            if (value == null && !this.values.containsKey(property)) {
+                value = property.getValue(this.source, this.data);
+                this.values.put(property, value);
+            }
+
+            return value;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.filter.TokenFilter;
+
+/**
+ * The parts of an event message a subscription needs: the event is always sent, the source and data can be excluded,
+ * and each part can be limited to a list of paths (JSON pointers such as {@code /source/documentReference}).
+ * <p>
+ * A projection is compiled once, when the subscription is added. Projections are compared by value so that the
+ * subscriptions sharing the same projection share the projected event messages.
+ *
+ * @version $Id$
+ */
+final class EventProjection
+{
+    static final String EVENT = "event";
+
+    static final String SOURCE = "source";
+
+    static final String DATA = "data";
+
+    private static final List<String> PARTS = Arrays.asList(EVENT, SOURCE, DATA);
+
+    /**
+     * The projection keeping the whole event message.
+     */
+    static final EventProjection ALL = new EventProjection(createAll());
+
+    /**
+     * The paths to keep in each included part, relative to the part (empty to keep the whole part).
+     */
+    private final Map<String, Set<String>> paths;
+
+    private final Map<String, TokenFilter> filters = new HashMap<>();
+
+    /**
+     * Filter the values matching at least one of the paths (and their parents).
+     */
+    private static final class JsonPointersFilter extends TokenFilter
+    {
+        private final List<JsonPointer> pointers;
+
+        JsonPointersFilter(List<JsonPointer> pointers)
+        {
+            this.pointers = pointers;
+        }
+
+        @Override
+        public TokenFilter includeProperty(String name)
+        {
+            List<JsonPointer> next = new ArrayList<>(this.pointers.size());
+            for (JsonPointer pointer : this.pointers) {
+                next.add(pointer.matchProperty(name));
+            }
+
+            return include(next);
+        }
+
+        @Override
+        public TokenFilter includeElement(int index)
+        {
+            List<JsonPointer> next = new ArrayList<>(this.pointers.size());
+            for (JsonPointer pointer : this.pointers) {
+                next.add(pointer.matchElement(index));
+            }
+
+            return include(next);
+        }
+
+        private TokenFilter include(List<JsonPointer> next)
+        {
+            next.removeIf(Objects::isNull);
+
+            if (next.isEmpty()) {
+                return null;
+            }
+
+            for (JsonPointer pointer : next) {
+                if (pointer.matches()) {
+                    return TokenFilter.INCLUDE_ALL;
+                }
+            }
+
+            return new JsonPointersFilter(next);
+        }
+
+        @Override
+        protected boolean _includeScalar()
+        {
+            // The paths go deeper than this value
+            return false;
+        }
+    }
+
+    private EventProjection(Map<String, Set<String>> paths)
+    {
+        this.paths = paths;
+
+        paths.forEach((part, partPaths) -> {
+            if (partPaths.isEmpty()) {
+                this.filters.put(part, TokenFilter.INCLUDE_ALL);
+            } else {
+                List<JsonPointer> pointers = new ArrayList<>(partPaths.size());
+                partPaths.forEach(path -> pointers.add(JsonPointer.compile(path)));
+                this.filters.put(part, new JsonPointersFilter(pointers));
+            }
+        });
+    }
+
+    private static Map<String, Set<String>> createAll()
+    {
+        Map<String, Set<String>> all = new HashMap<>();
+        PARTS.forEach(part -> all.put(part, Collections.emptySet()));
+
+        return all;
+    }
+
+    /**
+     * @param projection the projection received from the client: {@code {"source": false, "data": true, "paths":
+     *            ["/source/documentReference"]}}, where all the fields are optional; {@code null} to keep the whole
+     *            event message
+     * @return the compiled projection
+     * @throws IllegalArgumentException if the projection is not valid
+     */
+    static EventProjection parse(Object projection)
+    {
+        if (projection == null) {
+            return ALL;
+        }
+        if (!(projection instanceof Map)) {
+            throw new IllegalArgumentException("The projection must be an object");
+        }
+
+        Map<?, ?> map = (Map<?, ?>) projection;
+        List<String> includedParts = new ArrayList<>(PARTS);
+        if (Boolean.FALSE.equals(map.get(SOURCE))) {
+            includedParts.remove(SOURCE);
+        }
+        if (Boolean.FALSE.equals(map.get(DATA))) {
+            includedParts.remove(DATA);
+        }
+
+        Set<String> wholeParts = new HashSet<>();
+        Map<String, Set<String>> partPaths = new HashMap<>();
+        Object pathList = map.get("paths");
+        if (pathList instanceof Collection) {
+            for (Object path : (Collection<?>) pathList) {
+                JsonPointer pointer = JsonPointer.compile(String.valueOf(path));
+                String part = pointer.getMatchingProperty();
+                if (!PARTS.contains(part)) {
+                    throw new IllegalArgumentException(
+                        String.format("The path [%s] doesn't start with /event, /source or /data", path));
+                }
+                if (pointer.tail().matches()) {
+                    wholeParts.add(part);
+                } else {
+                    partPaths.computeIfAbsent(part, key -> new TreeSet<>()).add(pointer.tail().toString());
+                }
+            }
+        } else if (pathList != null) {
+            throw new IllegalArgumentException("The projection paths must be a list");
+        }
+
+        // The included parts without paths are kept whole
+        Map<String, Set<String>> paths = new HashMap<>();
+        for (String part : includedParts) {
+            paths.put(part, wholeParts.contains(part) ? Collections.emptySet()
+                : partPaths.getOrDefault(part, Collections.emptySet()));
+        }
+
+        return create(paths);
+    }
+
+    private static EventProjection create(Map<String, Set<String>> paths)
+    {
+        return ALL.paths.equals(paths) ? ALL : new EventProjection(paths);
+    }
+
+    /**
+     * @param other another projection
+     * @return the projection keeping everything the two projections keep
+     */
+    EventProjection union(EventProjection other)
+    {
+        if (this.equals(other)) {
+            return this;
+        }
+
+        Map<String, Set<String>> union = new HashMap<>();
+        for (String part : PARTS) {
+            Set<String> thisPaths = this.paths.get(part);
+            Set<String> otherPaths = other.paths.get(part);
+            if (thisPaths == null || otherPaths == null) {
+                if (thisPaths != null || otherPaths != null) {
+                    union.put(part, thisPaths != null ? thisPaths : otherPaths);
+                }
+            } else if (thisPaths.isEmpty() || otherPaths.isEmpty()) {
+                union.put(part, Collections.emptySet());
+            } else {
+                Set<String> partPaths = new TreeSet<>(thisPaths);
+                partPaths.addAll(otherPaths);
+                union.put(part, partPaths);
+            }
+        }
+
+        return create(union);
+    }
+
+    /**
+     * @param other another projection
+     * @return true if this projection keeps everything the other projection keeps
+     */
+    boolean includes(EventProjection other)
+    {
+        return this.equals(union(other));
+    }
+
+    /**
+     * @param part the part of the event message ({@link #EVENT}, {@link #SOURCE} or {@link #DATA})
+     * @return the filter selecting what is kept from the part, {@code null} if the part is excluded
+     */
+    TokenFilter getFilter(String part)
+    {
+        return this.filters.get(part);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof EventProjection && this.paths.equals(((EventProjection) obj).paths);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return this.paths.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.paths.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * The last events matched by a group of subscriptions, kept for a while so that the clients which lost their
+ * connection can receive the events they missed when they reconnect.
+ * <p>
+ * The buffer is bounded both in number of events and in age. It's not thread safe: the listener owning the group
+ * synchronizes the accesses.
+ *
+ * @version $Id$
+ */
+final class EventReplayBuffer
+{
+    private final int maxEvents;
+
+    private final long maxAge;
+
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    /**
+     * All the events matched by the group after this sequence number are in the buffer.
+     */
+    private long startSequence;
+
+    private static final class Entry
+    {
+        private final WebSocketEventFrame frame;
+
+        private final long time;
+
+        Entry(WebSocketEventFrame frame, long time)
+        {
+            this.frame = frame;
+            this.time = time;
+        }
+    }
+
+    /**
+     * @param maxEvents the maximum number of events in the buffer
+     * @param maxAge the maximum time (in milliseconds) an event is kept in the buffer
+     * @param startSequence the sequence number of the last event fired before the buffer was created
+     */
+    EventReplayBuffer(int maxEvents, long maxAge, long startSequence)
+    {
+        this.maxEvents = maxEvents;
+        this.maxAge = maxAge;
+        this.startSequence = startSequence;
+    }
+
+    /**
+     * @param frame the event matched by the group
+     * @param now the current time, in milliseconds
+     */
+    void add(WebSocketEventFrame frame, long now)
+    {
+        evict(now);
+
+        if (this.entries.size() >= this.maxEvents) {
+            this.startSequence = this.entries.poll().frame.getSequence();
+        }
+
+        this.entries.add(new Entry(frame, now));
+    }
+
+    /**
+     * @param sequence the sequence number of the last event received by the client
+     * @param projection the projection of the subscription to resume
+     * @param now the current time, in milliseconds
+     * @return the events fired after the given sequence number, in order, or {@code null} if some of them are not in
+     *         the buffer anymore or were recorded without some of the parts the projection needs
+     */
+    List<WebSocketEventFrame> getEventsAfter(long sequence, EventProjection projection, long now)
+    {
+        evict(now);
+
+        if (sequence < this.startSequence) {
+            return null;
+        }
+
+        List<WebSocketEventFrame> frames = new ArrayList<>();
+        for (Entry entry : this.entries) {
+            if (entry.frame.getSequence() > sequence) {
+                if (!entry.frame.getProjection().includes(projection)) {
+                    return null;
+                }
+                frames.add(entry.frame);
+            }
+        }
+
+        return frames;
+    }
+
+    private void evict(long now)
+    {
+        while (!this.entries.isEmpty() && now - this.entries.peek().time > this.maxAge) {
+            this.startSequence = this.entries.poll().frame.getSequence();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Triple;
+
+/**
+ * A listener registered by a WebSocket client.
+ *
+ * @version $Id$
+ */
+final class EventSubscription
+{
+    private final long id;
+
+    private final Class<?> eventClass;
+
+    private final Triple<Map<String, Object>, Object, Object> filterKey;
+
+    private final String listenerData;
+
+    private final byte[] binaryListenerData;
+
+    private final EventProjection projection;
+
+    private final ObservationSession session;
+
+    private final boolean highPriority;
+
+    /**
+     * @param id the identifier of the subscription
+     * @param eventClass the class of the events to listen to
+     * @param filterKey the parameters and the conditions used to filter the events, and the throttle options
+     * @param listenerData the serialized data to send back with each event
+     * @param binaryListenerData the data to send back with each event, encoded in Smile
+     * @param projection the parts of the events to send
+     * @param session the session to send the events to
+     * @param highPriority true if the events should be sent before the events of the other subscriptions waiting to be
+     *            sent
+     */
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    EventSubscription(long id, Class<?> eventClass, Triple<Map<String, Object>, Object, Object> filterKey,
+        String listenerData, byte[] binaryListenerData, EventProjection projection, ObservationSession session,
+        boolean highPriority)
+    {
+        this.id = id;
+        this.eventClass = eventClass;
+        this.filterKey = filterKey;
+        this.listenerData = listenerData;
+        this.binaryListenerData = binaryListenerData;
+        this.projection = projection;
+        this.session = session;
+        this.highPriority = highPriority;
+    }
+
+    /**
+     * @return the identifier of the subscription
+     */
+    long getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return the class of the events to listen to
+     */
+    Class<?> getEventClass()
+    {
+        return this.eventClass;
+    }
+
+    /**
+     * @return the parameters and the conditions used to filter the events, and the throttle options, identifying the
+     *         {@link EventSubscriptionGroup}
+     */
+    Triple<Map<String, Object>, Object, Object> getFilterKey()
+    {
+        return this.filterKey;
+    }
+
+    /**
+     * @return the serialized data to send back with each event
+     */
+    String getListenerData()
+    {
+        return this.listenerData;
+    }
+
+    /**
+     * @return the data to send back with each event, encoded in Smile
+     */
+    byte[] getBinaryListenerData()
+    {
+        return this.binaryListenerData;
+    }
+
+    /**
+     * @return the parts of the events to send
+     */
+    EventProjection getProjection()
+    {
+        return this.projection;
+    }
+
+    /**
+     * @return the session to send the events to
+     */
+    ObservationSession getSession()
+    {
+        return this.session;
+    }
+
+    /**
+     * @return true if the events should be sent before the events of the other subscriptions waiting to be sent
+     */
+    boolean isHighPriority()
+    {
+        return this.highPriority;
+    }
+}
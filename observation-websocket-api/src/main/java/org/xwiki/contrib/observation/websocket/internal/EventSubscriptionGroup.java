@@ -0,0 +1,200 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * The subscriptions sharing the same event filter (same event class, same parameters and same conditions) and the
+ * same throttle. The throttle state is shared too: the subscriptions of a group receive the same events.
+ * <p>
+ * When the replay is enabled the group records the events it matches, and it's kept for a while after its last
+ * subscription is removed so that the clients which reconnect can resume their subscriptions.
+ *
+ * @version $Id$
+ */
+final class EventSubscriptionGroup
+{
+    private final Event filter;
+
+    private final EventPredicate predicate;
+
+    private final EventThrottle throttle;
+
+    private final Set<EventSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    private final EventReplayBuffer replayBuffer;
+
+    /**
+     * The union of the projections of the subscriptions added to the group, which only grows so that the recorded
+     * events can be replayed to any of them.
+     */
+    private volatile EventProjection projection;
+
+    /**
+     * Incremented each time the last subscription is removed, to know if the group was used in the meantime.
+     */
+    private long idleGeneration;
+
+    /**
+     * @param filter the event used to filter the events
+     * @param predicate the conditions on the event source and data
+     * @param throttle the conflation and rate limiting of the events, {@code null} to send all the events
+     * @param replayBuffer the buffer recording the events matched by the group, {@code null} if the replay is disabled
+     */
+    EventSubscriptionGroup(Event filter, EventPredicate predicate, EventThrottle throttle,
+        EventReplayBuffer replayBuffer)
+    {
+        this.filter = filter;
+        this.predicate = predicate;
+        this.throttle = throttle;
+        this.replayBuffer = replayBuffer;
+    }
+
+    /**
+     * @return the event used to filter the events
+     */
+    Event getFilter()
+    {
+        return this.filter;
+    }
+
+    /**
+     * @return the conditions on the event source and data
+     */
+    EventPredicate getPredicate()
+    {
+        return this.predicate;
+    }
+
+    /**
+     * @return the conflation and rate limiting of the events, {@code null} if all the events are sent
+     */
+    EventThrottle getThrottle()
+    {
+        return this.throttle;
+    }
+
+    /**
+     * @param event the event to test
+     * @param values the values of the properties of the event source and data
+     * @return true if the event matches the filter and the conditions of the group
+     */
+    boolean matches(Event event, EventPredicate.PropertyValues values)
+    {
+        return this.filter.matches(event) && this.predicate.test(values);
+    }
+
+    /**
+     * @return the subscriptions sharing the filter
+     */
+    Collection<EventSubscription> getSubscriptions()
+    {
+        return this.subscriptions;
+    }
+
+    /**
+     * @return the projection including the projections of all the subscriptions of the group
+     */
+    EventProjection getProjection()
+    {
+        return this.projection;
+    }
+
+    /**
+     * @param subscription the subscription to add to the group
+     */
+    void add(EventSubscription subscription)
+    {
+        this.projection = this.projection != null ? this.projection.union(subscription.getProjection())
+            : subscription.getProjection();
+        this.subscriptions.add(subscription);
+    }
+
+    /**
+     * @param subscription the subscription to remove from the group
+     */
+    void remove(EventSubscription subscription)
+    {
+        this.subscriptions.remove(subscription);
+    }
+
+    /**
+     * @return true if no subscription is left in the group
+     */
+    boolean isEmpty()
+    {
+        return this.subscriptions.isEmpty();
+    }
+
+    /**
+     * @return true if the group records the events it matches
+     */
+    boolean isReplayable()
+    {
+        return this.replayBuffer != null;
+    }
+
+    /**
+     * @param frame an event matched by the group
+     * @param now the current time, in milliseconds
+     */
+    void record(WebSocketEventFrame frame, long now)
+    {
+        if (this.replayBuffer != null) {
+            this.replayBuffer.add(frame, now);
+        }
+    }
+
+    /**
+     * @param sequence the sequence number of the last event received by the client
+     * @param projection the projection of the subscription to resume
+     * @param now the current time, in milliseconds
+     * @return the events matched after the given sequence number, or {@code null} if some of them were not recorded
+     */
+    List<WebSocketEventFrame> getEventsAfter(long sequence, EventProjection projection, long now)
+    {
+        return this.replayBuffer != null ? this.replayBuffer.getEventsAfter(sequence, projection, now) : null;
+    }
+
+    /**
+     * Called when the last subscription is removed.
+     *
+     * @return the identifier of the idle period which starts
+     */
+    long idle()
+    {
+        return ++this.idleGeneration;
+    }
+
+    /**
+     * @param generation the identifier of an idle period
+     * @return true if the group had no subscription since the start of the given idle period
+     */
+    boolean isIdleSince(long generation)
+    {
+        return isEmpty() && this.idleGeneration == generation;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Index the groups of subscriptions of an event class by the scope of their predicate (see
+ * {@link EventPredicate#getScopes()}), so that the groups tested against an event are the ones without scope and the
+ * ones whose scope holds the entity referenced by the event, instead of all the groups.
+ * <p>
+ * The index is modified while holding the lock of the listener owning the groups, and read concurrently by the
+ * dispatches.
+ *
+ * @version $Id$
+ */
+final class EventSubscriptionIndex
+{
+    private final Set<EventSubscriptionGroup> unscoped = ConcurrentHashMap.newKeySet();
+
+    private final ConcurrentMap<EventPredicate.Property, ConcurrentMap<EntityReference, Set<EventSubscriptionGroup>>>
+        scoped = new ConcurrentHashMap<>();
+
+    /**
+     * @param group the group to index
+     */
+    void add(EventSubscriptionGroup group)
+    {
+        EventPredicate.Property property = group.getPredicate().getScopeProperty();
+        if (property == null) {
+            this.unscoped.add(group);
+        } else {
+            ConcurrentMap<EntityReference, Set<EventSubscriptionGroup>> scopes =
+                this.scoped.computeIfAbsent(property, key -> new ConcurrentHashMap<>());
+            for (EntityReference scope : group.getPredicate().getScopes()) {
+                scopes.computeIfAbsent(scope, key -> ConcurrentHashMap.newKeySet()).add(group);
+            }
+        }
+    }
+
+    /**
+     * @param group the group to remove from the index
+     */
+    void remove(EventSubscriptionGroup group)
+    {
+        EventPredicate.Property property = group.getPredicate().getScopeProperty();
+        if (property == null) {
+            this.unscoped.remove(group);
+        } else {
+            ConcurrentMap<EntityReference, Set<EventSubscriptionGroup>> scopes = this.scoped.get(property);
+            if (scopes != null) {
+                for (EntityReference scope : group.getPredicate().getScopes()) {
+                    scopes.computeIfPresent(scope, (key, groups) -> {
+                        groups.remove(group);
+
+                        return groups.isEmpty() ? null : groups;
+                    });
+                }
+                this.scoped.computeIfPresent(property, (key, value) -> value.isEmpty() ? null : value);
+            }
+        }
+    }
+
+    /**
+     * @param values the values of the properties of the event
+     * @return the groups which might match the event
+     */
+    Collection<EventSubscriptionGroup> getCandidates(EventPredicate.PropertyValues values)
+    {
+        // A group can be found several times when its scopes are nested
+        Set<EventSubscriptionGroup> candidates = new LinkedHashSet<>(this.unscoped);
+
+        this.scoped.forEach((property, scopes) -> {
+            Object value = values.get(property);
+            if (value instanceof EntityReference) {
+                // Look for the groups whose scope is the referenced entity or one of its parents
+                for (EntityReference reference = (EntityReference) value; reference != null;
+                    reference = reference.getParent()) {
+                    Set<EventSubscriptionGroup> groups = scopes.get(reference);
+                    if (groups != null) {
+                        candidates.addAll(groups);
+                    }
+                }
+            }
+        });
+
+        return candidates;
+    }
+}
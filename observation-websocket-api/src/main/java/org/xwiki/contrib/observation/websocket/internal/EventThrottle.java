@@ -0,0 +1,321 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * Limits the events sent to a group of subscriptions during event storms (e.g. a job updating the same document many
+ * times, or an extension firing a burst of events when it's reloaded):
+ * <ul>
+ * <li>conflation: the first event of a key (e.g. {@code source.documentReference}) is sent right away and opens a
+ * window during which only the latest event of the key is kept, to be sent when the window closes</li>
+ * <li>rate limiting: at most {@code maxEvents} events are sent per period, the excess events being counted so that the
+ * clients are told how many events they missed at the end of the period</li>
+ * </ul>
+ * <p>
+ * The throttle is applied before the events are serialized so that the conflated and suppressed events cost neither
+ * CPU nor bandwidth. It's not thread safe: the listener owning the group synchronizes the accesses and schedules the
+ * end of the windows and periods.
+ *
+ * @version $Id$
+ */
+final class EventThrottle
+{
+    static final String CONFLATE = "conflate";
+
+    static final String RATE_LIMIT = "rateLimit";
+
+    private static final long MAX_DURATION = 60000;
+
+    /**
+     * The maximum number of conflation windows open at the same time, the events of the other keys being sent without
+     * conflation.
+     */
+    private static final int MAX_WINDOWS = 1000;
+
+    private final EventPredicate.Property conflationKey;
+
+    private final long conflationWindow;
+
+    private final int maxEvents;
+
+    private final long period;
+
+    /**
+     * The open conflation windows, by key, with the latest event received during the window ({@code null} if none).
+     */
+    private final Map<Object, HeldEvent> windows = new HashMap<>();
+
+    private long periodEnd;
+
+    private int periodEvents;
+
+    private int suppressed;
+
+    /**
+     * An event held until the end of the conflation window of its key.
+     */
+    static final class HeldEvent
+    {
+        private final Event event;
+
+        private final Object source;
+
+        private final Object data;
+
+        /**
+         * @param event the event
+         * @param source the event source
+         * @param data the event data
+         */
+        HeldEvent(Event event, Object source, Object data)
+        {
+            this.event = event;
+            this.source = source;
+            this.data = data;
+        }
+
+        /**
+         * @return the event
+         */
+        Event getEvent()
+        {
+            return this.event;
+        }
+
+        /**
+         * @return the event source
+         */
+        Object getSource()
+        {
+            return this.source;
+        }
+
+        /**
+         * @return the event data
+         */
+        Object getData()
+        {
+            return this.data;
+        }
+    }
+
+    private EventThrottle(EventPredicate.Property conflationKey, long conflationWindow, int maxEvents, long period)
+    {
+        this.conflationKey = conflationKey;
+        this.conflationWindow = conflationWindow;
+        this.maxEvents = maxEvents;
+        this.period = period;
+    }
+
+    /**
+     * @param conflate the conflation options sent by the client: {@code {key: 'source.documentReference', window:
+     *            1000}}, the key being optional (all the events are conflated together without key), {@code null} to
+     *            disable the conflation
+     * @param rateLimit the rate limiting options sent by the client: {@code {maxEvents: 10, period: 1000}}, the period
+     *            being optional, {@code null} to disable the rate limiting
+     * @param properties creates the conflation key from its path, checking that the client can use it
+     * @return the throttle, {@code null} if both the conflation and the rate limiting are disabled
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    static EventThrottle create(Object conflate, Object rateLimit,
+        Function<Object, EventPredicate.Property> properties)
+    {
+        if (conflate == null && rateLimit == null) {
+            return null;
+        }
+
+        EventPredicate.Property key = null;
+        long window = 0;
+        if (conflate != null) {
+            Map<?, ?> options = getOptions(conflate, CONFLATE);
+            if (options.get("key") != null) {
+                key = properties.apply(options.get("key"));
+            }
+            window = getDuration(options, "window", CONFLATE);
+        }
+
+        int maxEvents = 0;
+        long period = 0;
+        if (rateLimit != null) {
+            Map<?, ?> options = getOptions(rateLimit, RATE_LIMIT);
+            Object max = options.get("maxEvents");
+            if (!(max instanceof Number) || ((Number) max).intValue() < 1) {
+                throw new IllegalArgumentException("The rateLimit maxEvents must be a positive number");
+            }
+            maxEvents = ((Number) max).intValue();
+            period = options.get("period") != null ? getDuration(options, "period", RATE_LIMIT) : 1000;
+        }
+
+        return new EventThrottle(key, window, maxEvents, period);
+    }
+
+    private static Map<?, ?> getOptions(Object options, String name)
+    {
+        if (!(options instanceof Map)) {
+            throw new IllegalArgumentException(String.format("The %s options must be an object", name));
+        }
+
+        return (Map<?, ?>) options;
+    }
+
+    private static long getDuration(Map<?, ?> options, String key, String name)
+    {
+        Object value = options.get(key);
+        if (!(value instanceof Number) || ((Number) value).longValue() < 1
+            || ((Number) value).longValue() > MAX_DURATION) {
+            throw new IllegalArgumentException(
+                String.format("The %s %s must be a number of milliseconds between 1 and %d", name, key, MAX_DURATION));
+        }
+
+        return ((Number) value).longValue();
+    }
+
+    /**
+     * @return true if the events are conflated
+     */
+    boolean isConflating()
+    {
+        return this.conflationWindow > 0;
+    }
+
+    /**
+     * @return the duration of the conflation windows, in milliseconds
+     */
+    long getConflationWindow()
+    {
+        return this.conflationWindow;
+    }
+
+    /**
+     * @param values the values of the properties of an event
+     * @return the conflation key of the event
+     */
+    Object getKey(EventPredicate.PropertyValues values)
+    {
+        return this.conflationKey != null ? values.get(this.conflationKey) : null;
+    }
+
+    /**
+     * @param key the conflation key of an event
+     * @param event the event to hold if the conflation window of its key is open, replacing the event held before
+     * @return true if the event is held, false if it has to be sent
+     */
+    boolean hold(Object key, HeldEvent event)
+    {
+        if (this.windows.containsKey(key)) {
+            this.windows.put(key, event);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param key the conflation key of an event which is sent
+     * @return true if a conflation window was opened for the key, to close with {@link #closeWindow(Object)} once
+     *         {@link #getConflationWindow()} elapsed
+     */
+    boolean openWindow(Object key)
+    {
+        if (this.windows.size() < MAX_WINDOWS) {
+            this.windows.put(key, null);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param key the conflation key of a window which elapsed
+     * @return the latest event held during the window, in which case a new window is opened, or {@code null} if no
+     *         event was received during the window, in which case the window is closed
+     */
+    HeldEvent closeWindow(Object key)
+    {
+        HeldEvent held = this.windows.remove(key);
+        if (held != null) {
+            this.windows.put(key, null);
+        }
+
+        return held;
+    }
+
+    /**
+     * @param now the current time, in milliseconds
+     * @return true if the event can be sent, false if it exceeds the rate limit, in which case it's counted as
+     *         suppressed
+     */
+    boolean acquire(long now)
+    {
+        if (this.maxEvents == 0) {
+            return true;
+        }
+
+        if (now >= this.periodEnd) {
+            this.periodEnd = now + this.period;
+            this.periodEvents = 0;
+        }
+
+        if (this.periodEvents < this.maxEvents) {
+            this.periodEvents++;
+
+            return true;
+        }
+
+        this.suppressed++;
+
+        return false;
+    }
+
+    /**
+     * @return the number of events suppressed since the last call to {@link #takeSuppressed()}
+     */
+    int getSuppressed()
+    {
+        return this.suppressed;
+    }
+
+    /**
+     * @return the end of the current rate limiting period, in milliseconds
+     */
+    long getPeriodEnd()
+    {
+        return this.periodEnd;
+    }
+
+    /**
+     * @return the number of events suppressed since the last call, to report to the clients
+     */
+    int takeSuppressed()
+    {
+        int count = this.suppressed;
+        this.suppressed = 0;
+
+        return count;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.contrib.observation.websocket.EventValueSerializer;
+import org.xwiki.extension.event.ExtensionInstalledEvent;
+import org.xwiki.extension.event.ExtensionUninstalledEvent;
+import org.xwiki.extension.event.ExtensionUpgradedEvent;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Invalidate the resolved {@link EventValueSerializer}s, and the serializations cached with them, when a serializer
+ * component is registered or unregistered. The resolved serializers are also forgotten when an extension is installed,
+ * uninstalled or upgraded, since they are cached by class and would keep the classes of the removed extensions.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(EventValueSerializerListener.NAME)
+@Singleton
+public class EventValueSerializerListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "EventValueSerializerListener";
+
+    @Inject
+    private EventValueSerializerRegistry registry;
+
+    @Inject
+    private SerializedReferenceCache referenceCache;
+
+    /**
+     * Default constructor.
+     */
+    public EventValueSerializerListener()
+    {
+        super(NAME, new ComponentDescriptorAddedEvent(), new ComponentDescriptorRemovedEvent(),
+            new ExtensionInstalledEvent(), new ExtensionUninstalledEvent(), new ExtensionUpgradedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof ComponentDescriptorEvent) {
+            Type roleType = ((ComponentDescriptorEvent) event).getRoleType();
+            if (roleType instanceof ParameterizedType
+                && ((ParameterizedType) roleType).getRawType() == EventValueSerializer.class) {
+                this.registry.invalidate();
+                this.referenceCache.clear();
+            }
+        } else {
+            this.registry.invalidate();
+        }
+    }
+}
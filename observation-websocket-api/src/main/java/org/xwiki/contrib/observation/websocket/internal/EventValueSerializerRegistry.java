@@ -0,0 +1,309 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.contrib.observation.websocket.EventValueSerializer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.fasterxml.jackson.databind.ser.Serializers;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.type.ArrayType;
+import com.fasterxml.jackson.databind.type.CollectionLikeType;
+import com.fasterxml.jackson.databind.type.CollectionType;
+import com.fasterxml.jackson.databind.type.MapLikeType;
+import com.fasterxml.jackson.databind.type.MapType;
+
+/**
+ * Resolve the {@link EventValueSerializer} components and build the mapper used to serialize the events with them.
+ * <p>
+ * The serializer of a class is resolved once, along the class hierarchy, and cached until a serializer component is
+ * registered or unregistered, or an extension is installed, uninstalled or upgraded (so that the cache doesn't keep the
+ * classes of the removed extensions).
+ *
+ * @version $Id$
+ */
+@Component(roles = EventValueSerializerRegistry.class)
+@Singleton
+public class EventValueSerializerRegistry
+{
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The serializers resolved for each class (empty when the class has no serializer).
+     */
+    private final ConcurrentMap<Class<?>, Optional<EventValueSerializer<Object>>> serializers =
+        new ConcurrentHashMap<>();
+
+    private volatile ObjectMapper mapper;
+
+    /**
+     * Adapt an {@link EventValueSerializer} component to Jackson.
+     */
+    private static final class EventValueSerializerAdapter extends StdSerializer<Object>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient EventValueSerializer<Object> serializer;
+
+        EventValueSerializerAdapter(Class<?> type, EventValueSerializer<Object> serializer)
+        {
+            super(type, false);
+
+            this.serializer = serializer;
+        }
+
+        @Override
+        public void serialize(Object value, JsonGenerator generator, SerializerProvider provider) throws IOException
+        {
+            this.serializer.serialize(value, generator, provider);
+        }
+    }
+
+    /**
+     * Provide the Jackson serializers of the registered {@link EventValueSerializer} components.
+     */
+    private final class RegistrySerializers extends Serializers.Base
+    {
+        @Override
+        public JsonSerializer<?> findSerializer(SerializationConfig config, JavaType type, BeanDescription beanDesc)
+        {
+            EventValueSerializer<Object> serializer = getSerializer(type.getRawClass());
+
+            return serializer != null ? new EventValueSerializerAdapter(type.getRawClass(), serializer) : null;
+        }
+    }
+
+    /**
+     * Limit the nesting level of the beans serialized without a dedicated serializer, and of the containers (which can
+     * be cyclic too).
+     */
+    private static final class BoundedDepthModifier extends BeanSerializerModifier
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxDepth;
+
+        BoundedDepthModifier(int maxDepth)
+        {
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription beanDesc,
+            JsonSerializer<?> serializer)
+        {
+            if (serializer instanceof BeanSerializerBase) {
+                return new BoundedDepthSerializer(serializer, this.maxDepth, false);
+            }
+
+            return serializer;
+        }
+
+        @Override
+        public JsonSerializer<?> modifyMapSerializer(SerializationConfig config, MapType valueType,
+            BeanDescription beanDesc, JsonSerializer<?> serializer)
+        {
+            return new BoundedDepthSerializer(serializer, this.maxDepth, true);
+        }
+
+        @Override
+        public JsonSerializer<?> modifyMapLikeSerializer(SerializationConfig config, MapLikeType valueType,
+            BeanDescription beanDesc, JsonSerializer<?> serializer)
+        {
+            return new BoundedDepthSerializer(serializer, this.maxDepth, true);
+        }
+
+        @Override
+        public JsonSerializer<?> modifyCollectionSerializer(SerializationConfig config, CollectionType valueType,
+            BeanDescription beanDesc, JsonSerializer<?> serializer)
+        {
+            return new BoundedDepthSerializer(serializer, this.maxDepth, true);
+        }
+
+        @Override
+        public JsonSerializer<?> modifyCollectionLikeSerializer(SerializationConfig config,
+            CollectionLikeType valueType, BeanDescription beanDesc, JsonSerializer<?> serializer)
+        {
+            return new BoundedDepthSerializer(serializer, this.maxDepth, true);
+        }
+
+        @Override
+        public JsonSerializer<?> modifyArraySerializer(SerializationConfig config, ArrayType valueType,
+            BeanDescription beanDesc, JsonSerializer<?> serializer)
+        {
+            // The arrays of primitive values can't hold other values
+            if (valueType.getContentType().isPrimitive()) {
+                return serializer;
+            }
+
+            return new BoundedDepthSerializer(serializer, this.maxDepth, true);
+        }
+    }
+
+    /**
+     * Skip the properties excluded by the projection of the serialized event.
+     */
+    private static final class ProjectionModifier extends BeanSerializerModifier
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public List<BeanPropertyWriter> changeProperties(SerializationConfig config, BeanDescription beanDesc,
+            List<BeanPropertyWriter> beanProperties)
+        {
+            // The subclasses (e.g. the writers of unwrapped or filtered properties) have their own behavior
+            beanProperties.replaceAll(
+                writer -> writer.getClass() == BeanPropertyWriter.class ? new ProjectedPropertyWriter(writer) : writer);
+
+            return beanProperties;
+        }
+    }
+
+    /**
+     * Register the serializers, the nesting limit and the projections in the mapper.
+     */
+    private final class RegistryModule extends SimpleModule
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxDepth;
+
+        RegistryModule(int maxDepth)
+        {
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        public void setupModule(SetupContext context)
+        {
+            super.setupModule(context);
+
+            context.addSerializers(new RegistrySerializers());
+            context.addBeanSerializerModifier(new BoundedDepthModifier(this.maxDepth));
+            context.addBeanSerializerModifier(new ProjectionModifier());
+        }
+    }
+
+    /**
+     * @return the mapper to use to serialize the events, shared by all the dispatches (it's thread safe)
+     */
+    public ObjectMapper getMapper()
+    {
+        ObjectMapper result = this.mapper;
+        if (result == null) {
+            synchronized (this) {
+                if (this.mapper == null) {
+                    this.mapper = createMapper();
+                }
+                result = this.mapper;
+            }
+        }
+
+        return result;
+    }
+
+    private ObjectMapper createMapper()
+    {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new RegistryModule(this.configuration.getSerializerMaxDepth()));
+        // Serialize the beans without properties instead of failing halfway through the event
+        objectMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
+
+        return objectMapper;
+    }
+
+    /**
+     * @param type the type of the value to serialize
+     * @return the serializer registered for the type or the closest of its super types, {@code null} if there is none
+     */
+    public EventValueSerializer<Object> getSerializer(Class<?> type)
+    {
+        return this.serializers.computeIfAbsent(type, this::resolve).orElse(null);
+    }
+
+    private Optional<EventValueSerializer<Object>> resolve(Class<?> type)
+    {
+        for (Class<?> current : ClassUtils.hierarchy(type, ClassUtils.Interfaces.INCLUDE)) {
+            // A serializer for Object would replace the standard serialization of all the values
+            if (current != Object.class) {
+                Type roleType = new DefaultParameterizedType(null, EventValueSerializer.class, current);
+                if (this.componentManager.hasComponent(roleType)) {
+                    try {
+                        return Optional.of(this.componentManager.getInstance(roleType));
+                    } catch (ComponentLookupException e) {
+                        this.logger.warn("Failed to lookup the serializer of type [{}]", current.getName(), e);
+                    }
+                }
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Forget the resolved serializers, because a serializer component was registered or unregistered, or because an
+     * extension was installed, uninstalled or upgraded.
+     */
+    public void invalidate()
+    {
+        this.serializers.clear();
+
+        ObjectMapper current = this.mapper;
+        if (current != null) {
+            // Jackson also caches the serializer of each type
+            ((DefaultSerializerProvider) current.getSerializerProvider()).flushCachedSerializers();
+        }
+    }
+}
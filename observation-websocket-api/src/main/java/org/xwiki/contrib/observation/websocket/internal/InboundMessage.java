@@ -0,0 +1,168 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message received from a client, parsed by {@link InboundMessageParser}.
+ *
+ * @version $Id$
+ */
+final class InboundMessage
+{
+    /**
+     * The types of messages a client can send.
+     */
+    enum Type
+    {
+        /**
+         * Register one listener.
+         */
+        ADD_LISTENER("addListener"),
+
+        /**
+         * Register several listeners at once.
+         */
+        ADD_LISTENERS("addListeners"),
+
+        /**
+         * Register again the listeners of a client which reconnects.
+         */
+        RESUME("resume"),
+
+        /**
+         * Unregister listeners.
+         */
+        REMOVE_LISTENERS("removeListeners"),
+
+        /**
+         * Configure the connection.
+         */
+        CONFIGURE("configure");
+
+        private final String name;
+
+        Type(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @param name the type given in the message
+         * @return the corresponding type, {@code null} if unknown
+         */
+        static Type fromName(String name)
+        {
+            for (Type type : values()) {
+                if (type.name.equals(name)) {
+                    return type;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.name;
+        }
+    }
+
+    private final Type type;
+
+    private final List<ListenerRequest> listeners;
+
+    private final List<Long> ids;
+
+    private final Map<String, Object> options;
+
+    private InboundMessage(Type type, List<ListenerRequest> listeners, List<Long> ids, Map<String, Object> options)
+    {
+        this.type = type;
+        this.listeners = listeners;
+        this.ids = ids;
+        this.options = options;
+    }
+
+    /**
+     * @param type the type of the message: {@link Type#ADD_LISTENER}, {@link Type#ADD_LISTENERS} or
+     *            {@link Type#RESUME}
+     * @param listeners the listeners to register
+     * @return the message
+     */
+    static InboundMessage listeners(Type type, List<ListenerRequest> listeners)
+    {
+        return new InboundMessage(type, listeners, Collections.emptyList(), Collections.emptyMap());
+    }
+
+    /**
+     * @param ids the identifiers of the listeners to unregister, given by the server
+     * @return the {@link Type#REMOVE_LISTENERS} message
+     */
+    static InboundMessage removeListeners(List<Long> ids)
+    {
+        return new InboundMessage(Type.REMOVE_LISTENERS, Collections.emptyList(), ids, Collections.emptyMap());
+    }
+
+    /**
+     * @param options the connection options
+     * @return the {@link Type#CONFIGURE} message
+     */
+    static InboundMessage configure(Map<String, Object> options)
+    {
+        return new InboundMessage(Type.CONFIGURE, Collections.emptyList(), Collections.emptyList(), options);
+    }
+
+    /**
+     * @return the type of the message
+     */
+    Type getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * @return the listeners to register, empty for the other types of messages
+     */
+    List<ListenerRequest> getListeners()
+    {
+        return this.listeners;
+    }
+
+    /**
+     * @return the identifiers of the listeners to unregister, empty for the other types of messages
+     */
+    List<Long> getIds()
+    {
+        return this.ids;
+    }
+
+    /**
+     * @return the connection options, empty for the other types of messages
+     */
+    Map<String, Object> getOptions()
+    {
+        return this.options;
+    }
+}
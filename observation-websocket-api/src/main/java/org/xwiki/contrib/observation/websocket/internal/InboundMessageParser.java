@@ -0,0 +1,276 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Parse the messages received from the clients with a streaming parser, directly into {@link InboundMessage}s: the
+ * structure of the messages is checked while reading them, and the parts of the message which are not needed are
+ * skipped without being materialized.
+ * <p>
+ * The free-form values (conditions, projections, listener data, etc.) are read as maps, lists and scalar values, with
+ * a limited nesting depth.
+ *
+ * @version $Id$
+ */
+final class InboundMessageParser
+{
+    /**
+     * The maximum nesting level of the free-form values.
+     */
+    static final int MAX_DEPTH = 32;
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private static final String TYPE = "type";
+
+    private static final String DATA = "data";
+
+    private InboundMessageParser()
+    {
+        // Utility class.
+    }
+
+    /**
+     * @param message the text message received from the client
+     * @return the parsed message
+     * @throws IOException if the message is not valid JSON or doesn't have the structure of its type
+     */
+    static InboundMessage parse(String message) throws IOException
+    {
+        try (JsonParser parser = FACTORY.createParser(message)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT, "The message must be an object");
+
+            InboundMessage.Type type = null;
+            InboundMessage result = null;
+            TokenBuffer data = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (TYPE.equals(field)) {
+                    type = InboundMessage.Type.fromName(token == JsonToken.VALUE_STRING ? parser.getText() : null);
+                    if (type == null) {
+                        throw new JsonParseException(parser, "Unknown message type");
+                    }
+                } else if (DATA.equals(field)) {
+                    if (type != null) {
+                        result = readData(type, parser);
+                    } else {
+                        // The type comes after the data, which has to be kept until then
+                        data = new TokenBuffer(parser);
+                        data.copyCurrentStructure(parser);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new JsonParseException(parser, "Unexpected content after the message");
+            }
+
+            if (type == null) {
+                throw new JsonParseException(parser, "The message has no type");
+            } else if (data != null) {
+                try (JsonParser dataParser = data.asParser()) {
+                    dataParser.nextToken();
+                    result = readData(type, dataParser);
+                }
+            } else if (result == null) {
+                throw new JsonParseException(parser, "The message has no data");
+            }
+
+            return result;
+        }
+    }
+
+    private static InboundMessage readData(InboundMessage.Type type, JsonParser parser) throws IOException
+    {
+        switch (type) {
+            case ADD_LISTENER:
+                List<ListenerRequest> listener = new ArrayList<>(1);
+                listener.add(readListener(parser));
+
+                return InboundMessage.listeners(type, listener);
+            case ADD_LISTENERS:
+            case RESUME:
+                expect(parser, parser.currentToken(), JsonToken.START_ARRAY, "The listeners must be an array");
+                List<ListenerRequest> listeners = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    listeners.add(readListener(parser));
+                }
+
+                return InboundMessage.listeners(type, listeners);
+            case REMOVE_LISTENERS:
+                expect(parser, parser.currentToken(), JsonToken.START_ARRAY, "The identifiers must be an array");
+                List<Long> ids = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    expect(parser, parser.currentToken(), JsonToken.VALUE_NUMBER_INT,
+                        "The identifiers must be integers");
+                    ids.add(parser.getLongValue());
+                }
+
+                return InboundMessage.removeListeners(ids);
+            default:
+                expect(parser, parser.currentToken(), JsonToken.START_OBJECT, "The options must be an object");
+
+                return InboundMessage.configure(readObject(parser, 1));
+        }
+    }
+
+    private static ListenerRequest readListener(JsonParser parser) throws IOException
+    {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT, "A listener must be an object");
+
+        Object listenerId = null;
+        String eventType = null;
+        Map<String, Object> params = null;
+        Object where = null;
+        Object projection = null;
+        Object conflate = null;
+        Object rateLimit = null;
+        Object eventData = null;
+        Long sequence = null;
+        boolean highPriority = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (field) {
+                case "listenerId":
+                    listenerId = readValue(parser, 1);
+                    break;
+                case "eventType":
+                    expect(parser, token, JsonToken.START_OBJECT, "The event type must be an object");
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String eventTypeField = parser.getCurrentName();
+                        JsonToken eventTypeToken = parser.nextToken();
+                        if ("id".equals(eventTypeField)) {
+                            eventType = eventTypeToken.isScalarValue() && eventTypeToken != JsonToken.VALUE_NULL
+                                ? parser.getText() : null;
+                            parser.skipChildren();
+                        } else if ("params".equals(eventTypeField) && eventTypeToken != JsonToken.VALUE_NULL) {
+                            expect(parser, eventTypeToken, JsonToken.START_OBJECT,
+                                "The event parameters must be an object");
+                            params = readObject(parser, 2);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    break;
+                case "where":
+                    where = readValue(parser, 1);
+                    break;
+                case "projection":
+                    projection = readValue(parser, 1);
+                    break;
+                case EventThrottle.CONFLATE:
+                    conflate = readValue(parser, 1);
+                    break;
+                case EventThrottle.RATE_LIMIT:
+                    rateLimit = readValue(parser, 1);
+                    break;
+                case WebSocketEventsManager.EVENTDATA:
+                    eventData = readValue(parser, 1);
+                    break;
+                case ListenerRequest.PRIORITY:
+                    highPriority =
+                        token == JsonToken.VALUE_STRING && ListenerRequest.PRIORITY_HIGH.equals(parser.getText());
+                    parser.skipChildren();
+                    break;
+                case "seq":
+                    sequence = token.isNumeric() ? parser.getLongValue() : null;
+                    parser.skipChildren();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        return new ListenerRequest(listenerId, eventType, params, where, projection, conflate, rateLimit, eventData,
+            sequence, highPriority);
+    }
+
+    private static Object readValue(JsonParser parser, int depth) throws IOException
+    {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                return readObject(parser, depth + 1);
+            case START_ARRAY:
+                checkDepth(parser, depth + 1);
+                List<Object> list = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    list.add(readValue(parser, depth + 1));
+                }
+
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    private static Map<String, Object> readObject(JsonParser parser, int depth) throws IOException
+    {
+        checkDepth(parser, depth);
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            map.put(field, readValue(parser, depth));
+        }
+
+        return map;
+    }
+
+    private static void checkDepth(JsonParser parser, int depth) throws JsonParseException
+    {
+        if (depth > MAX_DEPTH) {
+            throw new JsonParseException(parser, "The message is too deeply nested");
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected, String error)
+        throws JsonParseException
+    {
+        if (actual != expected) {
+            throw new JsonParseException(parser, error);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, with buckets whose bounds are powers of two microseconds. The recording is lock-free and
+ * uses striped counters, so that it can be done by many threads at high rates.
+ *
+ * @version $Id$
+ */
+final class LatencyHistogram
+{
+    /**
+     * The last bucket holds the durations longer than about 35 minutes.
+     */
+    private static final int BUCKETS = 32;
+
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    LatencyHistogram()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos the duration to record, in nanoseconds
+     */
+    void record(long nanos)
+    {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        // Bucket i holds the durations lower than 2^i microseconds
+        int bucket = Math.min(BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+
+        this.buckets[bucket].increment();
+        this.sum.add(micros);
+        this.max.accumulate(micros);
+    }
+
+    /**
+     * The values are approximate since the counters can be updated while they are read, and the percentiles are the
+     * upper bounds of the buckets they fall in.
+     *
+     * @return the number of recorded durations, and their mean, percentiles and maximum in microseconds
+     */
+    Map<String, Long> getSnapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets[i].sum();
+            count += counts[i];
+        }
+
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count);
+        snapshot.put("mean", count > 0 ? this.sum.sum() / count : 0);
+        for (double percentile : PERCENTILES) {
+            snapshot.put("p" + Math.round(percentile * 100), getPercentile(counts, count, percentile));
+        }
+        snapshot.put("max", this.max.get());
+
+        return snapshot;
+    }
+
+    private long getPercentile(long[] counts, long count, double percentile)
+    {
+        long rank = (long) Math.ceil(count * percentile);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulated += counts[i];
+            if (cumulated >= rank && cumulated > 0) {
+                // Don't exceed the actual maximum
+                return Math.min(1L << i, this.max.get());
+            }
+        }
+
+        return 0;
+    }
+}
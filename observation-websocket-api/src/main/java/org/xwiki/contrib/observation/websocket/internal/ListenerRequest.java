@@ -0,0 +1,204 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A listener a client asks to register, as received in an {@code addListener}, {@code addListeners} or {@code resume}
+ * message. The event type and the priority are typed; the conditions, projection, throttle options and listener data
+ * are kept as parsed (maps, lists and scalar values) since they are compiled by the components which handle them.
+ *
+ * @version $Id$
+ */
+final class ListenerRequest
+{
+    /**
+     * The field of a listener holding its priority.
+     */
+    static final String PRIORITY = "priority";
+
+    /**
+     * The priority of the listeners whose events are sent before the other events.
+     */
+    static final String PRIORITY_HIGH = "high";
+
+    private final Object listenerId;
+
+    private final String eventType;
+
+    private final Map<String, Object> params;
+
+    private final Object where;
+
+    private final Object projection;
+
+    private final Object conflate;
+
+    private final Object rateLimit;
+
+    private final Object eventData;
+
+    private final Long sequence;
+
+    private final boolean highPriority;
+
+    /**
+     * @param listenerId the identifier chosen by the client to match the acknowledgement, {@code null} if not given
+     * @param eventType the name of the event class, {@code null} if not given
+     * @param params the parameters of the event filter, empty if not given
+     * @param where the conditions on the event source and data, {@code null} if not given
+     * @param projection the parts of the events the client needs, {@code null} to receive the whole events
+     * @param conflate the conflation options, {@code null} if not given
+     * @param rateLimit the rate limit options, {@code null} if not given
+     * @param eventData the listener data, sent back with each event
+     * @param sequence the sequence number of the last event received by the client, when it resumes the listener
+     * @param highPriority true if the client asked for the events to be sent before the other events
+     */
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    ListenerRequest(Object listenerId, String eventType, Map<String, Object> params, Object where, Object projection,
+        Object conflate, Object rateLimit, Object eventData, Long sequence, boolean highPriority)
+    {
+        this.listenerId = listenerId;
+        this.eventType = eventType;
+        this.params = params != null ? params : Collections.emptyMap();
+        this.where = where;
+        this.projection = projection;
+        this.conflate = conflate;
+        this.rateLimit = rateLimit;
+        this.eventData = eventData;
+        this.sequence = sequence;
+        this.highPriority = highPriority;
+    }
+
+    /**
+     * Adapt a listener given as a map, as the listeners built in Java (e.g. by the tests) are.
+     *
+     * @param message the listener, with the same structure as in the JSON messages
+     * @return the listener request, without event type if the event type is not an object
+     */
+    @SuppressWarnings("unchecked")
+    static ListenerRequest fromMap(Map<String, Object> message)
+    {
+        Object eventType = message.get("eventType");
+        Map<String, Object> eventTypeMap =
+            eventType instanceof Map ? (Map<String, Object>) eventType : Collections.emptyMap();
+        Object id = eventTypeMap.get("id");
+        Object params = eventTypeMap.get("params");
+        Object sequence = message.get("seq");
+
+        return new ListenerRequest(message.get("listenerId"), id != null ? String.valueOf(id) : null,
+            params instanceof Map ? (Map<String, Object>) params : null, message.get("where"),
+            message.get("projection"), message.get(EventThrottle.CONFLATE), message.get(EventThrottle.RATE_LIMIT),
+            message.get(WebSocketEventsManager.EVENTDATA),
+            sequence instanceof Number ? ((Number) sequence).longValue() : null,
+            PRIORITY_HIGH.equals(message.get(PRIORITY)));
+    }
+
+    /**
+     * @return the identifier chosen by the client to match the acknowledgement, {@code null} if not given
+     */
+    Object getListenerId()
+    {
+        return this.listenerId;
+    }
+
+    /**
+     * @return the name of the event class, {@code null} if not given
+     */
+    String getEventType()
+    {
+        return this.eventType;
+    }
+
+    /**
+     * @return the parameters of the event filter, empty if not given
+     */
+    Map<String, Object> getParams()
+    {
+        return this.params;
+    }
+
+    /**
+     * @return the conditions on the event source and data, {@code null} if not given
+     */
+    Object getWhere()
+    {
+        return this.where;
+    }
+
+    /**
+     * @return the parts of the events the client needs, {@code null} to receive the whole events
+     */
+    Object getProjection()
+    {
+        return this.projection;
+    }
+
+    /**
+     * @return the conflation options, {@code null} if not given
+     */
+    Object getConflate()
+    {
+        return this.conflate;
+    }
+
+    /**
+     * @return the rate limit options, {@code null} if not given
+     */
+    Object getRateLimit()
+    {
+        return this.rateLimit;
+    }
+
+    /**
+     * @return the listener data, sent back with each event
+     */
+    Object getEventData()
+    {
+        return this.eventData;
+    }
+
+    /**
+     * @return the sequence number of the last event received by the client, when it resumes the listener,
+     *         {@code null} otherwise
+     */
+    Long getSequence()
+    {
+        return this.sequence;
+    }
+
+    /**
+     * @return true if the client asked for the events to be sent before the events of its other listeners (e.g. for
+     *         rare but important events, which shouldn't wait behind a burst of document updates)
+     */
+    boolean isHighPriority()
+    {
+        return this.highPriority;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("listenerId = [%s], eventType = [%s], params = %s", this.listenerId, this.eventType,
+            this.params);
+    }
+}
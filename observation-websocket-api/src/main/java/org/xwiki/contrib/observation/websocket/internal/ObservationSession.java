@@ -0,0 +1,667 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.CloseReason;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.slf4j.Logger;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration.SlowClientPolicy;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The state associated with a WebSocket session: the subscriptions and the messages waiting to be sent.
+ * <p>
+ * The messages are sent one at a time, the next one being sent only when the previous one has been fully written, so
+ * that a slow client cannot make the container buffer an unlimited amount of messages.
+ * <p>
+ * The messages wait in two lanes: the high priority messages (the control messages and the events of the high priority
+ * subscriptions) are sent before the others, so that they don't wait behind a burst of events, but a normal message is
+ * sent after a given number of high priority messages in a row so that the normal messages still make progress. The
+ * limits apply to both lanes together, the normal messages being dropped first.
+ *
+ * @version $Id$
+ */
+final class ObservationSession
+{
+    private static final CloseReason SLOW_CLIENT = new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+        "The client does not consume the events fast enough (retry-after=10).");
+
+    private static final CloseReason SEND_FAILED =
+        new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Failed to send a message.");
+
+    private static final String BATCH_PREFIX = "{\"type\":\"events\",\"data\":[";
+
+    private static final String BATCH_SUFFIX = "]}";
+
+    /**
+     * What to do once the lock on the session is released.
+     */
+    private enum Action
+    {
+        NONE,
+
+        SEND,
+
+        CLOSE
+    }
+
+    private final Session session;
+
+    private final int maxMessages;
+
+    private final long maxSize;
+
+    private final int priorityBurst;
+
+    private final SlowClientPolicy slowClientPolicy;
+
+    private final WebSocketObservationScheduler scheduler;
+
+    private final WebSocketObservationMetrics metrics;
+
+    private final Logger logger;
+
+    private final Runnable releaser;
+
+    private final Map<Long, EventSubscription> subscriptions = new ConcurrentHashMap<>();
+
+    private final Deque<OutboundMessage> queue = new ArrayDeque<>();
+
+    private final Deque<OutboundMessage> priorityQueue = new ArrayDeque<>();
+
+    private long queueSize;
+
+    /**
+     * The number of high priority messages sent in a row while normal messages were waiting.
+     */
+    private int priorityStreak;
+
+    private boolean sending;
+
+    private boolean closed;
+
+    /**
+     * The thread currently calling the remote endpoint, used to detect a send which completed synchronously.
+     */
+    private Thread sendingThread;
+
+    private boolean sentSynchronously;
+
+    /**
+     * The size of the message being sent.
+     */
+    private int sendingSize;
+
+    private long droppedCount;
+
+    private long failedCount;
+
+    private Batching batching;
+
+    private Encoding encoding = Encoding.JSON;
+
+    /**
+     * True if the client asked for compressed events when it connected.
+     */
+    private boolean compressed;
+
+    /**
+     * The user who opened the session, whose rights are checked before sending the events.
+     */
+    private volatile DocumentReference user;
+
+    private final List<OutboundMessage> batch = new ArrayList<>();
+
+    private int batchSize;
+
+    private ScheduledFuture<?> batchFlush;
+
+    /**
+     * The encoding of the events sent to the client.
+     */
+    enum Encoding
+    {
+        /**
+         * Text messages holding JSON.
+         */
+        JSON,
+
+        /**
+         * Binary messages holding Smile documents (binary JSON).
+         */
+        SMILE
+    }
+
+    /**
+     * The configuration of the batching of the events sent to the client.
+     */
+    static final class Batching
+    {
+        private final long delay;
+
+        private final int maxEvents;
+
+        private final int maxSize;
+
+        /**
+         * @param delay the maximum time (in milliseconds) an event waits for other events before being sent
+         * @param maxEvents the maximum number of events in a batch
+         * @param maxSize the maximum size of a batch
+         */
+        Batching(long delay, int maxEvents, int maxSize)
+        {
+            this.delay = delay;
+            this.maxEvents = maxEvents;
+            this.maxSize = maxSize;
+        }
+    }
+
+    /**
+     * @param session the WebSocket session
+     * @param maxMessages the maximum number of messages waiting to be sent
+     * @param maxSize the maximum total size of the messages waiting to be sent
+     * @param priorityBurst the maximum number of high priority messages sent in a row while normal messages are
+     *            waiting
+     * @param slowClientPolicy what to do when the limits are reached
+     * @param scheduler the scheduler used to send the batched events
+     * @param metrics the metrics to update
+     * @param logger the logger to use
+     * @param releaser releases the resources associated with the session (subscriptions, limits, heartbeat) when a
+     *            message cannot be sent
+     */
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    ObservationSession(Session session, int maxMessages, long maxSize, int priorityBurst,
+        SlowClientPolicy slowClientPolicy, WebSocketObservationScheduler scheduler, WebSocketObservationMetrics metrics,
+        Logger logger, Runnable releaser)
+    {
+        this.session = session;
+        this.maxMessages = maxMessages;
+        this.maxSize = maxSize;
+        this.priorityBurst = Math.max(1, priorityBurst);
+        this.slowClientPolicy = slowClientPolicy;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.releaser = releaser;
+    }
+
+    /**
+     * @return the WebSocket session
+     */
+    Session getSession()
+    {
+        return this.session;
+    }
+
+    /**
+     * @return the subscriptions of the session, indexed by identifier
+     */
+    Map<Long, EventSubscription> getSubscriptions()
+    {
+        return this.subscriptions;
+    }
+
+    /**
+     * @param batching the configuration of the batching of the events, {@code null} to send each event in its own
+     *            message
+     */
+    void setBatching(Batching batching)
+    {
+        Action action;
+        synchronized (this) {
+            this.batching = batching;
+
+            // Send what was batched with the previous configuration
+            action = flush();
+        }
+
+        execute(action);
+    }
+
+    /**
+     * @return the user who opened the session, {@code null} for the guest user
+     */
+    DocumentReference getUser()
+    {
+        return this.user;
+    }
+
+    /**
+     * @param user the user who opened the session
+     */
+    void setUser(DocumentReference user)
+    {
+        this.user = user;
+    }
+
+    /**
+     * @param compressed true to send the events as binary messages holding compressed Smile documents, whatever the
+     *            encoding
+     */
+    synchronized void setCompressed(boolean compressed)
+    {
+        this.compressed = compressed;
+    }
+
+    /**
+     * @param encoding the encoding of the events sent to the client
+     */
+    void setEncoding(Encoding encoding)
+    {
+        Action action;
+        synchronized (this) {
+            // Send what was batched with the previous encoding
+            action = flush();
+
+            this.encoding = encoding;
+        }
+
+        execute(action);
+    }
+
+    /**
+     * @param frame the event to send, serialized with a projection including the one of the subscription
+     * @param subscription the subscription which matched the event
+     */
+    void sendEvent(WebSocketEventFrame frame, EventSubscription subscription)
+    {
+        Action action;
+        synchronized (this) {
+            // The events of the high priority subscriptions are not batched, they would wait for the other events
+            boolean priority = subscription.isHighPriority();
+            OutboundMessage message;
+            try {
+                WebSocketEventFrame projected = frame.project(subscription.getProjection());
+                if (this.compressed) {
+                    // The event is compressed once and the compressed bytes are shared by all the sessions
+                    message = new OutboundMessage(projected.toCompressedEventData(subscription.getBinaryListenerData()),
+                        subscription.getId(), priority);
+                } else if (this.encoding == Encoding.SMILE) {
+                    // A binary message holds a list of events so it's the same with and without batching
+                    message = new OutboundMessage(projected.toBinaryEventData(subscription.getBinaryListenerData()),
+                        subscription.getId(), priority);
+                } else if (this.batching == null || priority) {
+                    message = new OutboundMessage(projected.toMessage(subscription.getListenerData()),
+                        subscription.getId(), priority);
+                } else {
+                    message = new OutboundMessage(projected.toEventData(subscription.getListenerData()),
+                        subscription.getId());
+                }
+            } catch (IOException e) {
+                this.logger.warn("Failed to encode an event for WebSocket session [{}]", this.session.getId(), e);
+
+                return;
+            }
+            this.metrics.eventEncoded(subscription.getEventClass(), message.getSize());
+
+            action = this.batching != null && !priority ? batch(message) : enqueue(message);
+        }
+
+        execute(action);
+    }
+
+    /**
+     * @param message the message to send, after the batched events unless it's a high priority message
+     */
+    void send(OutboundMessage message)
+    {
+        Action action;
+        synchronized (this) {
+            // Make sure the batched events are sent before
+            action = message.isPriority() ? Action.NONE : flush();
+            if (action != Action.CLOSE) {
+                Action messageAction = enqueue(message);
+                if (messageAction != Action.NONE) {
+                    action = messageAction;
+                }
+            }
+        }
+
+        execute(action);
+    }
+
+    private Action batch(OutboundMessage eventData)
+    {
+        if (this.closed) {
+            return Action.NONE;
+        }
+
+        this.batch.add(eventData);
+        this.batchSize += eventData.getSize();
+
+        if (this.batch.size() >= this.batching.maxEvents || this.batchSize >= this.batching.maxSize) {
+            return flush();
+        }
+
+        if (this.batchFlush == null) {
+            this.batchFlush = this.scheduler.schedule(this::flushBatch, this.batching.delay, TimeUnit.MILLISECONDS);
+        }
+
+        return Action.NONE;
+    }
+
+    private void flushBatch()
+    {
+        Action action;
+        synchronized (this) {
+            this.batchFlush = null;
+            action = flush();
+        }
+
+        execute(action);
+    }
+
+    private Action flush()
+    {
+        if (this.batchFlush != null) {
+            this.batchFlush.cancel(false);
+            this.batchFlush = null;
+        }
+
+        if (this.batch.isEmpty()) {
+            return Action.NONE;
+        }
+
+        OutboundMessage message;
+        if (this.batch.get(0).isBinary()) {
+            // Binary events are simply concatenated
+            byte[] binary = new byte[this.batchSize];
+            int offset = 0;
+            for (OutboundMessage eventData : this.batch) {
+                System.arraycopy(eventData.getBinary(), 0, binary, offset, eventData.getSize());
+                offset += eventData.getSize();
+            }
+            message = new OutboundMessage(binary, OutboundMessage.NO_KEY, false);
+        } else {
+            StringBuilder builder = new StringBuilder(this.batchSize + this.batch.size() + BATCH_PREFIX.length() + 2);
+            builder.append(BATCH_PREFIX);
+            for (int i = 0; i < this.batch.size(); ++i) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(this.batch.get(i).getText());
+            }
+            builder.append(BATCH_SUFFIX);
+            message = new OutboundMessage(builder.toString(), OutboundMessage.NO_KEY);
+        }
+
+        this.batch.clear();
+        this.batchSize = 0;
+
+        return enqueue(message);
+    }
+
+    /**
+     * Must be called while holding the lock on this session. The returned action must be executed after releasing it.
+     */
+    private Action enqueue(OutboundMessage message)
+    {
+        if (this.closed) {
+            return Action.NONE;
+        }
+
+        if (!makeRoom(message)) {
+            this.closed = true;
+            clear();
+
+            return Action.CLOSE;
+        }
+
+        getLane(message).add(message);
+        this.queueSize += message.getSize();
+
+        if (this.sending) {
+            // The message will be sent when the current send completes
+            return Action.NONE;
+        }
+
+        this.sending = true;
+
+        return Action.SEND;
+    }
+
+    private Deque<OutboundMessage> getLane(OutboundMessage message)
+    {
+        return message.isPriority() ? this.priorityQueue : this.queue;
+    }
+
+    private void execute(Action action)
+    {
+        if (action == Action.SEND) {
+            sendNext();
+        } else if (action == Action.CLOSE) {
+            // The client is too slow
+            closeSession(SLOW_CLIENT);
+        }
+    }
+
+    private boolean makeRoom(OutboundMessage message)
+    {
+        if (!isFull(message)) {
+            return true;
+        }
+
+        if (this.slowClientPolicy == SlowClientPolicy.CLOSE) {
+            return false;
+        }
+
+        if (this.slowClientPolicy == SlowClientPolicy.CONFLATE && message.getKey() != OutboundMessage.NO_KEY) {
+            // Replace the pending message with the same key, if any
+            for (Iterator<OutboundMessage> it = getLane(message).iterator(); it.hasNext();) {
+                OutboundMessage pending = it.next();
+                if (pending.getKey() == message.getKey()) {
+                    it.remove();
+                    dropped(pending);
+
+                    break;
+                }
+            }
+        }
+
+        // Drop the oldest messages, starting with the normal ones
+        while (!this.queue.isEmpty() && isFull(message)) {
+            dropped(this.queue.poll());
+        }
+        while (!this.priorityQueue.isEmpty() && isFull(message)) {
+            dropped(this.priorityQueue.poll());
+        }
+
+        return true;
+    }
+
+    private boolean isFull(OutboundMessage message)
+    {
+        return this.queue.size() + this.priorityQueue.size() >= this.maxMessages
+            || this.queueSize + message.getSize() > this.maxSize;
+    }
+
+    /**
+     * Must be called while holding the lock on this session.
+     *
+     * @return the next message to send, {@code null} if there is none
+     */
+    private OutboundMessage poll()
+    {
+        if (this.priorityQueue.isEmpty() || !this.queue.isEmpty() && this.priorityStreak >= this.priorityBurst) {
+            // Let a normal message through
+            this.priorityStreak = 0;
+
+            return this.queue.poll();
+        }
+
+        if (!this.queue.isEmpty()) {
+            this.priorityStreak++;
+        }
+
+        return this.priorityQueue.poll();
+    }
+
+    private void dropped(OutboundMessage message)
+    {
+        this.queueSize -= message.getSize();
+        this.droppedCount++;
+        this.metrics.messageDropped();
+    }
+
+    private void sendNext()
+    {
+        while (true) {
+            OutboundMessage message;
+            synchronized (this) {
+                message = poll();
+                if (message == null) {
+                    this.sending = false;
+
+                    return;
+                }
+                this.queueSize -= message.getSize();
+
+                this.sendingThread = Thread.currentThread();
+                this.sentSynchronously = false;
+                this.sendingSize = message.getSize();
+            }
+
+            try {
+                message.send(this.session.getAsyncRemote(), this::onSent);
+            } catch (Exception e) {
+                this.logger.debug("Failed to send message to WebSocket session [{}]", this.session.getId(), e);
+
+                synchronized (this) {
+                    this.failedCount++;
+                    this.metrics.messageFailed();
+                    this.sendingThread = null;
+                    this.sending = false;
+                    this.closed = true;
+                    clear();
+                }
+
+                // The connection is broken: release the session right away instead of waiting for the container or
+                // the heartbeat to notice
+                this.releaser.run();
+                closeSession(SEND_FAILED);
+
+                return;
+            }
+
+            synchronized (this) {
+                this.sendingThread = null;
+
+                // Continue in this thread (instead of the completion handler) to avoid unbounded recursion
+                if (!this.sentSynchronously) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void onSent(SendResult result)
+    {
+        synchronized (this) {
+            if (result.isOK()) {
+                this.metrics.messageSent(this.sendingSize);
+            } else {
+                this.failedCount++;
+                this.metrics.messageFailed();
+                this.logger.debug("Failed to send message to WebSocket session [{}]", this.session.getId(),
+                    result.getException());
+            }
+
+            if (this.sendingThread == Thread.currentThread()) {
+                this.sentSynchronously = true;
+
+                return;
+            }
+        }
+
+        sendNext();
+    }
+
+    private void clear()
+    {
+        this.queue.clear();
+        this.priorityQueue.clear();
+        this.queueSize = 0;
+        this.priorityStreak = 0;
+
+        if (this.batchFlush != null) {
+            this.batchFlush.cancel(false);
+            this.batchFlush = null;
+        }
+        this.batch.clear();
+        this.batchSize = 0;
+    }
+
+    private void closeSession(CloseReason reason)
+    {
+        try {
+            this.session.close(reason);
+        } catch (IOException e) {
+            this.logger.debug("Failed to close WebSocket session [{}]", this.session.getId(), e);
+        }
+    }
+
+    /**
+     * Release the messages waiting to be sent.
+     */
+    void dispose()
+    {
+        synchronized (this) {
+            this.closed = true;
+            clear();
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be sent
+     */
+    synchronized int getQueueLength()
+    {
+        return this.queue.size() + this.priorityQueue.size();
+    }
+
+    /**
+     * @return the number of messages which were dropped because the client was too slow
+     */
+    synchronized long getDroppedCount()
+    {
+        return this.droppedCount;
+    }
+
+    /**
+     * @return the number of messages which could not be sent
+     */
+    synchronized long getFailedCount()
+    {
+        return this.failedCount;
+    }
+}
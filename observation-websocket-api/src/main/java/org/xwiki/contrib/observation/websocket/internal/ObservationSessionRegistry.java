@@ -0,0 +1,156 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * The observation sessions, by numeric identifier (the WebSocket session only holds the identifier), with the number of
+ * sessions of each user and the total number of subscriptions, to enforce the limits of the configuration.
+ * <p>
+ * The messages of a WebSocket session are handled one at a time, so the number of subscriptions of a session doesn't
+ * change while it's checked against the limit.
+ *
+ * @version $Id$
+ */
+final class ObservationSessionRegistry
+{
+    private final AtomicLong idCounter = new AtomicLong();
+
+    private final ConcurrentMap<Long, ObservationSession> sessions = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<DocumentReference, Integer> userSessionCounts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger subscriptionCount = new AtomicInteger();
+
+    /**
+     * @param user the user opening the session, {@code null} if unknown
+     * @param maxSessionsPerUser the maximum number of sessions of a user, 0 for no limit
+     * @param factory creates the session, given its identifier
+     * @return the registered session, or {@code null} if the user has too many sessions already
+     */
+    ObservationSession register(DocumentReference user, int maxSessionsPerUser,
+        LongFunction<ObservationSession> factory)
+    {
+        if (user != null) {
+            boolean[] admitted = new boolean[1];
+            this.userSessionCounts.compute(user, (key, count) -> {
+                int current = count != null ? count : 0;
+                admitted[0] = maxSessionsPerUser <= 0 || current < maxSessionsPerUser;
+
+                return admitted[0] ? current + 1 : count;
+            });
+            if (!admitted[0]) {
+                return null;
+            }
+        }
+
+        long id = this.idCounter.incrementAndGet();
+        ObservationSession session = factory.apply(id);
+        this.sessions.put(id, session);
+
+        return session;
+    }
+
+    /**
+     * @param id the identifier of a session
+     * @return the session, {@code null} if it's not registered (anymore)
+     */
+    ObservationSession get(long id)
+    {
+        return this.sessions.get(id);
+    }
+
+    /**
+     * @param id the identifier of the session to remove
+     * @return the removed session, {@code null} if it was not registered
+     */
+    ObservationSession unregister(long id)
+    {
+        ObservationSession session = this.sessions.remove(id);
+        if (session != null && session.getUser() != null) {
+            this.userSessionCounts.computeIfPresent(session.getUser(), (key, count) -> count > 1 ? count - 1 : null);
+        }
+
+        return session;
+    }
+
+    /**
+     * Reserve a subscription for the given session, to be released with {@link #releaseSubscriptions(int)}.
+     *
+     * @param session the session adding a subscription
+     * @param maxPerSession the maximum number of subscriptions of a session, 0 for no limit
+     * @param maxTotal the maximum number of subscriptions of all the sessions, 0 for no limit
+     * @throws IllegalStateException when one of the limits is reached
+     */
+    void acquireSubscription(ObservationSession session, int maxPerSession, int maxTotal)
+    {
+        if (maxPerSession > 0 && session.getSubscriptions().size() >= maxPerSession) {
+            throw new IllegalStateException(
+                String.format("Too many listeners registered by this client (limit: %d)", maxPerSession));
+        }
+
+        if (this.subscriptionCount.incrementAndGet() > maxTotal && maxTotal > 0) {
+            this.subscriptionCount.decrementAndGet();
+
+            throw new IllegalStateException(
+                String.format("Too many listeners registered on the server (limit: %d)", maxTotal));
+        }
+    }
+
+    /**
+     * @param count the number of subscriptions removed
+     */
+    void releaseSubscriptions(int count)
+    {
+        this.subscriptionCount.addAndGet(-count);
+    }
+
+    /**
+     * @return the number of registered sessions
+     */
+    int getSessionCount()
+    {
+        return this.sessions.size();
+    }
+
+    /**
+     * @return the registered sessions
+     */
+    Collection<ObservationSession> getSessions()
+    {
+        return this.sessions.values();
+    }
+
+    /**
+     * @return the number of subscriptions of all the sessions
+     */
+    int getSubscriptionCount()
+    {
+        return this.subscriptionCount.get();
+    }
+}
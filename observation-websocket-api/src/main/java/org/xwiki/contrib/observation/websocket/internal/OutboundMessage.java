@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.nio.ByteBuffer;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+
+/**
+ * A message waiting to be sent to a WebSocket client.
+ *
+ * @version $Id$
+ */
+final class OutboundMessage
+{
+    /**
+     * The key of the messages which should never be conflated.
+     */
+    static final long NO_KEY = 0;
+
+    private final String text;
+
+    private final byte[] binary;
+
+    private final long key;
+
+    private final boolean priority;
+
+    /**
+     * @param text the text of the message
+     * @param key the key used to conflate the messages (messages with the same key replace each other), or
+     *            {@link #NO_KEY}
+     */
+    OutboundMessage(String text, long key)
+    {
+        this(text, key, false);
+    }
+
+    /**
+     * @param text the text of the message
+     * @param key the key used to conflate the messages (messages with the same key replace each other), or
+     *            {@link #NO_KEY}
+     * @param priority true if the message should be sent before the normal messages waiting to be sent
+     */
+    OutboundMessage(String text, long key, boolean priority)
+    {
+        this.text = text;
+        this.binary = null;
+        this.key = key;
+        this.priority = priority;
+    }
+
+    /**
+     * @param binary the content of the binary message
+     * @param key the key used to conflate the messages (messages with the same key replace each other), or
+     *            {@link #NO_KEY}
+     * @param priority true if the message should be sent before the normal messages waiting to be sent
+     */
+    OutboundMessage(byte[] binary, long key, boolean priority)
+    {
+        this.text = null;
+        this.binary = binary;
+        this.key = key;
+        this.priority = priority;
+    }
+
+    /**
+     * @return the key used to conflate the messages
+     */
+    long getKey()
+    {
+        return this.key;
+    }
+
+    /**
+     * @return true if the message should be sent before the normal messages waiting to be sent
+     */
+    boolean isPriority()
+    {
+        return this.priority;
+    }
+
+    /**
+     * @return true if it's a binary message
+     */
+    boolean isBinary()
+    {
+        return this.binary != null;
+    }
+
+    /**
+     * @return the text of the message, {@code null} for a binary message
+     */
+    String getText()
+    {
+        return this.text;
+    }
+
+    /**
+     * @return the content of the binary message, {@code null} for a text message
+     */
+    byte[] getBinary()
+    {
+        return this.binary;
+    }
+
+    /**
+     * @return the size of the message (the number of characters for a text message, the number of bytes for a binary
+     *         message)
+     */
+    int getSize()
+    {
+        return this.binary != null ? this.binary.length : this.text.length();
+    }
+
+    /**
+     * @param remote the remote endpoint to send the message to
+     * @param handler called when the message has been sent
+     */
+    void send(RemoteEndpoint.Async remote, SendHandler handler)
+    {
+        if (this.binary != null) {
+            remote.sendBinary(ByteBuffer.wrap(this.binary), handler);
+        } else {
+            remote.sendText(this.text, handler);
+        }
+    }
+}
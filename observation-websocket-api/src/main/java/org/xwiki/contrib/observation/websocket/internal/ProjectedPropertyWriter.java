@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.filter.FilteringGeneratorDelegate;
+import com.fasterxml.jackson.core.filter.TokenFilter;
+import com.fasterxml.jackson.core.filter.TokenFilterContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+
+/**
+ * Skip the bean properties excluded by the {@link EventProjection} the event is serialized with, instead of calling
+ * their getter and serializing their value only to have the tokens dropped by the filtering generator.
+ *
+ * @version $Id$
+ */
+final class ProjectedPropertyWriter extends BeanPropertyWriter
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param writer the property writer to wrap
+     */
+    ProjectedPropertyWriter(BeanPropertyWriter writer)
+    {
+        super(writer);
+    }
+
+    @Override
+    public void serializeAsField(Object bean, JsonGenerator generator, SerializerProvider provider) throws Exception
+    {
+        if (isIncluded(generator)) {
+            super.serializeAsField(bean, generator, provider);
+        }
+    }
+
+    private boolean isIncluded(JsonGenerator generator)
+    {
+        if (generator instanceof FilteringGeneratorDelegate) {
+            JsonStreamContext context = ((FilteringGeneratorDelegate) generator).getFilterContext();
+            if (context instanceof TokenFilterContext) {
+                TokenFilter filter = ((TokenFilterContext) context).getFilter();
+
+                return filter == TokenFilter.INCLUDE_ALL || filter != null && filter.includeProperty(getName()) != null;
+            }
+        }
+
+        return true;
+    }
+}
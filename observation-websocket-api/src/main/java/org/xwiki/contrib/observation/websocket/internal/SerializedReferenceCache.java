@@ -0,0 +1,247 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.EntityReference;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Keep the serialization of the entity references found in most of the events (the few documents modified the most,
+ * the users modifying them) so that writing them again only replays the cached tokens instead of walking the
+ * reference chain with the bean serializer.
+ * <p>
+ * The serialization is cached as a format independent token buffer, rather than as JSON bytes, so that it can be
+ * written in all the encodings and filtered by the projections like the rest of the event. Since the nesting limit of
+ * the bean serializer depends on where the reference is written, the serialization is cached by nesting level.
+ * <p>
+ * The entries are keyed by the value of the references (and not by instance) since most references, the user ones in
+ * particular, are created again for each request. The cache can be read concurrently and, when it's full, the least
+ * recently used entry is evicted. The cache is cleared when a serializer component is registered or unregistered (see
+ * {@link EventValueSerializerListener}).
+ *
+ * @version $Id$
+ */
+@Component(roles = SerializedReferenceCache.class)
+@Singleton
+public class SerializedReferenceCache implements Initializable
+{
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    @Inject
+    private WebSocketObservationMetrics metrics;
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private int maxSize;
+
+    private ConcurrentMap<Key, Entry> entries;
+
+    /**
+     * The key of an entry: a reference written at a given nesting level.
+     */
+    private static final class Key
+    {
+        private final EntityReference reference;
+
+        private final int depth;
+
+        private final int hash;
+
+        Key(EntityReference reference, int depth)
+        {
+            this.reference = reference;
+            this.depth = depth;
+            this.hash = 31 * reference.hashCode() + depth;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (this == object) {
+                return true;
+            } else if (object instanceof Key) {
+                Key other = (Key) object;
+
+                return this.depth == other.depth && this.hash == other.hash && this.reference.equals(other.reference);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * A cached serialization, with the last time it was used.
+     */
+    private static final class Entry
+    {
+        private final TokenBuffer tokens;
+
+        private volatile long lastAccess;
+
+        Entry(TokenBuffer tokens, long lastAccess)
+        {
+            this.tokens = tokens;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.maxSize = this.configuration.getSerializerReferenceCacheSize();
+        if (this.maxSize > 0) {
+            this.entries = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Write a reference, replaying its cached serialization when there is one.
+     *
+     * @param reference the reference to write, possibly {@code null}
+     * @param generator the generator to write the reference to
+     * @param provider the provider of the serializers
+     * @throws IOException when failing to serialize the reference
+     */
+    public void serialize(EntityReference reference, JsonGenerator generator, SerializerProvider provider)
+        throws IOException
+    {
+        if (reference == null || this.entries == null) {
+            provider.defaultSerializeValue(reference, generator);
+
+            return;
+        }
+
+        int depth = getDepth(generator);
+        TokenBuffer tokens = get(reference, depth);
+        if (tokens != null) {
+            this.metrics.referenceCacheHit();
+        } else {
+            this.metrics.referenceCacheMissed();
+
+            tokens = buffer(reference, depth, generator, provider);
+            put(reference, depth, tokens);
+        }
+
+        tokens.serialize(generator);
+    }
+
+    private int getDepth(JsonGenerator generator)
+    {
+        // Same as the nesting level checked by BoundedDepthSerializer
+        int depth = 0;
+        for (JsonStreamContext context = generator.getOutputContext(); context != null && !context.inRoot();
+            context = context.getParent()) {
+            depth++;
+        }
+
+        return depth;
+    }
+
+    private TokenBuffer buffer(EntityReference reference, int depth, JsonGenerator generator,
+        SerializerProvider provider) throws IOException
+    {
+        TokenBuffer tokens = new TokenBuffer(generator.getCodec(), false);
+        if (depth == 0) {
+            provider.defaultSerializeValue(reference, tokens);
+
+            return tokens;
+        }
+
+        // Serialize the reference at the same nesting level as the generator, so that the deep values are cut at the
+        // same place, and keep only the reference
+        TokenBuffer nested = new TokenBuffer(generator.getCodec(), false);
+        for (int i = 0; i < depth; ++i) {
+            nested.writeStartArray();
+        }
+        provider.defaultSerializeValue(reference, nested);
+        try (JsonParser parser = nested.asParser()) {
+            for (int i = 0; i <= depth; ++i) {
+                parser.nextToken();
+            }
+            tokens.copyCurrentStructure(parser);
+        }
+
+        return tokens;
+    }
+
+    private TokenBuffer get(EntityReference reference, int depth)
+    {
+        Entry entry = this.entries.get(new Key(reference, depth));
+        if (entry != null) {
+            entry.lastAccess = this.clock.incrementAndGet();
+
+            return entry.tokens;
+        }
+
+        return null;
+    }
+
+    private void put(EntityReference reference, int depth, TokenBuffer tokens)
+    {
+        this.entries.put(new Key(reference, depth), new Entry(tokens, this.clock.incrementAndGet()));
+
+        // Only a miss while the cache is full looks for the least recently used entry
+        while (this.entries.size() > this.maxSize) {
+            Map.Entry<Key, Entry> eldest = null;
+            for (Map.Entry<Key, Entry> entry : this.entries.entrySet()) {
+                if (eldest == null || entry.getValue().lastAccess < eldest.getValue().lastAccess) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                break;
+            }
+            this.entries.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Forget the cached serializations, because the serializer of the references may have changed.
+     */
+    public void clear()
+    {
+        if (this.entries != null) {
+            this.entries.clear();
+        }
+    }
+}
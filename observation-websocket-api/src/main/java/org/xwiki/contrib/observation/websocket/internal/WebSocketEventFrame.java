@@ -0,0 +1,264 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xwiki.model.reference.EntityReference;
+
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * The part of an event message which is common to all the listeners receiving the same event: the serialized event,
+ * source and data. Only the listener data has to be appended for each listener.
+ * <p>
+ * Each encoding of the event is produced only once, the first time it's needed. The same goes for the projections of
+ * the event: the subscriptions sharing a projection share the projected frame.
+ *
+ * @version $Id$
+ */
+final class WebSocketEventFrame
+{
+    private static final String MESSAGE_PREFIX = "{\"type\" : \"event\",\"data\" : ";
+
+    private static final String SUFFIX = "}";
+
+    private final WebSocketEventsSerializer serializer;
+
+    private final TokenBuffer event;
+
+    private final TokenBuffer source;
+
+    private final TokenBuffer data;
+
+    private final EventProjection projection;
+
+    private final Map<EventProjection, WebSocketEventFrame> projections = new HashMap<>();
+
+    private long sequence;
+
+    private EntityReference reference;
+
+    private String prefix;
+
+    private byte[] binary;
+
+    private byte[] compressed;
+
+    /**
+     * @param serializer the serializer used to encode the event
+     * @param event the serialized event
+     * @param source the serialized source, or {@code null} if it could not be serialized
+     * @param data the serialized data, or {@code null} if it could not be serialized
+     * @param projection the projection the event was serialized with
+     */
+    WebSocketEventFrame(WebSocketEventsSerializer serializer, TokenBuffer event, TokenBuffer source, TokenBuffer data,
+        EventProjection projection)
+    {
+        this.serializer = serializer;
+        this.event = event;
+        this.source = source;
+        this.data = data;
+        this.projection = projection;
+    }
+
+    /**
+     * @return the sequence number of the event
+     */
+    long getSequence()
+    {
+        return this.sequence;
+    }
+
+    /**
+     * @param sequence the sequence number of the event, to set before encoding the event
+     */
+    void setSequence(long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the entity the event is about, whose view right is checked before sending the event, {@code null} if the
+     *         event doesn't target an entity
+     */
+    EntityReference getReference()
+    {
+        return this.reference;
+    }
+
+    /**
+     * @param reference the entity the event is about, to set before recording the event
+     */
+    void setReference(EntityReference reference)
+    {
+        this.reference = reference;
+    }
+
+    /**
+     * @return the projection the event was serialized with
+     */
+    EventProjection getProjection()
+    {
+        return this.projection;
+    }
+
+    /**
+     * @param targetProjection the projection of a subscription, included in the projection the event was serialized
+     *            with
+     * @return the event restricted to the given projection
+     * @throws IOException when failing to filter the event
+     */
+    synchronized WebSocketEventFrame project(EventProjection targetProjection) throws IOException
+    {
+        if (this.projection.equals(targetProjection)) {
+            return this;
+        }
+
+        WebSocketEventFrame projected = this.projections.get(targetProjection);
+        if (projected == null) {
+            projected = this.serializer.project(this, targetProjection);
+            this.projections.put(targetProjection, projected);
+        }
+
+        return projected;
+    }
+
+    /**
+     * @return the serialized event, or {@code null} if the projection excludes all its properties
+     */
+    TokenBuffer getEvent()
+    {
+        return this.event;
+    }
+
+    /**
+     * @return the serialized source, or {@code null} if it could not be serialized or is excluded by the projection
+     */
+    TokenBuffer getSource()
+    {
+        return this.source;
+    }
+
+    /**
+     * @return the serialized data, or {@code null} if it could not be serialized or is excluded by the projection
+     */
+    TokenBuffer getData()
+    {
+        return this.data;
+    }
+
+    private synchronized String getPrefix() throws IOException
+    {
+        if (this.prefix == null) {
+            this.prefix = this.serializer.toJSONPrefix(this);
+        }
+
+        return this.prefix;
+    }
+
+    /**
+     * @return the Smile document holding the event, source and data
+     * @throws IOException when failing to encode the event
+     */
+    synchronized byte[] getBinary() throws IOException
+    {
+        if (this.binary == null) {
+            this.binary = this.serializer.toSmile(this);
+        }
+
+        return this.binary;
+    }
+
+    /**
+     * @return the Smile document holding the event, source and data, compressed with deflate
+     * @throws IOException when failing to encode the event
+     */
+    synchronized byte[] getCompressed() throws IOException
+    {
+        if (this.compressed == null) {
+            this.compressed = this.serializer.compress(getBinary());
+        }
+
+        return this.compressed;
+    }
+
+    /**
+     * @param listenerData the serialized listener data
+     * @return the complete message to send to the listener
+     * @throws IOException when failing to encode the event
+     */
+    String toMessage(String listenerData) throws IOException
+    {
+        String eventPrefix = getPrefix();
+
+        return new StringBuilder(MESSAGE_PREFIX.length() + eventPrefix.length() + listenerData.length() + 2)
+            .append(MESSAGE_PREFIX).append(eventPrefix).append(listenerData).append(SUFFIX).append(SUFFIX).toString();
+    }
+
+    /**
+     * @param listenerData the serialized listener data
+     * @return the event data to send to the listener, as part of a batch of events
+     * @throws IOException when failing to encode the event
+     */
+    String toEventData(String listenerData) throws IOException
+    {
+        String eventPrefix = getPrefix();
+
+        return new StringBuilder(eventPrefix.length() + listenerData.length() + 1).append(eventPrefix)
+            .append(listenerData).append(SUFFIX).toString();
+    }
+
+    /**
+     * @param listenerData the listener data, as a Smile document
+     * @return the binary message to send to the listener: the Smile document holding the event followed by the Smile
+     *         document holding the listener data
+     * @throws IOException when failing to encode the event
+     */
+    byte[] toBinaryEventData(byte[] listenerData) throws IOException
+    {
+        byte[] eventBinary = getBinary();
+
+        byte[] message = new byte[eventBinary.length + listenerData.length];
+        System.arraycopy(eventBinary, 0, message, 0, eventBinary.length);
+        System.arraycopy(listenerData, 0, message, eventBinary.length, listenerData.length);
+
+        return message;
+    }
+
+    /**
+     * @param listenerData the listener data, as a Smile document
+     * @return the binary message to send to the listener: the length of the compressed event and the length of the
+     *         listener data (as 32-bit big-endian integers), followed by the compressed Smile document holding the
+     *         event and the Smile document holding the listener data
+     * @throws IOException when failing to encode the event
+     */
+    byte[] toCompressedEventData(byte[] listenerData) throws IOException
+    {
+        // The event is compressed only once, whatever the number of listeners
+        byte[] eventCompressed = getCompressed();
+
+        return ByteBuffer.allocate(2 * Integer.BYTES + eventCompressed.length + listenerData.length)
+            .putInt(eventCompressed.length).putInt(listenerData.length).put(eventCompressed).put(listenerData).array();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+/**
+ * Check if the users of the WebSocket sessions are allowed to view the entities the events are about, so that the
+ * events don't leak private information.
+ * <p>
+ * The events whose source is not an entity are only sent when they have no source or when the source is explicitly
+ * configured as public, since there's no right to check for them.
+ * <p>
+ * The decisions are cached by user and entity since the same entities are usually modified many times and the same
+ * users have several sessions. The cache is bounded and invalidated when the rights or the groups change (see
+ * {@link WebSocketEventsAuthorizationListener}); a decision taken while the cache is invalidated is not cached since it
+ * might be based on the previous rights.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketEventsAuthorization.class)
+@Singleton
+public class WebSocketEventsAuthorization implements Initializable, Disposable
+{
+    @Inject
+    private AuthorizationManager authorization;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    private Cache<Boolean> decisions;
+
+    /**
+     * Incremented each time the decisions are invalidated.
+     */
+    private long generation;
+
+    private Set<String> publicSources;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.decisions = this.cacheManager.createNewCache(new LRUCacheConfiguration(
+                "observation.websocket.authorization", this.configuration.getAuthorizationCacheSize()));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to create the authorization cache", e);
+        }
+
+        this.publicSources = new HashSet<>(this.configuration.getAuthorizationPublicSources());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.decisions.dispose();
+    }
+
+    /**
+     * @param source the source of an event
+     * @return the entity the event is about (e.g. the modified document), {@code null} if the event doesn't target an
+     *         entity
+     */
+    public EntityReference getReference(Object source)
+    {
+        if (source instanceof DocumentModelBridge) {
+            return ((DocumentModelBridge) source).getDocumentReference();
+        } else if (source instanceof EntityReference) {
+            return (EntityReference) source;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param source the source of an event which is not an entity (see {@link #getReference(Object)})
+     * @return true if the event can be sent to all the users: the event has no source, or its source is configured as
+     *         public
+     */
+    public boolean isPublic(Object source)
+    {
+        if (source == null) {
+            return true;
+        } else if (this.publicSources.isEmpty()) {
+            return false;
+        }
+
+        Class<?> sourceClass = source.getClass();
+
+        return this.publicSources.contains(sourceClass.getName())
+            || ClassUtils.getAllSuperclasses(sourceClass).stream().anyMatch(this::isPublicClass)
+            || ClassUtils.getAllInterfaces(sourceClass).stream().anyMatch(this::isPublicClass);
+    }
+
+    private boolean isPublicClass(Class<?> sourceClass)
+    {
+        return this.publicSources.contains(sourceClass.getName());
+    }
+
+    /**
+     * @param user the user of a WebSocket session, {@code null} for the guest user
+     * @param reference the entity an event is about
+     * @return true if the user is allowed to view the entity
+     */
+    public boolean canView(DocumentReference user, EntityReference reference)
+    {
+        // The length of the serialized user makes the key unambiguous
+        String serializedUser = user != null ? this.serializer.serialize(user) : "";
+        String key = serializedUser.length() + ":" + serializedUser + this.serializer.serialize(reference);
+
+        Boolean allowed = this.decisions.get(key);
+        if (allowed == null) {
+            long checkedGeneration = getGeneration();
+            allowed = this.authorization.hasAccess(Right.VIEW, user, reference);
+
+            synchronized (this) {
+                // Don't cache a decision based on the rights before the invalidation
+                if (this.generation == checkedGeneration) {
+                    this.decisions.set(key, allowed);
+                }
+            }
+        }
+
+        return allowed;
+    }
+
+    /**
+     * Forget the decisions, when the rights or the groups change.
+     */
+    public synchronized void invalidate()
+    {
+        this.generation++;
+        this.decisions.removeAll();
+    }
+
+    private synchronized long getGeneration()
+    {
+        return this.generation;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.internal.event.XObjectAddedEvent;
+import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
+import com.xpn.xwiki.internal.event.XObjectUpdatedEvent;
+import com.xpn.xwiki.objects.BaseObjectReference;
+
+/**
+ * Invalidate the decisions cached by {@link WebSocketEventsAuthorization} when the rights (of a document, a space or a
+ * wiki) or the members of a group change.
+ *
+ * @version $Id$
+ */
+@Component
+@Named(WebSocketEventsAuthorizationListener.NAME)
+@Singleton
+public class WebSocketEventsAuthorizationListener extends AbstractEventListener
+{
+    /**
+     * The name of the listener.
+     */
+    public static final String NAME = "WebSocketEventsAuthorizationListener";
+
+    private static final List<String> CLASSES =
+        Arrays.asList("XWiki.XWikiRights", "XWiki.XWikiGlobalRights", "XWiki.XWikiGroups");
+
+    @Inject
+    private WebSocketEventsAuthorization authorization;
+
+    /**
+     * Default constructor.
+     */
+    public WebSocketEventsAuthorizationListener()
+    {
+        super(NAME, createEvents());
+    }
+
+    private static List<Event> createEvents()
+    {
+        List<Event> events = new ArrayList<>();
+        for (String className : CLASSES) {
+            EntityReference objects = BaseObjectReference.any(className);
+            events.add(new XObjectAddedEvent(objects));
+            events.add(new XObjectUpdatedEvent(objects));
+            events.add(new XObjectDeletedEvent(objects));
+        }
+
+        return events;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.authorization.invalidate();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration.OverflowPolicy;
+
+/**
+ * Execute the dispatch of the events to the WebSocket clients, either in the thread which fired the event or, when
+ * enabled in the configuration, in a dedicated pool of threads.
+ * <p>
+ * A dispatch is made of two steps: the preparation (filtering and serialization), which can run in parallel, and the
+ * sending, which is always executed in the order the events were fired. Each event gets a ticket when it's fired and
+ * the thread which completes the preparation of the next ticket to send sends it, followed by the next ones already
+ * prepared. The number of events dispatched asynchronously and not sent yet (waiting to be prepared, or prepared and
+ * waiting for the previous events) is limited, the events fired over the limit being handled by the overflow policy.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketEventsDispatcher.class)
+@Singleton
+public class WebSocketEventsDispatcher implements Initializable, Disposable
+{
+    private static final Runnable NOOP = () -> { };
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private ThreadPoolExecutor executor;
+
+    private OverflowPolicy overflowPolicy;
+
+    private int maxPending;
+
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The number of events dispatched and not sent yet.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong ticketCounter = new AtomicLong();
+
+    /**
+     * The sending steps of the prepared events, by ticket, waiting for the previous events to be sent.
+     */
+    private final Map<Long, Runnable> prepared = new ConcurrentHashMap<>();
+
+    /**
+     * The ticket of the next event to send.
+     */
+    private volatile long nextTicket;
+
+    /**
+     * Whether a thread is sending the prepared events.
+     */
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    /**
+     * The number of threads which fired an event over the limit and wait for it to be sent.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private volatile boolean disposed;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        if (this.configuration.isAsynchronousDispatch()) {
+            int threads = Math.max(1, this.configuration.getDispatchThreads());
+            this.maxPending = Math.max(1, this.configuration.getDispatchQueueSize());
+            // The queue of the executor is bounded by the number of pending events
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new BasicThreadFactory.Builder().namingPattern("XWiki Observation WebSocket dispatcher %d").daemon(true)
+                    .build(),
+                new ThreadPoolExecutor.AbortPolicy());
+            this.executor.allowCoreThreadTimeOut(true);
+
+            this.overflowPolicy = this.configuration.getDispatchOverflowPolicy();
+        }
+    }
+
+    /**
+     * @return true if the events are dispatched in dedicated threads
+     */
+    public boolean isAsynchronous()
+    {
+        return this.executor != null;
+    }
+
+    /**
+     * @param preparation the preparation step of the dispatch, returning the sending step
+     */
+    public void dispatch(Supplier<Runnable> preparation)
+    {
+        if (this.executor == null) {
+            preparation.get().run();
+        } else if (this.pending.incrementAndGet() > this.maxPending) {
+            this.overflowCount.incrementAndGet();
+
+            if (this.overflowPolicy == OverflowPolicy.DROP || this.executor.isShutdown()) {
+                this.pending.decrementAndGet();
+                this.droppedCount.incrementAndGet();
+            } else {
+                // Process the event in the thread which fired it, which waits for the previous events to be sent: the
+                // producer is slowed down instead of accumulating the events
+                long ticket = this.ticketCounter.getAndIncrement();
+                prepare(ticket, preparation);
+                awaitSent(ticket);
+            }
+        } else {
+            long ticket = this.ticketCounter.getAndIncrement();
+            try {
+                this.executor.execute(() -> prepare(ticket, preparation));
+            } catch (RejectedExecutionException e) {
+                // The dispatcher is disposed
+                this.overflowCount.incrementAndGet();
+                this.droppedCount.incrementAndGet();
+
+                // Don't block the following events
+                complete(ticket, NOOP);
+            }
+        }
+    }
+
+    private void prepare(long ticket, Supplier<Runnable> preparation)
+    {
+        Runnable sendingStep;
+        try {
+            sendingStep = preparation.get();
+        } catch (Exception e) {
+            this.logger.error("Failed to prepare the dispatch of an event", e);
+
+            // Don't block the following events
+            sendingStep = NOOP;
+        }
+
+        complete(ticket, sendingStep);
+    }
+
+    private void complete(long ticket, Runnable sendingStep)
+    {
+        this.prepared.put(ticket, sendingStep);
+
+        // Send the prepared events in order, unless another thread is already doing it
+        while (this.prepared.containsKey(this.nextTicket) && this.sending.compareAndSet(false, true)) {
+            try {
+                Runnable next;
+                while ((next = this.prepared.remove(this.nextTicket)) != null) {
+                    this.nextTicket++;
+                    this.pending.decrementAndGet();
+                    send(next);
+                }
+            } finally {
+                this.sending.set(false);
+            }
+
+            if (this.waiting.get() > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void awaitSent(long ticket)
+    {
+        this.waiting.incrementAndGet();
+        try {
+            synchronized (this) {
+                while (this.nextTicket <= ticket && !this.disposed) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.waiting.decrementAndGet();
+        }
+    }
+
+    private void send(Runnable sendingStep)
+    {
+        try {
+            sendingStep.run();
+        } catch (Exception e) {
+            this.logger.error("Failed to send an event", e);
+        }
+    }
+
+    /**
+     * @return the number of events dispatched asynchronously and not sent yet
+     */
+    public int getQueueSize()
+    {
+        return this.executor != null ? this.pending.get() : 0;
+    }
+
+    /**
+     * @return the number of events fired while too many events were waiting to be sent
+     */
+    public long getOverflowCount()
+    {
+        return this.overflowCount.get();
+    }
+
+    /**
+     * @return the number of events which were not dispatched because too many events were waiting to be sent
+     */
+    public long getDroppedCount()
+    {
+        return this.droppedCount.get();
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.executor != null) {
+            this.disposed = true;
+            this.executor.shutdownNow();
+
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -19,8 +19,7 @@
  */
 package org.xwiki.contrib.observation.websocket.internal;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.Map;
+import java.io.IOException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -30,13 +29,11 @@ import javax.websocket.EndpointConfig;
 import javax.websocket.MessageHandler;
 import javax.websocket.Session;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.websocket.AbstractXWikiEndpoint;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 /**
  * 
  * @version $Id$
@@ -52,58 +49,133 @@ public class WebSocketEventsEndpoint extends AbstractXWikiEndpoint
     @Inject
     private WebSocketEventsManager webSocketEventsManager;
 
+    @Inject
+    private WebSocketHeartbeat heartbeat;
+
+    @Inject
+    private WebSocketObservationMetrics metrics;
+
+    @Inject
+    private WebSocketMessageExecutor messageExecutor;
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    @Inject
+    private WebSocketSessionReleaser releaser;
+
     @Override
     public void onOpen(Session session, EndpointConfig config)
     {
         this.context.run(session, () -> {
             if (this.bridge.getCurrentUserReference() == null) {
-                close(session, CloseReason.CloseCodes.CANNOT_ACCEPT,
+                this.metrics.connectionRejected();
+                super.close(session, CloseReason.CloseCodes.CANNOT_ACCEPT,
                     "We don't accept connections from guest users. Please login first.");
+            } else if (!this.webSocketEventsManager.open(session)) {
+                this.metrics.connectionRejected();
+                // The session was not registered so there's nothing to dispose
+                super.close(session, CloseReason.CloseCodes.VIOLATED_POLICY,
+                    "Too many connections for this user (retry-after=60).");
             } else {
+                // The container rejects the bigger messages before buffering them
+                session.setMaxTextMessageBufferSize(this.configuration.getMessageMaxSize());
                 session.addMessageHandler(new MessageHandler.Whole<String>()
                 {
                     @Override
                     public void onMessage(String message)
                     {
-                        handleMessage(session, message);
+                        receive(session, message);
                     }
                 });
+                this.heartbeat.register(session);
+                this.metrics.connectionOpened(session);
             }
         });
 
     }
 
     /**
-     * Handles received messages.
+     * Parse a message received from the client, in the thread of the container, and schedule its handling.
      *
      * @param session the WebSocket session in which the message was received
      * @param message the received message
-     * @return the message to send back
      */
-    @SuppressWarnings("unchecked")
-    public String onMessage(Session session, String message)
+    private void receive(Session session, String message)
     {
-        ObjectMapper objectMapper = new ObjectMapper();
-        try {
-            Map<String, Object> messageReceived = (Map<String, Object>) objectMapper.readValue(message, Object.class);
-            String observationType = (String) messageReceived.get("type");
+        this.metrics.messageReceived();
 
-            if (observationType.contentEquals("addListener")) {
-                Map<String, Object> data = (Map<String, Object>) messageReceived.get("data");
-                webSocketEventsManager.addEvent(data, session);
+        InboundMessage inboundMessage;
+        try {
+            if (message.length() > this.configuration.getMessageMaxSize()) {
+                throw new IllegalArgumentException(String.format("The message is too big (%d characters)",
+                    message.length()));
             }
+            inboundMessage = InboundMessageParser.parse(message);
+        } catch (IOException | IllegalArgumentException e) {
+            this.metrics.messageRejected();
+            this.logger.warn("Rejected a message from the WebSocket session [{}]: [{}]", session.getId(),
+                ExceptionUtils.getRootCauseMessage(e));
 
-        } catch (JsonProcessingException | ClassNotFoundException | InstantiationException | IllegalAccessException
-            | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException e) {
-            logger.error("Failed to process the event", e);
+            return;
         }
 
-        return null;
+        if (!this.messageExecutor.execute(session,
+            () -> this.context.run(session, () -> onMessage(session, inboundMessage)))) {
+            this.metrics.messageRejected();
+            super.close(session, CloseReason.CloseCodes.TRY_AGAIN_LATER,
+                "Too many messages waiting to be handled (retry-after=10).");
+        }
+    }
+
+    /**
+     * Handles received messages.
+     *
+     * @param session the WebSocket session in which the message was received
+     * @param message the received message
+     */
+    void onMessage(Session session, InboundMessage message)
+    {
+        try {
+            switch (message.getType()) {
+                case ADD_LISTENER:
+                case ADD_LISTENERS:
+                case RESUME:
+                    // The failures of the listeners are acknowledged to the client
+                    this.webSocketEventsManager.addListeners(message.getListeners(), session);
+                    break;
+                case REMOVE_LISTENERS:
+                    this.webSocketEventsManager.removeEvents(message.getIds(), session);
+                    break;
+                default:
+                    this.webSocketEventsManager.configure(message.getOptions(), session);
+            }
+        } catch (RuntimeException e) {
+            // Most likely an invalid message from the client
+            this.logger.debug("Failed to handle the message [{}] of the WebSocket session [{}]", message.getType(),
+                session.getId(), e);
+        }
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason)
+    {
+        this.releaser.release(session);
+    }
+
+    @Override
+    public void onError(Session session, Throwable throwable)
+    {
+        this.logger.debug("Error in the WebSocket session [{}]", session.getId(), throwable);
+
+        this.releaser.release(session);
     }
 
     @Override
     public void close(Session session, CloseReason.CloseCode closeCode, String reasonPhrase)
     {
-        webSocketEventsManager.dispose(session);
+        this.releaser.release(session);
+
+        super.close(session, closeCode, reasonPhrase);
     }
 }
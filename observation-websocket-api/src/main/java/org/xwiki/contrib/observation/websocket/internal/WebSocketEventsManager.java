@@ -19,72 +19,193 @@
  */
 package org.xwiki.contrib.observation.websocket.internal;
 
-import java.lang.reflect.Constructor;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Parameter;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.websocket.Session;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.tuple.Triple;
 import org.slf4j.Logger;
+import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.observation.event.Event;
-import org.xwiki.properties.ConverterManager;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.RawValue;
 import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
+ * Dispatch the events to the WebSocket clients.
+ * <p>
+ * A single {@link EventListener} is registered in the {@link ObservationManager} for each event class the clients are
+ * interested in. The subscriptions sharing the same filter (same event class, same parameters and same conditions on
+ * the event source and data) are grouped so that the filter is evaluated only once for all of them. The groups are
+ * indexed by the wikis and spaces their conditions are limited to, so that an event is tested only against the groups
+ * which can match it.
+ * <p>
+ * The subscriptions can ask for the events to be conflated or rate limited (see {@link EventThrottle}). The throttle of
+ * a group is applied when the event is sent, before it's serialized for the group, so the conflated and suppressed
+ * events are never serialized.
+ * <p>
+ * The events are sent only to the users allowed to view the entity they are about (e.g. the modified document). The
+ * right is checked once per user for each event, whatever the number of sessions of the user, and the decisions are
+ * cached (see {@link WebSocketEventsAuthorization}).
+ * <p>
+ * The sessions are kept in a registry, by identifier, which limits the number of sessions of a user and the number of
+ * subscriptions of a session and of the whole server (see {@link ObservationSessionRegistry}). A subscription over the
+ * limits is rejected with an error in the acknowledgement.
+ * <p>
+ * Each event sent to the clients has a sequence number. The events of a given class are numbered and sent while holding
+ * the lock of the corresponding listener, so that they are recorded in the replay buffers and sent in the order of
+ * their sequence numbers.
+ *
  * @version $Id$
  */
 @Component(roles = WebSocketEventsManager.class)
 @Singleton
 public class WebSocketEventsManager
 {
-    static final String KEY_SESSION_LISTENERS = "xwiki.observation.listeners";
+    static final String KEY_SESSION = "xwiki.observation.session";
 
     static final String EVENTDATA = "eventData";
 
+    private static final String LISTENER_ID = "listenerId";
+
+    private static final String ID = "id";
+
+    private static final String SEQUENCE = "seq";
+
+    private static final String RESET = "reset";
+
+    private static final String COMPRESSION = "compression";
+
+    private static final String DEFLATE = "deflate";
+
+    private static final String SESSION_NOT_REGISTERED = "The WebSocket session is not registered";
+
+    private static final long BATCH_MAX_DELAY = 1000;
+
+    private static final int BATCH_MAX_EVENTS = 1000;
+
+    private static final int BATCH_MAX_SIZE = 1024 * 1024;
+
     @Inject
     private ObservationManager observation;
 
     @Inject
-    private ConverterManager converter;
+    private EventFilterFactory filterFactory;
+
+    @Inject
+    private WebSocketEventsDispatcher dispatcher;
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    @Inject
+    private WebSocketObservationScheduler scheduler;
+
+    @Inject
+    private WebSocketEventsSerializer serializer;
+
+    @Inject
+    private WebSocketObservationMetrics metrics;
+
+    @Inject
+    private WebSocketEventsAuthorization authorization;
+
+    @Inject
+    private DocumentAccessBridge bridge;
+
+    /**
+     * The releaser (which depends on this component) is only needed when a message cannot be sent.
+     */
+    @Inject
+    private Provider<WebSocketSessionReleaser> releaserProvider;
 
     @Inject
     private Logger logger;
 
     private final AtomicLong idCounter = new AtomicLong();
 
+    private final AtomicLong subscriptionCounter = new AtomicLong();
+
+    /**
+     * Start from the current time so that the sequence numbers of a restarted server are greater than the ones received
+     * by the clients before the restart (which makes them ask for events the new buffers don't have).
+     */
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final ConcurrentMap<Class<?>, WebSocketEventListener> listeners = new ConcurrentHashMap<>();
+
+    private final ObservationSessionRegistry registry = new ObservationSessionRegistry();
+
+    /**
+     * The listener registered in the {@link ObservationManager} for a given event class.
+     */
     final class WebSocketEventListener implements EventListener
     {
         private final String name;
 
         private final List<Event> events;
 
-        private final Object listenerData;
+        /**
+         * True if the registered event matches all the events of the class, in which case the filters don't need to be
+         * registered in the {@link ObservationManager}.
+         */
+        private final boolean matchAll;
+
+        private final ConcurrentMap<Triple<Map<String, Object>, Object, Object>, EventSubscriptionGroup> groups =
+            new ConcurrentHashMap<>();
+
+        private final EventSubscriptionIndex index = new EventSubscriptionIndex();
+
+        /**
+         * True once the listener is registered in the {@link ObservationManager}, which is done when the first
+         * subscription is added.
+         */
+        private boolean registered;
 
-        private final Session session;
+        /**
+         * True once the last subscription was removed, the listener being replaced by a new one for the next
+         * subscriptions.
+         */
+        private boolean disposed;
 
-        private WebSocketEventListener(Event event, Object listenerData, Session session)
+        private WebSocketEventListener(Class<?> eventClass, Event filter)
         {
             this.name = "websocket-" + idCounter.incrementAndGet();
-            this.events = Collections.singletonList(event);
 
-            this.listenerData = listenerData;
+            // By convention the default constructor of an event creates an event matching all the events of its class
+            Event matchAllEvent = null;
+            try {
+                matchAllEvent = (Event) eventClass.getConstructor().newInstance();
+            } catch (Exception e) {
+                logger.debug("No default constructor for event [{}], the filters will be registered instead",
+                    eventClass.getName());
+            }
 
-            this.session = session;
+            this.matchAll = matchAllEvent != null;
+            this.events = new CopyOnWriteArrayList<>(Collections.singletonList(this.matchAll ? matchAllEvent : filter));
         }
 
         @Override
@@ -102,17 +223,370 @@ public class WebSocketEventsManager
         @Override
         public void onEvent(Event event, Object source, Object data)
         {
+            if (authorization.getReference(source) == null && !authorization.isPublic(source)) {
+                // There's no right to check for the source so nobody is allowed to receive the event
+                return;
+            }
+
+            if (dispatcher.isAsynchronous()) {
+                // The source and data might be modified by the thread which fired the event
+                Object capturedSource = capture(source);
+                Object capturedData = capture(data);
+                dispatcher.dispatch(() -> prepare(event, capturedSource, capturedData));
+            } else {
+                dispatcher.dispatch(() -> prepare(event, source, data));
+            }
+        }
+
+        private Runnable prepare(Event event, Object source, Object data)
+        {
+            List<EventSubscriptionGroup> matched = match(event, new EventPredicate.PropertyValues(source, data));
+            if (matched.isEmpty()) {
+                return () -> { };
+            }
+
+            // Serialize the event only once, and only if at least one group is interested. The throttled groups might
+            // not send the event so it's serialized for them only if needed, when it's sent.
+            EventProjection projection = getProjection(
+                matched.stream().filter(group -> group.getThrottle() == null).collect(Collectors.toList()));
+            WebSocketEventFrame frame = null;
+            if (projection != null) {
+                frame = serialize(event, source, data, projection);
+                if (frame == null) {
+                    return () -> { };
+                }
+            }
+
+            WebSocketEventFrame preparedFrame = frame;
+            return () -> send(event, source, data, preparedFrame);
+        }
+
+        /**
+         * @return the groups matching the event, among the ones indexed for the entity referenced by the event
+         */
+        private List<EventSubscriptionGroup> match(Event event, EventPredicate.PropertyValues values)
+        {
+            List<EventSubscriptionGroup> matched = new ArrayList<>();
+            for (EventSubscriptionGroup group : this.index.getCandidates(values)) {
+                if (group.matches(event, values)) {
+                    matched.add(group);
+                }
+            }
+
+            return matched;
+        }
+
+        /**
+         * @return the union of the projections of the given groups, {@code null} if there is none
+         */
+        private EventProjection getProjection(List<EventSubscriptionGroup> matched)
+        {
+            EventProjection projection = null;
+            for (EventSubscriptionGroup group : matched) {
+                // The projection is null until the first subscription is added to the group
+                EventProjection groupProjection = group.getProjection();
+                if (groupProjection != null) {
+                    projection = projection != null ? projection.union(groupProjection) : groupProjection;
+                }
+            }
+
+            return projection;
+        }
+
+        private WebSocketEventFrame serialize(Event event, Object source, Object data, EventProjection projection)
+        {
+            long start = System.nanoTime();
             try {
-                WebSocketEventsManager.this.onEvent(event, source, data, this.listenerData, this.session);
-            } catch (JsonProcessingException e) {
-                logger.error("Failed to send the event asa websocket message", e);
+                WebSocketEventFrame frame = serializer.serialize(event, source, data, projection);
+                metrics.eventSerialized(System.nanoTime() - start);
+
+                return frame;
+            } catch (IOException e) {
+                logger.error("Failed to send the event as a websocket message", e);
+
+                return null;
+            }
+        }
+
+        private synchronized void send(Event event, Object source, Object data, WebSocketEventFrame preparedFrame)
+        {
+            // The groups might have changed since the event was serialized (when the dispatch is asynchronous)
+            EventPredicate.PropertyValues values = new EventPredicate.PropertyValues(source, data);
+            long now = System.currentTimeMillis();
+            List<EventSubscriptionGroup> admitted = new ArrayList<>();
+            for (EventSubscriptionGroup group : match(event, values)) {
+                if (throttle(group, event, source, data, values, now)) {
+                    admitted.add(group);
+                }
+            }
+
+            send(event, source, data, preparedFrame, admitted, now);
+        }
+
+        private void send(Event event, Object source, Object data, WebSocketEventFrame preparedFrame,
+            List<EventSubscriptionGroup> groups, long now)
+        {
+            EventProjection projection = getProjection(groups);
+            if (projection == null) {
+                return;
+            }
+
+            // A subscription needing more parts of the event might have been added in the meantime, and the event is
+            // not serialized yet if only throttled groups matched it
+            WebSocketEventFrame frame = preparedFrame;
+            if (frame == null || !frame.getProjection().includes(projection)) {
+                frame = serialize(event, source, data, projection);
+                if (frame == null) {
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+            frame.setSequence(sequence.incrementAndGet());
+            frame.setReference(authorization.getReference(source));
+
+            // The sessions of the same user share the decision
+            Map<DocumentReference, Boolean> decisions = new HashMap<>();
+            for (EventSubscriptionGroup group : groups) {
+                group.record(frame, now);
+
+                for (EventSubscription subscription : group.getSubscriptions()) {
+                    if (canView(frame, subscription.getSession().getUser(), decisions)) {
+                        WebSocketEventsManager.this.send(frame, subscription);
+                    }
+                }
+            }
+            metrics.eventDispatched(System.nanoTime() - start);
+        }
+
+        /**
+         * @return true if the event has to be sent now to the subscriptions of the group, false if it's held until the
+         *         end of a conflation window or suppressed by the rate limiting
+         */
+        private boolean throttle(EventSubscriptionGroup group, Event event, Object source, Object data,
+            EventPredicate.PropertyValues values, long now)
+        {
+            EventThrottle throttle = group.getThrottle();
+            if (throttle == null) {
+                return true;
+            }
+
+            if (throttle.isConflating()) {
+                Object key = throttle.getKey(values);
+                // The source and data are kept after the event was fired
+                if (throttle.hold(key, new EventThrottle.HeldEvent(event, capture(source), capture(data)))) {
+                    metrics.eventConflated();
+
+                    return false;
+                }
+                if (throttle.openWindow(key)) {
+                    scheduler.schedule(() -> closeWindow(group, key), throttle.getConflationWindow(),
+                        TimeUnit.MILLISECONDS);
+                }
+            }
+
+            return acquire(group, now);
+        }
+
+        private boolean acquire(EventSubscriptionGroup group, long now)
+        {
+            EventThrottle throttle = group.getThrottle();
+            if (throttle.acquire(now)) {
+                return true;
+            }
+
+            metrics.eventSuppressed();
+            if (throttle.getSuppressed() == 1) {
+                // Tell the clients how many events they missed at the end of the period
+                scheduler.schedule(() -> reportSuppressed(group), throttle.getPeriodEnd() - now,
+                    TimeUnit.MILLISECONDS);
+            }
+
+            return false;
+        }
+
+        private synchronized void closeWindow(EventSubscriptionGroup group, Object key)
+        {
+            EventThrottle.HeldEvent held = group.getThrottle().closeWindow(key);
+            if (held != null) {
+                // Send the latest event of the window, which opens a new window
+                scheduler.schedule(() -> closeWindow(group, key), group.getThrottle().getConflationWindow(),
+                    TimeUnit.MILLISECONDS);
+
+                long now = System.currentTimeMillis();
+                if (!group.isEmpty() && acquire(group, now)) {
+                    send(held.getEvent(), held.getSource(), held.getData(), null, Collections.singletonList(group),
+                        now);
+                }
+            }
+        }
+
+        private synchronized void reportSuppressed(EventSubscriptionGroup group)
+        {
+            int count = group.getThrottle().takeSuppressed();
+            if (count > 0) {
+                for (EventSubscription subscription : group.getSubscriptions()) {
+                    sendSuppressed(subscription, count);
+                }
             }
         }
+
+        private EventSubscriptionGroup getGroup(Triple<Map<String, Object>, Object, Object> filterKey)
+        {
+            return this.groups.get(filterKey);
+        }
+
+        /**
+         * @param subscription the subscription to add
+         * @param filter the filter of the subscription
+         * @param predicate the conditions of the subscription on the event source and data
+         * @param throttle the conflation and rate limiting of the events, {@code null} to send all the events
+         * @param lastSequence the sequence number of the last event received by the client for this subscription
+         *            before it reconnected, {@code null} for a new subscription
+         * @return false if the client missed events which cannot be replayed, {@code null} if the listener was
+         *         disposed and the subscription has to be added to a new listener
+         */
+        private synchronized Boolean add(EventSubscription subscription, Event filter, EventPredicate predicate,
+            EventThrottle throttle, Long lastSequence)
+        {
+            if (this.disposed) {
+                return null;
+            }
+            if (!this.registered) {
+                observation.addListener(this);
+                this.registered = true;
+            }
+
+            EventSubscriptionGroup group = this.groups.get(subscription.getFilterKey());
+            if (group == null) {
+                int replayMaxEvents = configuration.getReplayMaxEvents();
+                group = new EventSubscriptionGroup(filter, predicate, throttle, replayMaxEvents > 0
+                    ? new EventReplayBuffer(replayMaxEvents, configuration.getReplayMaxAge(), sequence.get()) : null);
+                this.groups.put(subscription.getFilterKey(), group);
+                this.index.add(group);
+                if (!this.matchAll && !this.events.contains(filter)) {
+                    this.events.add(filter);
+                    observation.addEvent(this.name, filter);
+                }
+            }
+            group.add(subscription);
+
+            if (lastSequence != null) {
+                // Send the events missed while the client was disconnected, before the new ones
+                List<WebSocketEventFrame> missed =
+                    group.getEventsAfter(lastSequence, subscription.getProjection(), System.currentTimeMillis());
+                if (missed == null) {
+                    return Boolean.FALSE;
+                }
+                // The missed events are often about the same entities
+                Map<EntityReference, Boolean> decisions = new HashMap<>();
+                DocumentReference user = subscription.getSession().getUser();
+                for (WebSocketEventFrame frame : missed) {
+                    if (frame.getReference() == null || decisions.computeIfAbsent(frame.getReference(),
+                        reference -> authorization.canView(user, reference))) {
+                        WebSocketEventsManager.this.send(frame, subscription);
+                    }
+                }
+            }
+
+            return Boolean.TRUE;
+        }
+
+        /**
+         * @param subscription the subscription to remove
+         * @return the identifier of the idle period of the group, if the group is kept to record the events for the
+         *         clients which reconnect, {@code null} otherwise
+         */
+        private synchronized Long remove(EventSubscription subscription)
+        {
+            EventSubscriptionGroup group = this.groups.get(subscription.getFilterKey());
+            if (group != null) {
+                group.remove(subscription);
+
+                if (group.isEmpty()) {
+                    if (group.isReplayable()) {
+                        return group.idle();
+                    }
+
+                    removeGroup(subscription.getFilterKey(), group);
+                }
+            }
+
+            return null;
+        }
+
+        private synchronized void expire(Triple<Map<String, Object>, Object, Object> filterKey, long idleGeneration)
+        {
+            EventSubscriptionGroup group = this.groups.get(filterKey);
+            if (group != null && group.isIdleSince(idleGeneration)) {
+                removeGroup(filterKey, group);
+            }
+        }
+
+        private void removeGroup(Triple<Map<String, Object>, Object, Object> filterKey, EventSubscriptionGroup group)
+        {
+            this.groups.remove(filterKey);
+            this.index.remove(group);
+
+            // The groups with the same parameters but different conditions have equivalent filters
+            if (!this.matchAll && this.events.size() > 1
+                && this.groups.values().stream().noneMatch(other -> other.getFilter().equals(group.getFilter()))) {
+                this.events.remove(group.getFilter());
+                observation.removeEvent(this.name, group.getFilter());
+            }
+        }
+
+        /**
+         * Dispose the listener if it has no subscriptions left and doesn't record events anymore.
+         *
+         * @return true if the listener was disposed and has to be unregistered from the {@link ObservationManager}
+         */
+        private synchronized boolean disposeIfEmpty()
+        {
+            if (this.disposed || !this.groups.isEmpty()) {
+                return false;
+            }
+            this.disposed = true;
+
+            return true;
+        }
+
+        private int getSubscriptionCount()
+        {
+            return this.groups.values().stream().mapToInt(group -> group.getSubscriptions().size()).sum();
+        }
+
+        private int getLeakedSubscriptionCount()
+        {
+            return (int) this.groups.values().stream().flatMap(group -> group.getSubscriptions().stream())
+                .filter(subscription -> !subscription.getSession().getSession().isOpen()).count();
+        }
     }
 
     /**
      * @param message the addEvent message received from the client
      * @param session the WebSocket sessions
+     * @return the identifier of the subscription, to use to remove it
+     * @throws ClassNotFoundException when failing to resolve the event
+     * @throws InstantiationException when failing to resolve the event
+     * @throws IllegalAccessException when failing to resolve the event
+     * @throws IllegalArgumentException when failing to resolve the event
+     * @throws InvocationTargetException when failing to resolve the event
+     * @throws NoSuchMethodException when failing to resolve the event
+     * @throws SecurityException when failing to resolve the event
+     * @throws JsonProcessingException when failing to serialize the listener data
+     */
+    public long addEvent(Map<String, Object> message, Session session)
+        throws ClassNotFoundException, InstantiationException, IllegalAccessException, IllegalArgumentException,
+        InvocationTargetException, NoSuchMethodException, SecurityException, JsonProcessingException
+    {
+        return addEvent(ListenerRequest.fromMap(message), session);
+    }
+
+    /**
+     * @param request the listener to register, as received from the client
+     * @param session the WebSocket sessions
+     * @return the identifier of the subscription, to use to remove it
      * @throws ClassNotFoundException when failing to resolve the event
      * @throws InstantiationException when failing to resolve the event
      * @throws IllegalAccessException when failing to resolve the event
@@ -120,73 +594,315 @@ public class WebSocketEventsManager
      * @throws InvocationTargetException when failing to resolve the event
      * @throws NoSuchMethodException when failing to resolve the event
      * @throws SecurityException when failing to resolve the event
+     * @throws JsonProcessingException when failing to serialize the listener data
      */
-    public void addEvent(Map<String, Object> message, Session session)
+    long addEvent(ListenerRequest request, Session session)
         throws ClassNotFoundException, InstantiationException, IllegalAccessException, IllegalArgumentException,
-        InvocationTargetException, NoSuchMethodException, SecurityException
+        InvocationTargetException, NoSuchMethodException, SecurityException, JsonProcessingException
+    {
+        return (long) subscribe(request, session).get(ID);
+    }
+
+    /**
+     * @return the acknowledgement of the subscription: its identifier, the current sequence number and whether the
+     *         client missed events which cannot be replayed
+     */
+    private Map<String, Object> subscribe(ListenerRequest request, Session session)
+        throws ClassNotFoundException, InstantiationException, IllegalAccessException, InvocationTargetException,
+        NoSuchMethodException, JsonProcessingException
     {
-        // Parse the message
-        Map<String, Object> eventType = (Map) message.get("eventType");
-        Class<?> eventClass =
-            Class.forName((String) eventType.get("id"), true, Thread.currentThread().getContextClassLoader());
-        Map<String, Object> params = (Map) eventType.get("params");
-        Event event = null;
-        for (Constructor constructor : eventClass.getConstructors()) {
-            if (constructor.getParameterCount() == params.size()) {
-                Object[] parameters = converterParameters(constructor, params);
-
-                if (parameters != null) {
-                    event = (Event) constructor.newInstance(parameters);
+        if (request.getEventType() == null) {
+            throw new IllegalArgumentException("The listener has no event type");
+        }
+        // The sessions are registered when they are opened, a session disposed already doesn't get new subscriptions
+        ObservationSession observationSession = getRegisteredSession(session);
+        if (observationSession == null) {
+            throw new IllegalStateException(SESSION_NOT_REGISTERED);
+        }
+
+        Map<String, Object> params = request.getParams();
+
+        // The parts of the events the client needs, the same projections being shared by the subscriptions
+        EventProjection projection = EventProjection.parse(request.getProjection());
+
+        EventConstructor constructor = this.filterFactory.getConstructor(request.getEventType(), params.keySet());
+        Class<?> eventClass = constructor.getEventClass();
+
+        // The conditions on the event source and data, and the throttle options
+        Object where = request.getWhere();
+        Object conflate = request.getConflate();
+        Object rateLimit = request.getRateLimit();
+        Map<String, Object> throttleOptions = new HashMap<>();
+        throttleOptions.put(EventThrottle.CONFLATE, conflate);
+        throttleOptions.put(EventThrottle.RATE_LIMIT, rateLimit);
+        Triple<Map<String, Object>, Object, Object> filterKey =
+            Triple.of(new HashMap<>(params), where, throttleOptions);
+
+        // Create the filter, unless another client already did
+        WebSocketEventListener listener = this.listeners.get(eventClass);
+        EventSubscriptionGroup group = listener != null ? listener.getGroup(filterKey) : null;
+        Event filter = group != null ? group.getFilter() : this.filterFactory.createFilter(constructor, params);
+        EventPredicate predicate = group != null ? group.getPredicate() : this.filterFactory.createPredicate(where);
+        EventThrottle throttle = group != null ? group.getThrottle()
+            : EventThrottle.create(conflate, rateLimit, this.filterFactory::createProperty);
+
+        // Get the custom data (it's the same for all the events so we serialize it only once)
+        Object listenerData = request.getEventData();
+
+        EventSubscription subscription = new EventSubscription(this.subscriptionCounter.incrementAndGet(), eventClass,
+            filterKey, this.serializer.serializeListenerData(listenerData),
+            this.serializer.serializeBinaryListenerData(listenerData), projection, observationSession,
+            request.isHighPriority());
+
+        // A client which reconnects gives the sequence number of the last event it received for the subscription
+        Long lastSequence = request.getSequence();
+
+        try {
+            this.registry.acquireSubscription(observationSession, this.configuration.getMaxSubscriptionsPerSession(),
+                this.configuration.getMaxSubscriptions());
+        } catch (IllegalStateException e) {
+            this.metrics.subscriptionRejected();
+
+            throw e;
+        }
+
+        // Register the subscription
+        boolean complete;
+        boolean added = false;
+        try {
+            complete = addSubscription(eventClass, filter, subscription, predicate, throttle, lastSequence);
+
+            // Remember the subscription in the session
+            observationSession.getSubscriptions().put(subscription.getId(), subscription);
+            added = true;
+        } finally {
+            if (!added) {
+                removeSubscription(subscription);
+                this.registry.releaseSubscriptions(1);
+            }
+        }
+
+        // The session might have been disposed in the meantime, without seeing the new subscription
+        if (getRegisteredSession(session) != observationSession) {
+            if (observationSession.getSubscriptions().remove(subscription.getId()) != null) {
+                removeSubscription(subscription);
+                this.registry.releaseSubscriptions(1);
+            }
+
+            throw new IllegalStateException(SESSION_NOT_REGISTERED);
+        }
+
+        Map<String, Object> acknowledgement = new LinkedHashMap<>();
+        acknowledgement.put(ID, subscription.getId());
+        acknowledgement.put(SEQUENCE, this.sequence.get());
+        if (!complete) {
+            acknowledgement.put(RESET, true);
+        }
+
+        return acknowledgement;
+    }
+
+    private boolean addSubscription(Class<?> eventClass, Event filter, EventSubscription subscription,
+        EventPredicate predicate, EventThrottle throttle, Long lastSequence)
+    {
+        // The listener registers itself in the ObservationManager and replays the missed events under its own lock,
+        // which also orders them before the new events, rather than while holding a lock of the map
+        while (true) {
+            WebSocketEventListener listener = this.listeners.get(eventClass);
+            if (listener == null) {
+                WebSocketEventListener created = new WebSocketEventListener(eventClass, filter);
+                listener = this.listeners.putIfAbsent(eventClass, created);
+                if (listener == null) {
+                    listener = created;
                 }
             }
+
+            Boolean complete = listener.add(subscription, filter, predicate, throttle, lastSequence);
+            if (complete != null) {
+                return complete;
+            }
+
+            // The last subscription of the listener was removed in the meantime
+            this.listeners.remove(eventClass, listener);
         }
+    }
 
-        if (event == null) {
-            throw new NoSuchMethodException("No constructor could be found for parameters " + params);
+    /**
+     * Add several subscriptions at once and acknowledge them with an {@code ack} message mapping the client listener
+     * identifiers to the subscription identifiers (or to the reason why the subscription failed).
+     * <p>
+     * The subscriptions of a client which reconnects (i.e. a {@code resume} message) have the sequence number of the
+     * last event received by the client: the events missed in the meantime are sent first, or a {@code reset} message
+     * lists the subscriptions for which some events cannot be replayed.
+     *
+     * @param messages the subscriptions of the addListeners message received from the client
+     * @param session the WebSocket session
+     */
+    public void addEvents(List<Map<String, Object>> messages, Session session)
+    {
+        addListeners(messages.stream().map(ListenerRequest::fromMap).collect(Collectors.toList()), session);
+    }
+
+    /**
+     * Add several subscriptions at once and acknowledge them with an {@code ack} message, as
+     * {@link #addEvents(List, Session)} does.
+     *
+     * @param requests the listeners to register, as received from the client
+     * @param session the WebSocket session
+     */
+    void addListeners(List<ListenerRequest> requests, Session session)
+    {
+        ObservationSession observationSession = getRegisteredSession(session);
+        if (observationSession == null) {
+            this.logger.debug("Ignored the listeners of the WebSocket session [{}] which is not registered",
+                session.getId());
+
+            return;
         }
 
-        // Get the custom date
-        Object listenerData = message.get(EVENTDATA);
+        List<Map<String, Object>> acknowledgements = new ArrayList<>(requests.size());
+        List<Object> resets = new ArrayList<>();
+        for (ListenerRequest request : requests) {
+            Map<String, Object> acknowledgement = new LinkedHashMap<>();
+            acknowledgement.put(LISTENER_ID, request.getListenerId());
+            try {
+                acknowledgement.putAll(subscribe(request, session));
+                if (acknowledgement.remove(RESET) != null) {
+                    resets.add(request.getListenerId());
+                }
+            } catch (Exception e) {
+                this.logger.debug("Failed to add the listener [{}]", request, e);
 
-        // Create the listener
-        WebSocketEventListener listener = new WebSocketEventListener(event, listenerData, session);
+                acknowledgement.put("error", ExceptionUtils.getRootCauseMessage(e));
+            }
+            acknowledgements.add(acknowledgement);
+        }
 
-        // Register the listener
-        this.observation.addListener(listener);
+        // The acknowledgement of the listeners of a client which reconnects is sent after the missed events, the other
+        // acknowledgements don't have to wait for the events already queued
+        boolean priority = requests.stream().allMatch(request -> request.getSequence() == null);
+        send(observationSession, "ack", acknowledgements, priority);
+        if (!resets.isEmpty()) {
+            send(observationSession, RESET, resets, priority);
+        }
+    }
+
+    /**
+     * @param ids the identifiers of the subscriptions to remove, as returned by {@link #addEvent(Map, Session)}
+     * @param session the WebSocket session
+     */
+    public void removeEvents(List<? extends Number> ids, Session session)
+    {
+        ObservationSession observationSession = getRegisteredSession(session);
 
-        // Rembember the registered listener in the session
-        Map<String, EventListener> listeners;
-        synchronized (session) {
-            listeners = (Map<String, EventListener>) session.getUserProperties().get(KEY_SESSION_LISTENERS);
-            if (listeners == null) {
-                listeners = new ConcurrentHashMap<>();
-                session.getUserProperties().put(KEY_SESSION_LISTENERS, listeners);
+        if (observationSession != null) {
+            for (Number id : ids) {
+                EventSubscription subscription = observationSession.getSubscriptions().remove(id.longValue());
+                // Unknown identifiers are ignored, the subscription might have been removed already
+                if (subscription != null) {
+                    removeSubscription(subscription);
+                    this.registry.releaseSubscriptions(1);
+                }
             }
         }
-        listeners.put(listener.getName(), listener);
     }
 
-    private Object[] converterParameters(Constructor constructor, Map<String, Object> params)
+    /**
+     * @param message the configure message received from the client
+     * @param session the WebSocket session
+     */
+    public void configure(Map<String, Object> message, Session session)
     {
-        Parameter[] constructorParameters = constructor.getParameters();
+        ObservationSession observationSession = getRegisteredSession(session);
+        if (observationSession == null) {
+            this.logger.debug("Ignored the configuration of the WebSocket session [{}] which is not registered",
+                session.getId());
 
-        Object[] parameters = new Object[constructorParameters.length];
+            return;
+        }
 
-        for (int i = 0; i < constructorParameters.length; ++i) {
-            Parameter constructorParameter = constructorParameters[i];
-            String name = constructorParameter.getName();
+        if (message.containsKey("encoding")) {
+            observationSession.setEncoding(
+                "smile".equals(message.get("encoding")) ? ObservationSession.Encoding.SMILE
+                    : ObservationSession.Encoding.JSON);
+        }
 
-            // Return null if the provided parameters names are not the expected ones
-            if (!params.containsKey(name)) {
-                return null;
+        if (message.containsKey("batch")) {
+            Map<String, Object> batch = (Map) message.get("batch");
+            if (batch == null) {
+                observationSession.setBatching(null);
+            } else {
+                observationSession.setBatching(new ObservationSession.Batching(
+                    getLimitedNumber(batch, "delay", 50, BATCH_MAX_DELAY),
+                    (int) getLimitedNumber(batch, "maxEvents", 100, BATCH_MAX_EVENTS),
+                    (int) getLimitedNumber(batch, "maxSize", 64 * 1024, BATCH_MAX_SIZE)));
             }
+        }
+    }
+
+    private long getLimitedNumber(Map<String, Object> map, String key, long defaultValue, long max)
+    {
+        Object value = map.get(key);
+
+        return value instanceof Number ? Math.max(1, Math.min(((Number) value).longValue(), max)) : defaultValue;
+    }
+
+    /**
+     * Register a new WebSocket session, in the context of the user who opens it. When the client asks for compressed
+     * events, the session starts with a {@code compression} message telling whether the events are compressed
+     * ({@code "deflate"}) or not ({@code null}, e.g. when the compression is disabled on the server).
+     *
+     * @param session the WebSocket session
+     * @return {@code true} if the session was registered, {@code false} if it has to be rejected because its user has
+     *         too many sessions already
+     */
+    public boolean open(Session session)
+    {
+        // The messages are handled in the context of the user who opened the session
+        DocumentReference user = this.bridge.getCurrentUserReference();
+        boolean compressionRequested = isCompressionRequested(session);
+        boolean compressed = compressionRequested && this.configuration.getCompressionLevel() > 0;
 
-            Object value = params.get(name);
+        ObservationSession registered = this.registry.register(user, this.configuration.getMaxSessionsPerUser(), id -> {
+            ObservationSession observationSession = new ObservationSession(session,
+                this.configuration.getSessionQueueMaxMessages(), this.configuration.getSessionQueueMaxSize(),
+                this.configuration.getSessionQueuePriorityBurst(), this.configuration.getSlowClientPolicy(),
+                this.scheduler, this.metrics, this.logger, () -> this.releaserProvider.get().release(session));
+            observationSession.setCompressed(compressed);
+            observationSession.setUser(user);
+            session.getUserProperties().put(KEY_SESSION, id);
 
-            parameters[i] = this.converter.convert(constructorParameter.getParameterizedType(), value);
+            return observationSession;
+        });
+        if (registered == null) {
+            return false;
         }
 
-        return parameters;
+        if (compressionRequested) {
+            // Sent before any event so that the client knows how to read the binary messages
+            send(registered, COMPRESSION, compressed ? DEFLATE : null, true);
+        }
+
+        return true;
+    }
+
+    /**
+     * @param session a WebSocket session
+     * @return the state associated with the session, {@code null} if the session is not registered
+     */
+    ObservationSession getRegisteredSession(Session session)
+    {
+        Long id = (Long) session.getUserProperties().get(KEY_SESSION);
+
+        return id != null ? this.registry.get(id) : null;
+    }
+
+    private boolean isCompressionRequested(Session session)
+    {
+        // The client asks for compression in the handshake request, when it supports it
+        List<String> compression = session.getRequestParameterMap().get(COMPRESSION);
+
+        return compression != null && compression.contains(DEFLATE);
     }
 
     /**
@@ -194,78 +910,168 @@ public class WebSocketEventsManager
      */
     public void dispose(Session session)
     {
-        // Unregister the listener associated to the session
-        Map<String, EventListener> listeners = (Map) session.getUserProperties().get(KEY_SESSION_LISTENERS);
+        Long id = (Long) session.getUserProperties().remove(KEY_SESSION);
+        ObservationSession observationSession = id != null ? this.registry.unregister(id) : null;
+
+        if (observationSession != null) {
+            // Unregister the subscriptions associated to the session (a subscription added concurrently is released
+            // either here or by the thread which adds it)
+            Map<Long, EventSubscription> subscriptions = observationSession.getSubscriptions();
+            for (Long subscriptionId : subscriptions.keySet()) {
+                EventSubscription subscription = subscriptions.remove(subscriptionId);
+                if (subscription != null) {
+                    removeSubscription(subscription);
+                    this.registry.releaseSubscriptions(1);
+                }
+            }
 
-        if (listeners != null) {
-            listeners.values().forEach(l -> this.observation.removeListener(l.getName()));
+            // Release the messages waiting to be sent
+            observationSession.dispose();
         }
     }
 
-    private ObjectMapper createMapper()
+    private void removeSubscription(EventSubscription subscription)
     {
-        ObjectMapper mapper = new ObjectMapper();
-
-        // Provide custom serializers for problematic classes
-        // TODO: find a more generic and/or extensible way to deal with this kind of issues
-        SimpleModule module = new SimpleModule();
-        module.addSerializer(XWikiDocument.class, new XWikiDocumentSerializer());
-        module.addSerializer(XWikiContext.class, new XWikiContextSerializer());
-        mapper.registerModule(module);
+        WebSocketEventListener listener = this.listeners.get(subscription.getEventClass());
+        if (listener != null) {
+            Long idleGeneration = listener.remove(subscription);
+            if (idleGeneration != null) {
+                // Keep recording the events for the clients which reconnect
+                this.scheduler.schedule(
+                    () -> expire(subscription.getEventClass(), subscription.getFilterKey(), idleGeneration),
+                    this.configuration.getReplayMaxAge(), TimeUnit.MILLISECONDS);
+            }
 
-        return mapper;
+            unregisterIfEmpty(subscription.getEventClass(), listener);
+        }
     }
 
-    private void onEvent(Event event, Object source, Object data, Object listenerData, Session session)
-        throws JsonProcessingException
+    private void expire(Class<?> eventClass, Triple<Map<String, Object>, Object, Object> filterKey, long idleGeneration)
     {
-        StringBuilder builder = new StringBuilder();
+        WebSocketEventListener listener = this.listeners.get(eventClass);
+        if (listener != null) {
+            listener.expire(filterKey, idleGeneration);
 
-        builder.append('{');
+            unregisterIfEmpty(eventClass, listener);
+        }
+    }
 
-        builder.append("\"type\" : \"event\",");
+    private void unregisterIfEmpty(Class<?> eventClass, WebSocketEventListener listener)
+    {
+        // Stop listening to events nobody is interested in anymore
+        if (listener.disposeIfEmpty()) {
+            this.listeners.remove(eventClass, listener);
+            this.observation.removeListener(listener.getName());
+        }
+    }
 
-        builder.append("\"data\" : {");
+    /**
+     * @return the number of open sessions
+     */
+    public int getSessionCount()
+    {
+        return this.registry.getSessionCount();
+    }
 
-        ObjectMapper mapper = createMapper();
+    /**
+     * @return the number of messages waiting to be sent to the clients which have some, by WebSocket session
+     *         identifier
+     */
+    public Map<String, Integer> getSessionQueueLengths()
+    {
+        Map<String, Integer> lengths = new HashMap<>();
+        for (ObservationSession observationSession : this.registry.getSessions()) {
+            int length = observationSession.getQueueLength();
+            if (length > 0) {
+                lengths.put(observationSession.getSession().getId(), length);
+            }
+        }
 
-        // Serialize Event
-        builder.append("\"event\":");
-        builder.append(mapper.writeValueAsString(event));
+        return lengths;
+    }
 
-        // Serialize source
-        try {
-            String json = mapper.writeValueAsString(source);
-            builder.append(',');
-            builder.append("\"source\":");
-            builder.append(json);
-        } catch (Exception e) {
-            this.logger.warn("Failed to serialize the source of event [{}]", event.toString(), e);
+    /**
+     * @return the number of messages dropped because the clients were too slow, for the clients which dropped some, by
+     *         WebSocket session identifier
+     */
+    public Map<String, Long> getSessionDroppedMessageCounts()
+    {
+        Map<String, Long> counts = new HashMap<>();
+        for (ObservationSession observationSession : this.registry.getSessions()) {
+            long count = observationSession.getDroppedCount();
+            if (count > 0) {
+                counts.put(observationSession.getSession().getId(), count);
+            }
         }
 
-        // Serialize data
-        try {
-            String json = mapper.writeValueAsString(data);
-            builder.append(',');
-            builder.append("\"data\":");
-            builder.append(json);
-        } catch (Exception e) {
-            this.logger.warn("Failed to serialize the date of event [{}]", event.toString(), e);
+        return counts;
+    }
+
+    /**
+     * @return the number of subscriptions, by event class
+     */
+    public Map<Class<?>, Integer> getSubscriptionCounts()
+    {
+        Map<Class<?>, Integer> counts = new HashMap<>();
+        this.listeners.forEach((eventClass, listener) -> counts.put(eventClass, listener.getSubscriptionCount()));
+
+        return counts;
+    }
 
+    /**
+     * @return the number of subscriptions whose WebSocket session is closed, which should have been released
+     */
+    public int getLeakedSubscriptionCount()
+    {
+        return this.listeners.values().stream().mapToInt(WebSocketEventListener::getLeakedSubscriptionCount).sum();
+    }
+
+    /**
+     * @param frame the event to send
+     * @param user the user of the session to send the event to
+     * @param decisions the decisions already taken for the entity of the event, by user
+     * @return true if the user is allowed to view the entity the event is about
+     */
+    private boolean canView(WebSocketEventFrame frame, DocumentReference user,
+        Map<DocumentReference, Boolean> decisions)
+    {
+        EntityReference reference = frame.getReference();
+
+        return reference == null
+            || decisions.computeIfAbsent(user, key -> this.authorization.canView(key, reference));
+    }
+
+    private Object capture(Object value)
+    {
+        // The context is reused by the thread for the following requests
+        if (value instanceof XWikiContext) {
+            return ((XWikiContext) value).clone();
         }
 
-        // Serialize the listener data
-        builder.append(',');
-        builder.append('"');
-        builder.append(EVENTDATA);
-        builder.append('"');
-        builder.append(':');
-        builder.append(mapper.writeValueAsString(listenerData));
+        return value;
+    }
 
-        builder.append('}');
-        builder.append('}');
+    private void send(WebSocketEventFrame frame, EventSubscription subscription)
+    {
+        subscription.getSession().sendEvent(frame, subscription);
+    }
 
-        // Send the message
-        session.getAsyncRemote().sendText(builder.toString());
+    private void sendSuppressed(EventSubscription subscription, int count)
+    {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put(ID, subscription.getId());
+        data.put("count", count);
+        data.put(EVENTDATA, new RawValue(subscription.getListenerData()));
+        send(subscription.getSession(), "suppressed", data, true);
+    }
+
+    private void send(ObservationSession observationSession, String type, Object data, boolean priority)
+    {
+        try {
+            observationSession.send(
+                new OutboundMessage(this.serializer.serializeMessage(type, data), OutboundMessage.NO_KEY, priority));
+        } catch (JsonProcessingException e) {
+            this.logger.error("Failed to send the [{}] message", type, e);
+        }
     }
 }
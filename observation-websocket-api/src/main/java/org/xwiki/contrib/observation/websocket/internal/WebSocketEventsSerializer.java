@@ -0,0 +1,333 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.event.Event;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.filter.FilteringGeneratorDelegate;
+import com.fasterxml.jackson.core.filter.TokenFilter;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Serialize the events sent to the WebSocket clients.
+ * <p>
+ * The event, source and data are first serialized into format independent token buffers, which are then written in
+ * the encodings (JSON or Smile) required by the clients. The expensive part (introspecting the objects) is thus done
+ * only once whatever the number of clients and encodings. The objects are serialized with the mapper of the
+ * {@link EventValueSerializerRegistry} and the encodings are written in the recycled buffers of Jackson.
+ * <p>
+ * The events sent to the clients which asked for compression are compressed once, with a pool of deflaters (which
+ * hold a lot of native memory) shared by the dispatch threads.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketEventsSerializer.class)
+@Singleton
+public class WebSocketEventsSerializer
+{
+    private static final String SEQUENCE = "seq";
+
+    private static final String EVENT = "event";
+
+    private static final String SOURCE = "source";
+
+    private static final String DATA = "data";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private EventValueSerializerRegistry registry;
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    private final BlockingQueue<Deflater> deflaters =
+        new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The listener data (received from the client) and the control messages are made of plain JSON values so they
+     * don't need the registered serializers. The mappers are thread safe once configured so the same instances are
+     * shared by all the dispatches.
+     */
+    private final ObjectMapper listenerDataMapper = new ObjectMapper();
+
+    private final ObjectMapper smileMapper = new ObjectMapper(
+        new SmileFactory().configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true));
+
+    /**
+     * @param listenerData the data associated with a listener by the client
+     * @return the JSON serialization of the listener data
+     * @throws JsonProcessingException when failing to serialize the listener data
+     */
+    public String serializeListenerData(Object listenerData) throws JsonProcessingException
+    {
+        return this.listenerDataMapper.writeValueAsString(listenerData);
+    }
+
+    /**
+     * @param type the type of the message
+     * @param data the message data, made of plain JSON values
+     * @return the JSON serialization of the message
+     * @throws JsonProcessingException when failing to serialize the message
+     */
+    public String serializeMessage(String type, Object data) throws JsonProcessingException
+    {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("type", type);
+        message.put(DATA, data);
+
+        return this.listenerDataMapper.writeValueAsString(message);
+    }
+
+    /**
+     * @param listenerData the data associated with a listener by the client
+     * @return the Smile serialization of the listener data
+     * @throws JsonProcessingException when failing to serialize the listener data
+     */
+    public byte[] serializeBinaryListenerData(Object listenerData) throws JsonProcessingException
+    {
+        return this.smileMapper.writeValueAsBytes(listenerData);
+    }
+
+    /**
+     * @param event the event to serialize
+     * @param source the event source
+     * @param data the event data
+     * @return the serialized event
+     * @throws IOException when failing to serialize the event
+     */
+    public WebSocketEventFrame serialize(Event event, Object source, Object data) throws IOException
+    {
+        return serialize(event, source, data, EventProjection.ALL);
+    }
+
+    /**
+     * @param event the event to serialize
+     * @param source the event source
+     * @param data the event data
+     * @param projection the parts of the event to serialize
+     * @return the serialized event
+     * @throws IOException when failing to serialize the event
+     */
+    WebSocketEventFrame serialize(Event event, Object source, Object data, EventProjection projection)
+        throws IOException
+    {
+        TokenBuffer eventTokens = buffer(event, projection.getFilter(EventProjection.EVENT));
+
+        // The source and data are optional, the event is still sent if they cannot be serialized
+        TokenBuffer sourceTokens = null;
+        try {
+            sourceTokens = buffer(source, projection.getFilter(EventProjection.SOURCE));
+        } catch (Exception e) {
+            this.logger.warn("Failed to serialize the source of event [{}]", event.toString(), e);
+        }
+        TokenBuffer dataTokens = null;
+        try {
+            dataTokens = buffer(data, projection.getFilter(EventProjection.DATA));
+        } catch (Exception e) {
+            this.logger.warn("Failed to serialize the data of event [{}]", event.toString(), e);
+        }
+
+        return new WebSocketEventFrame(this, eventTokens, sourceTokens, dataTokens, projection);
+    }
+
+    private TokenBuffer buffer(Object value, TokenFilter filter) throws IOException
+    {
+        if (filter == null) {
+            return null;
+        }
+
+        ObjectMapper mapper = this.registry.getMapper();
+        TokenBuffer buffer = new TokenBuffer(mapper, false);
+        if (filter == TokenFilter.INCLUDE_ALL) {
+            mapper.writeValue(buffer, value);
+
+            return buffer;
+        }
+
+        // The bean properties check the filter of the generator to skip the excluded values (see
+        // ProjectedPropertyWriter)
+        mapper.writeValue(filter(buffer, filter), value);
+
+        return buffer.isEmpty() ? null : buffer;
+    }
+
+    /**
+     * @param frame the serialized event
+     * @param projection a projection included in the one the event was serialized with
+     * @return the event restricted to the given projection
+     * @throws IOException when failing to filter the event
+     */
+    WebSocketEventFrame project(WebSocketEventFrame frame, EventProjection projection) throws IOException
+    {
+        WebSocketEventFrame projected = new WebSocketEventFrame(this,
+            project(frame.getEvent(), projection.getFilter(EventProjection.EVENT)),
+            project(frame.getSource(), projection.getFilter(EventProjection.SOURCE)),
+            project(frame.getData(), projection.getFilter(EventProjection.DATA)), projection);
+        projected.setSequence(frame.getSequence());
+
+        return projected;
+    }
+
+    private TokenBuffer project(TokenBuffer tokens, TokenFilter filter) throws IOException
+    {
+        if (tokens == null || filter == null) {
+            return null;
+        } else if (filter == TokenFilter.INCLUDE_ALL) {
+            // The part was serialized whole
+            return tokens;
+        }
+
+        TokenBuffer buffer = new TokenBuffer(tokens.getCodec(), false);
+        tokens.serialize(filter(buffer, filter));
+
+        return buffer.isEmpty() ? null : buffer;
+    }
+
+    private JsonGenerator filter(TokenBuffer buffer, TokenFilter filter)
+    {
+        return new FilteringGeneratorDelegate(buffer, filter, TokenFilter.Inclusion.INCLUDE_ALL_AND_PATH, true);
+    }
+
+    /**
+     * @param frame the serialized event
+     * @return the beginning of the JSON object holding the event, source and data, up to the name of the listener
+     *         data field (i.e. {@code {"seq":1,"event":{...},"source":{...},"data":{...},"eventData":})
+     * @throws IOException when failing to write the event
+     */
+    String toJSONPrefix(WebSocketEventFrame frame) throws IOException
+    {
+        JsonFactory factory = this.listenerDataMapper.getFactory();
+        SegmentedStringWriter writer = new SegmentedStringWriter(factory._getBufferRecycler());
+        try (JsonGenerator generator = factory.createGenerator(writer)) {
+            // Leave the object open, the listener data is appended for each listener
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+
+            generator.writeStartObject();
+            write(frame, generator);
+            generator.writeFieldName(WebSocketEventsManager.EVENTDATA);
+            // The separator is normally written with the field value
+            generator.writeRaw(':');
+        }
+
+        return writer.getAndClear();
+    }
+
+    /**
+     * @param frame the serialized event
+     * @return the Smile document holding the event, source and data
+     * @throws IOException when failing to write the event
+     */
+    byte[] toSmile(WebSocketEventFrame frame) throws IOException
+    {
+        JsonFactory factory = this.smileMapper.getFactory();
+        ByteArrayBuilder builder = new ByteArrayBuilder(factory._getBufferRecycler());
+        try {
+            try (JsonGenerator generator = factory.createGenerator(builder)) {
+                generator.writeStartObject();
+                write(frame, generator);
+                generator.writeEndObject();
+            }
+
+            return builder.toByteArray();
+        } finally {
+            builder.release();
+        }
+    }
+
+    /**
+     * @param data the data to compress
+     * @return the data compressed with deflate, without header nor checksum (i.e. raw deflate)
+     */
+    byte[] compress(byte[] data)
+    {
+        Deflater deflater = this.deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(this.configuration.getCompressionLevel(), true);
+        }
+
+        ByteArrayBuilder builder = new ByteArrayBuilder(this.smileMapper.getFactory()._getBufferRecycler());
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = builder.resetAndGetFirstSegment();
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer, builder.getCurrentSegmentLength(),
+                    buffer.length - builder.getCurrentSegmentLength());
+                builder.setCurrentSegmentLength(builder.getCurrentSegmentLength() + length);
+                if (builder.getCurrentSegmentLength() == buffer.length) {
+                    buffer = builder.finishCurrentSegment();
+                }
+            }
+
+            return builder.toByteArray();
+        } finally {
+            builder.release();
+            deflater.reset();
+            if (!this.deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void write(WebSocketEventFrame frame, JsonGenerator generator) throws IOException
+    {
+        generator.writeNumberField(SEQUENCE, frame.getSequence());
+
+        generator.writeFieldName(EVENT);
+        if (frame.getEvent() != null) {
+            frame.getEvent().serialize(generator);
+        } else {
+            generator.writeStartObject();
+            generator.writeEndObject();
+        }
+
+        if (frame.getSource() != null) {
+            generator.writeFieldName(SOURCE);
+            frame.getSource().serialize(generator);
+        }
+
+        if (frame.getData() != null) {
+            generator.writeFieldName(DATA);
+            frame.getData().serialize(generator);
+        }
+    }
+}
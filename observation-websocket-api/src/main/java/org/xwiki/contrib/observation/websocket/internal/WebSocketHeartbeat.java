@@ -0,0 +1,271 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.websocket.CloseReason;
+import javax.websocket.MessageHandler;
+import javax.websocket.PongMessage;
+import javax.websocket.Session;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Ping the WebSocket clients periodically to keep their connection alive and to detect the connections which died
+ * silently (in which case the container doesn't always notice that the session is closed, and the subscriptions of
+ * the session would stay registered forever).
+ * <p>
+ * The clients are pinged in batches spread over the heartbeat interval. A session which doesn't answer several pings
+ * in a row is closed and its resources released. The interval is shortened when the container closes the idle
+ * connections sooner, so that the pings keep them alive.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketHeartbeat.class)
+@Singleton
+public class WebSocketHeartbeat
+{
+    private static final long MIN_INTERVAL = 1000;
+
+    private static final CloseReason NO_PONG =
+        new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "The client does not answer the pings.");
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    @Inject
+    private WebSocketObservationScheduler scheduler;
+
+    /**
+     * The releaser (which depends on the heartbeat) is only needed when a session dies.
+     */
+    @Inject
+    private Provider<WebSocketSessionReleaser> releaserProvider;
+
+    @Inject
+    private Logger logger;
+
+    private final ConcurrentMap<Session, SessionHeartbeat> sessions = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> nextBeat;
+
+    /**
+     * The state of the heartbeat of a session.
+     */
+    private static final class SessionHeartbeat
+    {
+        /**
+         * The time (in nanoseconds) the last unanswered ping was sent, or 0 if the last ping was answered.
+         */
+        private long pingTime;
+
+        private int missedPongs;
+
+        private long roundTripTime = -1;
+
+        /**
+         * @param now the current time, in nanoseconds
+         * @return the number of consecutive pings left unanswered, including the previous one
+         */
+        synchronized int ping(long now)
+        {
+            if (this.pingTime != 0) {
+                this.missedPongs++;
+            }
+            this.pingTime = now;
+
+            return this.missedPongs;
+        }
+
+        synchronized void pong(long pingTime, long now)
+        {
+            // Ignore the unsolicited pongs and the late answers to the previous pings
+            if (pingTime == this.pingTime) {
+                this.roundTripTime = now - pingTime;
+                this.pingTime = 0;
+                this.missedPongs = 0;
+            }
+        }
+
+        synchronized long getRoundTripTime()
+        {
+            return this.roundTripTime;
+        }
+    }
+
+    /**
+     * Start pinging the client of a session.
+     *
+     * @param session the WebSocket session
+     */
+    public void register(Session session)
+    {
+        if (this.configuration.getHeartbeatInterval() <= 0) {
+            return;
+        }
+
+        SessionHeartbeat heartbeat = new SessionHeartbeat();
+        session.addMessageHandler(new MessageHandler.Whole<PongMessage>()
+        {
+            @Override
+            public void onMessage(PongMessage message)
+            {
+                ByteBuffer payload = message.getApplicationData();
+                if (payload.remaining() == Long.BYTES) {
+                    heartbeat.pong(payload.getLong(), System.nanoTime());
+                }
+            }
+        });
+        this.sessions.put(session, heartbeat);
+
+        synchronized (this) {
+            if (this.nextBeat == null) {
+                scheduleNextBeat();
+            }
+        }
+    }
+
+    /**
+     * Stop pinging the client of a session.
+     *
+     * @param session the WebSocket session
+     */
+    public void unregister(Session session)
+    {
+        this.sessions.remove(session);
+    }
+
+    /**
+     * @param session the WebSocket session
+     * @return the round-trip time (in milliseconds) of the last ping answered by the client, or -1 if unknown
+     */
+    public long getRoundTripTime(Session session)
+    {
+        SessionHeartbeat heartbeat = this.sessions.get(session);
+        long roundTripTime = heartbeat != null ? heartbeat.getRoundTripTime() : -1;
+
+        return roundTripTime < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(roundTripTime);
+    }
+
+    private synchronized void scheduleNextBeat()
+    {
+        // Stop when there's no session left, the next registered session restarts the heartbeat
+        this.nextBeat = this.sessions.isEmpty() ? null
+            : this.scheduler.schedule(this::beat, getInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    private long getInterval()
+    {
+        long interval = this.configuration.getHeartbeatInterval();
+
+        // Ping often enough for the connections not to be closed by the container for being idle
+        for (Session session : this.sessions.keySet()) {
+            long maxIdleTimeout = session.getMaxIdleTimeout();
+            if (maxIdleTimeout > 0) {
+                interval = Math.min(interval, maxIdleTimeout / 2);
+            }
+        }
+
+        return Math.max(interval, MIN_INTERVAL);
+    }
+
+    private void beat()
+    {
+        try {
+            int batchSize = Math.max(1, this.configuration.getHeartbeatBatchSize());
+            List<List<Session>> batches = new ArrayList<>();
+            for (Session session : this.sessions.keySet()) {
+                if (batches.isEmpty() || batches.get(batches.size() - 1).size() == batchSize) {
+                    batches.add(new ArrayList<>(batchSize));
+                }
+                batches.get(batches.size() - 1).add(session);
+            }
+
+            // Spread the pings over the interval
+            long interval = getInterval();
+            for (int i = 0; i < batches.size(); i++) {
+                pingLater(batches.get(i), interval * i / batches.size());
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to ping the WebSocket clients", e);
+        } finally {
+            scheduleNextBeat();
+        }
+    }
+
+    private void pingLater(List<Session> batch, long delay)
+    {
+        if (delay == 0) {
+            ping(batch);
+        } else {
+            this.scheduler.schedule(() -> ping(batch), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void ping(List<Session> batch)
+    {
+        int maxMissedPongs = this.configuration.getHeartbeatMaxMissedPongs();
+        for (Session session : batch) {
+            SessionHeartbeat heartbeat = this.sessions.get(session);
+            if (heartbeat != null) {
+                long now = System.nanoTime();
+                if (!session.isOpen() || heartbeat.ping(now) >= maxMissedPongs) {
+                    kill(session);
+                } else {
+                    try {
+                        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES).putLong(now);
+                        payload.flip();
+                        session.getAsyncRemote().sendPing(payload);
+                    } catch (Exception e) {
+                        this.logger.debug("Failed to ping WebSocket session [{}]", session.getId(), e);
+
+                        kill(session);
+                    }
+                }
+            }
+        }
+    }
+
+    private void kill(Session session)
+    {
+        this.logger.debug("Closing the unresponsive WebSocket session [{}]", session.getId());
+
+        // The container might never notice that the session is closed, so release its resources right away
+        this.releaserProvider.get().release(session);
+
+        try {
+            session.close(NO_PONG);
+        } catch (IOException e) {
+            this.logger.debug("Failed to close WebSocket session [{}]", session.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.websocket.Session;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * Handle the messages received from the clients in a dedicated pool of threads, so that the threads of the container
+ * only receive and parse the messages and are never blocked by their handling (e.g. a burst of subscriptions).
+ * <p>
+ * The messages of a session are handled one at a time, in the order they were received. The sessions having messages
+ * to handle take turns: a session handles one message then goes back to the end of the queue, so that a session
+ * sending many messages doesn't delay the others. The number of messages waiting to be handled is limited for each
+ * session, so the memory used is bounded.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketMessageExecutor.class)
+@Singleton
+public class WebSocketMessageExecutor implements Initializable, Disposable
+{
+    private static final String KEY_TASKS = "xwiki.observation.messages";
+
+    @Inject
+    private WebSocketObservationConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private ThreadPoolExecutor executor;
+
+    private int maxPendingMessages;
+
+    /**
+     * The messages of a session waiting to be handled.
+     */
+    private static final class SessionTasks
+    {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        /**
+         * Whether the session is in the queue of the executor, or handling a message.
+         */
+        private boolean scheduled;
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int threads = Math.max(1, this.configuration.getMessageThreads());
+        // Each session is queued at most once, its messages being queued in the session
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new BasicThreadFactory.Builder().namingPattern("XWiki Observation WebSocket message handler %d")
+                .daemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.maxPendingMessages = Math.max(1, this.configuration.getMessageQueueSize());
+    }
+
+    /**
+     * @param session the session which received the message
+     * @param task the handling of the message
+     * @return {@code true} if the message will be handled, {@code false} if it was rejected because the session has
+     *         too many messages waiting to be handled
+     */
+    public boolean execute(Session session, Runnable task)
+    {
+        SessionTasks sessionTasks =
+            (SessionTasks) session.getUserProperties().computeIfAbsent(KEY_TASKS, key -> new SessionTasks());
+        synchronized (sessionTasks) {
+            if (sessionTasks.tasks.size() >= this.maxPendingMessages) {
+                return false;
+            }
+            sessionTasks.tasks.add(task);
+            if (sessionTasks.scheduled) {
+                return true;
+            }
+            sessionTasks.scheduled = true;
+        }
+
+        return schedule(session, sessionTasks);
+    }
+
+    private boolean schedule(Session session, SessionTasks sessionTasks)
+    {
+        try {
+            this.executor.execute(() -> runNext(session, sessionTasks));
+
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The executor was disposed
+            synchronized (sessionTasks) {
+                sessionTasks.tasks.clear();
+                sessionTasks.scheduled = false;
+            }
+
+            return false;
+        }
+    }
+
+    private void runNext(Session session, SessionTasks sessionTasks)
+    {
+        Runnable task;
+        synchronized (sessionTasks) {
+            task = sessionTasks.tasks.poll();
+        }
+
+        // The messages received by a session which is closed since are not handled
+        if (task != null && session.isOpen()) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                this.logger.error("Failed to handle a message of the WebSocket session [{}]", session.getId(), e);
+            }
+        }
+
+        synchronized (sessionTasks) {
+            if (sessionTasks.tasks.isEmpty()) {
+                sessionTasks.scheduled = false;
+
+                return;
+            }
+        }
+
+        // Let the other sessions handle a message before handling the next one
+        schedule(session, sessionTasks);
+    }
+
+    /**
+     * Forget the messages of a session which is closed.
+     *
+     * @param session the session
+     */
+    public void cancel(Session session)
+    {
+        SessionTasks sessionTasks = (SessionTasks) session.getUserProperties().get(KEY_TASKS);
+        if (sessionTasks != null) {
+            synchronized (sessionTasks) {
+                sessionTasks.tasks.clear();
+            }
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+}
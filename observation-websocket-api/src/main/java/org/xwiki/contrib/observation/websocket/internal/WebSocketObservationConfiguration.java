@@ -0,0 +1,316 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * The configuration of the observation WebSocket, taken from the xwiki.properties file.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketObservationConfiguration.class)
+@Singleton
+public class WebSocketObservationConfiguration
+{
+    /**
+     * The behavior of the asynchronous dispatch when the queue is full.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Process the event in the thread which fired it, as in the synchronous mode.
+         */
+        CALLER_RUNS,
+
+        /**
+         * Don't send the event to the WebSocket clients.
+         */
+        DROP
+    }
+
+    /**
+     * The behavior when the messages waiting to be sent to a WebSocket client reach the configured limits.
+     */
+    public enum SlowClientPolicy
+    {
+        /**
+         * Drop the oldest messages waiting to be sent.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Replace the message waiting to be sent for the same listener, if any, or drop the oldest messages.
+         */
+        CONFLATE,
+
+        /**
+         * Close the WebSocket session.
+         */
+        CLOSE
+    }
+
+    private static final String PREFIX = "observation.websocket.";
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * @return true if the events should be serialized and sent to the WebSocket clients in dedicated threads instead
+     *         of the thread which fired the event
+     */
+    public boolean isAsynchronousDispatch()
+    {
+        return this.configuration.getProperty(PREFIX + "dispatch.async", false);
+    }
+
+    /**
+     * @return the number of threads dedicated to the asynchronous dispatch
+     */
+    public int getDispatchThreads()
+    {
+        return this.configuration.getProperty(PREFIX + "dispatch.threads", 1);
+    }
+
+    /**
+     * @return the maximum number of events dispatched asynchronously and not sent yet (waiting to be prepared, or
+     *         prepared and waiting for the previous events to be sent)
+     */
+    public int getDispatchQueueSize()
+    {
+        return this.configuration.getProperty(PREFIX + "dispatch.queueSize", 10000);
+    }
+
+    /**
+     * @return what to do with the events fired while the asynchronous dispatch queue is full
+     */
+    public OverflowPolicy getDispatchOverflowPolicy()
+    {
+        String policy = this.configuration.getProperty(PREFIX + "dispatch.overflowPolicy", "callerRuns");
+
+        return "drop".equalsIgnoreCase(policy) ? OverflowPolicy.DROP : OverflowPolicy.CALLER_RUNS;
+    }
+
+    /**
+     * @return the maximum number of messages waiting to be sent to a WebSocket client
+     */
+    public int getSessionQueueMaxMessages()
+    {
+        return this.configuration.getProperty(PREFIX + "session.queue.maxMessages", 1000);
+    }
+
+    /**
+     * @return the maximum total size of the messages waiting to be sent to a WebSocket client (text messages are
+     *         measured in characters)
+     */
+    public long getSessionQueueMaxSize()
+    {
+        return this.configuration.getProperty(PREFIX + "session.queue.maxSize", 10L * 1024 * 1024);
+    }
+
+    /**
+     * @return the maximum number of high priority messages (control messages, events of the high priority listeners)
+     *         sent in a row to a WebSocket client while other messages are waiting
+     */
+    public int getSessionQueuePriorityBurst()
+    {
+        return this.configuration.getProperty(PREFIX + "session.queue.priorityBurst", 10);
+    }
+
+    /**
+     * @return what to do when the messages waiting to be sent to a WebSocket client reach the configured limits
+     */
+    public SlowClientPolicy getSlowClientPolicy()
+    {
+        String policy = this.configuration.getProperty(PREFIX + "session.queue.overflowPolicy", "dropOldest");
+
+        if ("conflate".equalsIgnoreCase(policy)) {
+            return SlowClientPolicy.CONFLATE;
+        } else if ("close".equalsIgnoreCase(policy)) {
+            return SlowClientPolicy.CLOSE;
+        }
+
+        return SlowClientPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * @return the maximum size (in characters) of the messages received from a WebSocket client, the bigger messages
+     *         being rejected
+     */
+    public int getMessageMaxSize()
+    {
+        return this.configuration.getProperty(PREFIX + "message.maxSize", 256 * 1024);
+    }
+
+    /**
+     * @return the number of threads handling the messages received from the WebSocket clients
+     */
+    public int getMessageThreads()
+    {
+        return this.configuration.getProperty(PREFIX + "message.threads", 2);
+    }
+
+    /**
+     * @return the maximum number of messages received from a WebSocket client and waiting to be handled, the session
+     *         being closed when the client sends more
+     */
+    public int getMessageQueueSize()
+    {
+        return this.configuration.getProperty(PREFIX + "message.queueSize", 100);
+    }
+
+    /**
+     * @return the maximum nesting level of the values serialized as beans (i.e. without a dedicated
+     *         {@link org.xwiki.contrib.observation.websocket.EventValueSerializer}) or as containers (maps,
+     *         collections, arrays), the deeper values being serialized as strings
+     */
+    public int getSerializerMaxDepth()
+    {
+        return this.configuration.getProperty(PREFIX + "serializer.maxDepth", 5);
+    }
+
+    /**
+     * @return the maximum number of entity references (documents, users) whose serialization is kept in cache to be
+     *         reused by the next events; 0 to disable the cache
+     */
+    public int getSerializerReferenceCacheSize()
+    {
+        return this.configuration.getProperty(PREFIX + "serializer.referenceCacheSize", 1000);
+    }
+
+    /**
+     * @return the level (from 1, the fastest, to 9, the most compact) of the compression of the events sent to the
+     *         clients which ask for it when they connect; 0 to disable the compression
+     */
+    public int getCompressionLevel()
+    {
+        return this.configuration.getProperty(PREFIX + "compression.level", 6);
+    }
+
+    /**
+     * @return the maximum number of view right decisions (by user and entity) kept in cache to filter the events sent
+     *         to the clients
+     */
+    public int getAuthorizationCacheSize()
+    {
+        return this.configuration.getProperty(PREFIX + "authorization.cacheSize", 10000);
+    }
+
+    /**
+     * @return the names of the classes (or interfaces) of the event sources which are not entities but can be sent to
+     *         all the users; the events whose source is neither an entity nor one of these are not sent
+     */
+    public List<String> getAuthorizationPublicSources()
+    {
+        List<String> sources = this.configuration.getProperty(PREFIX + "authorization.publicSources", List.class);
+
+        return sources != null ? sources : Collections.emptyList();
+    }
+
+    /**
+     * @return the paths of the properties of the event source and data (e.g. {@code source.title}) which the clients
+     *         can test in their conditions and use as conflation key, in addition to the entity references of the
+     *         documents and their authors, and the action
+     */
+    public List<String> getFilterProperties()
+    {
+        List<String> properties = this.configuration.getProperty(PREFIX + "filter.properties", List.class);
+
+        return properties != null ? properties : Collections.emptyList();
+    }
+
+    /**
+     * @return the maximum number of events recorded for each group of subscriptions sharing the same filter, to be
+     *         replayed to the clients which reconnect; 0 to disable the replay
+     */
+    public int getReplayMaxEvents()
+    {
+        return this.configuration.getProperty(PREFIX + "replay.maxEvents", 100);
+    }
+
+    /**
+     * @return the maximum time (in milliseconds) the events are recorded to be replayed to the clients which
+     *         reconnect, which is also how long the events of a filter keep being recorded after its last subscription
+     *         is removed
+     */
+    public long getReplayMaxAge()
+    {
+        return this.configuration.getProperty(PREFIX + "replay.maxAge", 60000L);
+    }
+
+    /**
+     * @return the maximum time (in milliseconds) between two pings sent to a WebSocket client; 0 to disable the
+     *         heartbeat (the actual interval is shorter when the container closes the idle connections sooner)
+     */
+    public long getHeartbeatInterval()
+    {
+        return this.configuration.getProperty(PREFIX + "heartbeat.interval", 30000L);
+    }
+
+    /**
+     * @return the number of consecutive pings a WebSocket client can leave unanswered before its session is closed
+     */
+    public int getHeartbeatMaxMissedPongs()
+    {
+        return this.configuration.getProperty(PREFIX + "heartbeat.maxMissedPongs", 3);
+    }
+
+    /**
+     * @return the number of WebSocket clients pinged at once, the batches being spread over the heartbeat interval
+     */
+    public int getHeartbeatBatchSize()
+    {
+        return this.configuration.getProperty(PREFIX + "heartbeat.batchSize", 100);
+    }
+
+    /**
+     * @return the maximum number of WebSocket sessions a user can open at the same time (the browser tabs share one
+     *         session); 0 for no limit
+     */
+    public int getMaxSessionsPerUser()
+    {
+        return this.configuration.getProperty(PREFIX + "limits.sessionsPerUser", 20);
+    }
+
+    /**
+     * @return the maximum number of listeners a WebSocket session can register; 0 for no limit
+     */
+    public int getMaxSubscriptionsPerSession()
+    {
+        return this.configuration.getProperty(PREFIX + "limits.subscriptionsPerSession", 500);
+    }
+
+    /**
+     * @return the maximum number of listeners registered by all the WebSocket sessions; 0 for no limit
+     */
+    public int getMaxSubscriptions()
+    {
+        return this.configuration.getProperty(PREFIX + "limits.subscriptions", 100000);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Map;
+
+/**
+ * The metrics of the observation WebSocket exposed through JMX.
+ *
+ * @version $Id$
+ */
+public interface WebSocketObservationMXBean
+{
+    /**
+     * @return the number of WebSocket connections currently open
+     */
+    long getConnectionCount();
+
+    /**
+     * @return the number of WebSocket connections rejected (e.g. because the user is not authenticated or has too many
+     *         connections)
+     */
+    long getRejectedConnectionCount();
+
+    /**
+     * @return the number of listeners rejected because the client or the server had too many listeners
+     */
+    long getRejectedSubscriptionCount();
+
+    /**
+     * @return the number of messages received from the clients
+     */
+    long getReceivedMessageCount();
+
+    /**
+     * @return the number of messages rejected because they were too big or malformed, or because the client sent too
+     *         many messages
+     */
+    long getRejectedMessageCount();
+
+    /**
+     * @return the number of open sessions
+     */
+    int getSessionCount();
+
+    /**
+     * @return the number of subscriptions, by event class
+     */
+    Map<String, Integer> getSubscriptionCounts();
+
+    /**
+     * @return the number of subscriptions whose WebSocket session is closed (i.e. the subscriptions which were not
+     *         released when the session was closed)
+     */
+    int getLeakedSubscriptionCount();
+
+    /**
+     * @return the number of events dispatched to at least one subscription
+     */
+    long getDispatchedEventCount();
+
+    /**
+     * @return the number of events replaced by a later event with the same conflation key, for each group of
+     *         subscriptions asking for conflation
+     */
+    long getConflatedEventCount();
+
+    /**
+     * @return the number of events not sent because they exceeded the rate limit, for each group of subscriptions
+     *         asking for rate limiting
+     */
+    long getSuppressedEventCount();
+
+    /**
+     * @return the number of entity references (documents, users) whose serialization was found in cache
+     */
+    long getReferenceCacheHitCount();
+
+    /**
+     * @return the number of entity references (documents, users) which had to be serialized because they were not in
+     *         cache
+     */
+    long getReferenceCacheMissCount();
+
+    /**
+     * @return the duration of the serialization of the events (count, mean, p50, p90, p99, max in microseconds)
+     */
+    Map<String, Long> getSerializationLatency();
+
+    /**
+     * @return the duration of the sending step of the dispatch, i.e. the encoding of the events and their queueing in
+     *         the sessions (count, mean, p50, p90, p99, max in microseconds)
+     */
+    Map<String, Long> getDispatchLatency();
+
+    /**
+     * @return the number of events dispatched asynchronously and not sent yet (waiting to be prepared, or prepared and
+     *         waiting for the previous events to be sent)
+     */
+    int getDispatchQueueSize();
+
+    /**
+     * @return the number of events fired while too many events were waiting to be dispatched asynchronously
+     */
+    long getDispatchOverflowCount();
+
+    /**
+     * @return the number of events not dispatched because too many events were waiting to be dispatched
+     *         asynchronously (with the {@code drop} overflow policy)
+     */
+    long getDispatchDroppedEventCount();
+
+    /**
+     * @return the size of the event messages queued for the clients, by event class (in bytes, or in characters for the
+     *         text messages)
+     */
+    Map<String, Long> getEventBytes();
+
+    /**
+     * @return the number of WebSocket messages (frames) successfully sent to the clients
+     */
+    long getSentFrameCount();
+
+    /**
+     * @return the size of the WebSocket messages successfully sent to the clients (in bytes, or in characters for the
+     *         text messages)
+     */
+    long getSentBytes();
+
+    /**
+     * @return the number of WebSocket messages which could not be sent
+     */
+    long getSendFailureCount();
+
+    /**
+     * @return the number of messages dropped because the clients did not consume them fast enough
+     */
+    long getDroppedMessageCount();
+
+    /**
+     * @return the number of messages waiting to be sent to all the clients
+     */
+    long getQueuedMessageCount();
+
+    /**
+     * @return the number of messages waiting to be sent to the client which has the most
+     */
+    int getMaxSessionQueueLength();
+
+    /**
+     * @return the number of messages waiting to be sent to the clients which have some, by WebSocket session identifier
+     */
+    Map<String, Integer> getSessionQueueLengths();
+
+    /**
+     * @return the number of messages dropped because the clients were too slow, for the open sessions which dropped
+     *         some, by WebSocket session identifier
+     */
+    Map<String, Long> getSessionDroppedMessageCounts();
+}
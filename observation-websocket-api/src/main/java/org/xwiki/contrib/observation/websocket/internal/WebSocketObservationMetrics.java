@@ -0,0 +1,460 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.websocket.Session;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.management.JMXBeanRegistration;
+
+/**
+ * Record what the observation WebSocket costs and expose it through JMX (as
+ * {@code org.xwiki:type=ObservationWebSocket}) and through {@link #getSnapshot()}.
+ * <p>
+ * The counters are striped ({@link LongAdder}) so that recording stays cheap when many threads dispatch events. The
+ * gauges (sessions, subscriptions, pending dispatches, queued messages) are computed by the events manager and the
+ * dispatcher when they are read.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketObservationMetrics.class)
+@Singleton
+public class WebSocketObservationMetrics implements WebSocketObservationMXBean, Initializable, Disposable
+{
+    private static final String MBEAN_NAME = "type=ObservationWebSocket";
+
+    @Inject
+    private JMXBeanRegistration jmxRegistration;
+
+    /**
+     * The events manager records its own metrics so it's only needed to compute the gauges.
+     */
+    @Inject
+    private Provider<WebSocketEventsManager> managerProvider;
+
+    @Inject
+    private Provider<WebSocketEventsDispatcher> dispatcherProvider;
+
+    private final Set<String> connections = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    private final LongAdder rejectedSubscriptions = new LongAdder();
+
+    private final LongAdder receivedMessages = new LongAdder();
+
+    private final LongAdder rejectedMessages = new LongAdder();
+
+    private final LongAdder dispatchedEvents = new LongAdder();
+
+    private final LongAdder conflatedEvents = new LongAdder();
+
+    private final LongAdder suppressedEvents = new LongAdder();
+
+    private final LongAdder referenceCacheHits = new LongAdder();
+
+    private final LongAdder referenceCacheMisses = new LongAdder();
+
+    private final LatencyHistogram serializationLatency = new LatencyHistogram();
+
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+    /**
+     * Indexed by class name so that the metrics don't prevent the class loader of an uninstalled extension from being
+     * collected.
+     */
+    private final ConcurrentMap<String, LongAdder> eventBytes = new ConcurrentHashMap<>();
+
+    private final LongAdder sentFrames = new LongAdder();
+
+    private final LongAdder sentBytes = new LongAdder();
+
+    private final LongAdder sendFailures = new LongAdder();
+
+    private final LongAdder droppedMessages = new LongAdder();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.jmxRegistration.registerMBean(this, MBEAN_NAME);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.jmxRegistration.unregisterMBean(MBEAN_NAME);
+    }
+
+    /**
+     * @param session a WebSocket session which was accepted
+     */
+    void connectionOpened(Session session)
+    {
+        this.connections.add(session.getId());
+    }
+
+    /**
+     * @param session a WebSocket session which was closed
+     */
+    void connectionClosed(Session session)
+    {
+        this.connections.remove(session.getId());
+    }
+
+    /**
+     * A WebSocket connection was rejected.
+     */
+    void connectionRejected()
+    {
+        this.rejectedConnections.increment();
+    }
+
+    /**
+     * A subscription was rejected because a limit was reached.
+     */
+    void subscriptionRejected()
+    {
+        this.rejectedSubscriptions.increment();
+    }
+
+    /**
+     * A message was received from a client.
+     */
+    void messageReceived()
+    {
+        this.receivedMessages.increment();
+    }
+
+    /**
+     * A message received from a client was rejected because it was too big or malformed, or because the client sent
+     * too many messages.
+     */
+    void messageRejected()
+    {
+        this.rejectedMessages.increment();
+    }
+
+    /**
+     * @param nanos the duration of the serialization of an event, in nanoseconds
+     */
+    void eventSerialized(long nanos)
+    {
+        this.serializationLatency.record(nanos);
+    }
+
+    /**
+     * @param nanos the duration of the sending step of the dispatch of an event, in nanoseconds
+     */
+    void eventDispatched(long nanos)
+    {
+        this.dispatchedEvents.increment();
+        this.dispatchLatency.record(nanos);
+    }
+
+    /**
+     * An event was replaced by a later event with the same conflation key before being sent to a group of
+     * subscriptions.
+     */
+    void eventConflated()
+    {
+        this.conflatedEvents.increment();
+    }
+
+    /**
+     * An event was not sent to a group of subscriptions because it exceeded their rate limit.
+     */
+    void eventSuppressed()
+    {
+        this.suppressedEvents.increment();
+    }
+
+    /**
+     * The serialization of an entity reference was found in cache.
+     */
+    void referenceCacheHit()
+    {
+        this.referenceCacheHits.increment();
+    }
+
+    /**
+     * The serialization of an entity reference was not found in cache.
+     */
+    void referenceCacheMissed()
+    {
+        this.referenceCacheMisses.increment();
+    }
+
+    /**
+     * @param eventClass the class of the event
+     * @param size the size of the message encoded for a subscription
+     */
+    void eventEncoded(Class<?> eventClass, int size)
+    {
+        this.eventBytes.computeIfAbsent(eventClass.getName(), key -> new LongAdder()).add(size);
+    }
+
+    /**
+     * @param size the size of a message successfully sent
+     */
+    void messageSent(int size)
+    {
+        this.sentFrames.increment();
+        this.sentBytes.add(size);
+    }
+
+    /**
+     * A message could not be sent.
+     */
+    void messageFailed()
+    {
+        this.sendFailures.increment();
+    }
+
+    /**
+     * A message was dropped because the client was too slow.
+     */
+    void messageDropped()
+    {
+        this.droppedMessages.increment();
+    }
+
+    @Override
+    public long getConnectionCount()
+    {
+        return this.connections.size();
+    }
+
+    @Override
+    public long getRejectedConnectionCount()
+    {
+        return this.rejectedConnections.sum();
+    }
+
+    @Override
+    public long getRejectedSubscriptionCount()
+    {
+        return this.rejectedSubscriptions.sum();
+    }
+
+    @Override
+    public long getReceivedMessageCount()
+    {
+        return this.receivedMessages.sum();
+    }
+
+    @Override
+    public long getRejectedMessageCount()
+    {
+        return this.rejectedMessages.sum();
+    }
+
+    @Override
+    public int getSessionCount()
+    {
+        return this.managerProvider.get().getSessionCount();
+    }
+
+    @Override
+    public Map<String, Integer> getSubscriptionCounts()
+    {
+        Map<String, Integer> counts = new TreeMap<>();
+        this.managerProvider.get().getSubscriptionCounts()
+            .forEach((eventClass, count) -> counts.put(eventClass.getName(), count));
+
+        return counts;
+    }
+
+    @Override
+    public int getLeakedSubscriptionCount()
+    {
+        return this.managerProvider.get().getLeakedSubscriptionCount();
+    }
+
+    @Override
+    public long getDispatchedEventCount()
+    {
+        return this.dispatchedEvents.sum();
+    }
+
+    @Override
+    public long getConflatedEventCount()
+    {
+        return this.conflatedEvents.sum();
+    }
+
+    @Override
+    public long getSuppressedEventCount()
+    {
+        return this.suppressedEvents.sum();
+    }
+
+    @Override
+    public long getReferenceCacheHitCount()
+    {
+        return this.referenceCacheHits.sum();
+    }
+
+    @Override
+    public long getReferenceCacheMissCount()
+    {
+        return this.referenceCacheMisses.sum();
+    }
+
+    @Override
+    public Map<String, Long> getSerializationLatency()
+    {
+        return this.serializationLatency.getSnapshot();
+    }
+
+    @Override
+    public Map<String, Long> getDispatchLatency()
+    {
+        return this.dispatchLatency.getSnapshot();
+    }
+
+    @Override
+    public int getDispatchQueueSize()
+    {
+        return this.dispatcherProvider.get().getQueueSize();
+    }
+
+    @Override
+    public long getDispatchOverflowCount()
+    {
+        return this.dispatcherProvider.get().getOverflowCount();
+    }
+
+    @Override
+    public long getDispatchDroppedEventCount()
+    {
+        return this.dispatcherProvider.get().getDroppedCount();
+    }
+
+    @Override
+    public Map<String, Long> getEventBytes()
+    {
+        Map<String, Long> bytes = new TreeMap<>();
+        this.eventBytes.forEach((className, size) -> bytes.put(className, size.sum()));
+
+        return bytes;
+    }
+
+    @Override
+    public long getSentFrameCount()
+    {
+        return this.sentFrames.sum();
+    }
+
+    @Override
+    public long getSentBytes()
+    {
+        return this.sentBytes.sum();
+    }
+
+    @Override
+    public long getSendFailureCount()
+    {
+        return this.sendFailures.sum();
+    }
+
+    @Override
+    public long getDroppedMessageCount()
+    {
+        return this.droppedMessages.sum();
+    }
+
+    @Override
+    public long getQueuedMessageCount()
+    {
+        return this.managerProvider.get().getSessionQueueLengths().values().stream().mapToLong(Integer::longValue)
+            .sum();
+    }
+
+    @Override
+    public int getMaxSessionQueueLength()
+    {
+        return this.managerProvider.get().getSessionQueueLengths().values().stream().mapToInt(Integer::intValue)
+            .max().orElse(0);
+    }
+
+    @Override
+    public Map<String, Integer> getSessionQueueLengths()
+    {
+        return new TreeMap<>(this.managerProvider.get().getSessionQueueLengths());
+    }
+
+    @Override
+    public Map<String, Long> getSessionDroppedMessageCounts()
+    {
+        return new TreeMap<>(this.managerProvider.get().getSessionDroppedMessageCounts());
+    }
+
+    /**
+     * @return all the metrics, by name
+     */
+    public Map<String, Object> getSnapshot()
+    {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("connectionCount", getConnectionCount());
+        snapshot.put("rejectedConnectionCount", getRejectedConnectionCount());
+        snapshot.put("rejectedSubscriptionCount", getRejectedSubscriptionCount());
+        snapshot.put("receivedMessageCount", getReceivedMessageCount());
+        snapshot.put("rejectedMessageCount", getRejectedMessageCount());
+        snapshot.put("sessionCount", getSessionCount());
+        snapshot.put("subscriptionCounts", getSubscriptionCounts());
+        snapshot.put("leakedSubscriptionCount", getLeakedSubscriptionCount());
+        snapshot.put("dispatchedEventCount", getDispatchedEventCount());
+        snapshot.put("conflatedEventCount", getConflatedEventCount());
+        snapshot.put("suppressedEventCount", getSuppressedEventCount());
+        snapshot.put("referenceCacheHitCount", getReferenceCacheHitCount());
+        snapshot.put("referenceCacheMissCount", getReferenceCacheMissCount());
+        snapshot.put("serializationLatency", getSerializationLatency());
+        snapshot.put("dispatchLatency", getDispatchLatency());
+        snapshot.put("dispatchQueueSize", getDispatchQueueSize());
+        snapshot.put("dispatchOverflowCount", getDispatchOverflowCount());
+        snapshot.put("dispatchDroppedEventCount", getDispatchDroppedEventCount());
+        snapshot.put("eventBytes", getEventBytes());
+        snapshot.put("sentFrameCount", getSentFrameCount());
+        snapshot.put("sentBytes", getSentBytes());
+        snapshot.put("sendFailureCount", getSendFailureCount());
+        snapshot.put("droppedMessageCount", getDroppedMessageCount());
+        snapshot.put("queuedMessageCount", getQueuedMessageCount());
+        snapshot.put("maxSessionQueueLength", getMaxSessionQueueLength());
+        snapshot.put("sessionQueueLengths", getSessionQueueLengths());
+        snapshot.put("sessionDroppedMessageCounts", getSessionDroppedMessageCounts());
+
+        return snapshot;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+/**
+ * Execute the delayed and periodic tasks of the observation WebSocket (e.g. flushing the batched events). The tasks are
+ * expected to be short.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketObservationScheduler.class)
+@Singleton
+public class WebSocketObservationScheduler implements Initializable, Disposable
+{
+    private ScheduledThreadPoolExecutor executor;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.executor = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder()
+            .namingPattern("XWiki Observation WebSocket scheduler").daemon(true).build());
+        // Don't keep the cancelled tasks (and what they reference) until their delay expires
+        this.executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @param task the task to execute
+     * @param delay the delay before executing the task
+     * @param unit the unit of the delay
+     * @return the future which can be used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        return this.executor.schedule(task, delay, unit);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.executor.shutdownNow();
+    }
+}
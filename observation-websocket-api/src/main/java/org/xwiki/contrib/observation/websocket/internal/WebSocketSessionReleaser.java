@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.websocket.Session;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Release the resources associated with a WebSocket session, whichever way the session ends: closed by the client,
+ * failed, closed because the client is too slow or doesn't answer the pings anymore.
+ *
+ * @version $Id$
+ */
+@Component(roles = WebSocketSessionReleaser.class)
+@Singleton
+public class WebSocketSessionReleaser
+{
+    private static final String KEY_RELEASED = "xwiki.observation.released";
+
+    @Inject
+    private WebSocketEventsManager manager;
+
+    @Inject
+    private WebSocketHeartbeat heartbeat;
+
+    @Inject
+    private WebSocketMessageExecutor messageExecutor;
+
+    @Inject
+    private WebSocketObservationMetrics metrics;
+
+    /**
+     * Release the resources associated with the session. Calling it again for the same session does nothing.
+     *
+     * @param session the WebSocket session which ended, or is about to be closed
+     */
+    public void release(Session session)
+    {
+        synchronized (session) {
+            if (session.getUserProperties().putIfAbsent(KEY_RELEASED, Boolean.TRUE) != null) {
+                return;
+            }
+        }
+
+        this.metrics.connectionClosed(session);
+        this.heartbeat.unregister(session);
+        // The messages already received are not handled anymore
+        this.messageExecutor.cancel(session);
+        this.manager.dispose(session);
+    }
+}
@@ -21,30 +21,33 @@ package org.xwiki.contrib.observation.websocket.internal;
 
 import java.io.IOException;
 
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.observation.websocket.EventValueSerializer;
+
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.SerializerProvider;
-import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import com.xpn.xwiki.XWikiContext;
 
 /**
  * @version $Id$
  */
-public class XWikiContextSerializer extends StdSerializer<XWikiContext>
+@Component
+@Singleton
+public class XWikiContextSerializer implements EventValueSerializer<XWikiContext>
 {
-    /**
-     * Default constructor.
-     */
-    public XWikiContextSerializer()
-    {
-        super(XWikiContext.class);
-    }
+    @Inject
+    private SerializedReferenceCache referenceCache;
 
     @Override
     public void serialize(XWikiContext value, JsonGenerator jgen, SerializerProvider provider) throws IOException
     {
         jgen.writeStartObject();
-        jgen.writeObjectField("wikiId", value.getWikiId());
-        jgen.writeObjectField("userReference", value.getUserReference());
+        provider.defaultSerializeField("wikiId", value.getWikiId(), jgen);
+        jgen.writeFieldName("userReference");
+        this.referenceCache.serialize(value.getUserReference(), jgen, provider);
         jgen.writeEndObject();
     }
 }
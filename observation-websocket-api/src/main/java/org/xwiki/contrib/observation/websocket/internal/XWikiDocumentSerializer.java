@@ -21,31 +21,35 @@ package org.xwiki.contrib.observation.websocket.internal;
 
 import java.io.IOException;
 
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.observation.websocket.EventValueSerializer;
+
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.SerializerProvider;
-import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
  * @version $Id$
  */
-public class XWikiDocumentSerializer extends StdSerializer<XWikiDocument>
+@Component
+@Singleton
+public class XWikiDocumentSerializer implements EventValueSerializer<XWikiDocument>
 {
-    /**
-     * Default constructor.
-     */
-    public XWikiDocumentSerializer()
-    {
-        super(XWikiDocument.class);
-    }
+    @Inject
+    private SerializedReferenceCache referenceCache;
 
     @Override
     public void serialize(XWikiDocument value, JsonGenerator jgen, SerializerProvider provider) throws IOException
     {
         jgen.writeStartObject();
-        jgen.writeObjectField("documentReference", value.getDocumentReference());
-        jgen.writeObjectField("documentReferenceWithLocale", value.getDocumentReferenceWithLocale());
-        jgen.writeObjectField("locale", value.getLocale());
+        jgen.writeFieldName("documentReference");
+        this.referenceCache.serialize(value.getDocumentReference(), jgen, provider);
+        jgen.writeFieldName("documentReferenceWithLocale");
+        this.referenceCache.serialize(value.getDocumentReferenceWithLocale(), jgen, provider);
+        provider.defaultSerializeField("locale", value.getLocale(), jgen);
         jgen.writeEndObject();
     }
 }
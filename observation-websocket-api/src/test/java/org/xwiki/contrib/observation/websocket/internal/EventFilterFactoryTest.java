@@ -0,0 +1,233 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.event.WikiReadyEvent;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.properties.ConverterManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link EventFilterFactory}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EventFilterFactoryTest
+{
+    private static final String WIKI_READY = WikiReadyEvent.class.getName();
+
+    private static boolean notAnEventInitialized;
+
+    @MockComponent
+    private ConverterManager converter;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> referenceSerializer;
+
+    @MockComponent
+    private EntityReferenceResolver<String> referenceResolver;
+
+    @MockComponent
+    private WebSocketObservationConfiguration configuration;
+
+    @InjectMockComponents
+    private EventFilterFactory factory;
+
+    /**
+     * A class which is not an event, recording its initialization.
+     */
+    public static class NotAnEvent
+    {
+        static {
+            notAnEventInitialized = true;
+        }
+    }
+
+    /**
+     * An event source.
+     */
+    public static class Source
+    {
+        private final DocumentReference documentReference;
+
+        private final DocumentReference authorReference;
+
+        Source(DocumentReference documentReference, DocumentReference authorReference)
+        {
+            this.documentReference = documentReference;
+            this.authorReference = authorReference;
+        }
+
+        public DocumentReference getDocumentReference()
+        {
+            return this.documentReference;
+        }
+
+        public DocumentReference getAuthorReference()
+        {
+            return this.authorReference;
+        }
+    }
+
+    private Map<String, Object> condition(String property, String operator, Object operand)
+    {
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("property", property);
+        condition.put(operator, operand);
+
+        return condition;
+    }
+
+    private boolean test(EventPredicate predicate, Object source, Object data)
+    {
+        return predicate.test(new EventPredicate.PropertyValues(source, data));
+    }
+
+    @Test
+    void createFilter() throws Exception
+    {
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        EventConstructor constructor = this.factory.getConstructor(WIKI_READY, Collections.singleton("wikiId"));
+
+        assertSame(WikiReadyEvent.class, constructor.getEventClass());
+        WikiReadyEvent filter =
+            (WikiReadyEvent) this.factory.createFilter(constructor, Collections.singletonMap("wikiId", "wiki1"));
+        assertEquals("wiki1", filter.getWikiId());
+
+        // The constructor is resolved only once for the same class and parameter names
+        assertSame(constructor,
+            this.factory.getConstructor(WIKI_READY, new HashSet<>(Collections.singletonList("wikiId"))));
+
+        this.factory.invalidate();
+
+        assertNotSame(constructor, this.factory.getConstructor(WIKI_READY, Collections.singleton("wikiId")));
+    }
+
+    @Test
+    void invalidParameters()
+    {
+        assertThrows(NoSuchMethodException.class,
+            () -> this.factory.getConstructor(WIKI_READY, Collections.singleton("unknown")));
+        assertThrows(IllegalArgumentException.class,
+            () -> this.factory.getConstructor(String.class.getName(), Collections.emptySet()));
+        assertThrows(ClassNotFoundException.class,
+            () -> this.factory.getConstructor("org.xwiki.UnknownEvent", Collections.emptySet()));
+
+        // The classes which are not events are not initialized
+        assertThrows(IllegalArgumentException.class,
+            () -> this.factory.getConstructor(NotAnEvent.class.getName(), Collections.emptySet()));
+        assertFalse(notAnEventInitialized);
+    }
+
+    @Test
+    void createPredicate()
+    {
+        SpaceReference space = new SpaceReference("Space", new WikiReference("wiki"));
+        when(this.referenceResolver.resolve("wiki:Space", EntityType.SPACE)).thenReturn(space);
+        DocumentReference admin = new DocumentReference("wiki", "XWiki", "Admin");
+        DocumentReference guest = new DocumentReference("wiki", "XWiki", "Guest");
+        when(this.referenceSerializer.serialize(admin)).thenReturn("wiki:XWiki.Admin");
+        when(this.referenceSerializer.serialize(guest)).thenReturn("wiki:XWiki.Guest");
+
+        EventPredicate predicate = this.factory.createPredicate(Arrays.asList(
+            condition("source.authorReference", "in", Arrays.asList("wiki:XWiki.Admin", "wiki:XWiki.Other")),
+            condition("source.documentReference", "wiki", "wiki"),
+            condition("source.documentReference", "space", "wiki:Space"),
+            condition("data.action", "equals", "save")));
+
+        // The subscriptions are indexed by the most selective scope
+        assertEquals("source.documentReference", predicate.getScopeProperty().toString());
+        assertEquals(Collections.singleton(space), predicate.getScopes());
+
+        DocumentReference page = new DocumentReference("wiki", Arrays.asList("Space", "Nested"), "Page");
+        Map<String, Object> data = Collections.singletonMap("action", "save");
+        assertTrue(test(predicate, new Source(page, admin), data));
+        assertFalse(test(predicate, new Source(page, guest), data));
+        assertFalse(test(predicate, new Source(new DocumentReference("wiki", "Other", "Page"), admin), data));
+        assertFalse(test(predicate, new Source(page, admin), Collections.singletonMap("action", "view")));
+        // The properties which cannot be resolved have no value
+        assertFalse(test(predicate, "source", data));
+
+        EventPredicate prefix =
+            this.factory.createPredicate(Arrays.asList(condition("data.action", "prefix", "sa")));
+        assertNull(prefix.getScopeProperty());
+        assertTrue(test(prefix, null, data));
+        assertFalse(test(prefix, null, null));
+
+        assertSame(EventPredicate.ALWAYS, this.factory.createPredicate(null));
+    }
+
+    @Test
+    void createPredicateOnAllowedProperties()
+    {
+        // The other properties of the source and data (e.g. of the request context) cannot be probed
+        assertThrows(IllegalArgumentException.class, () -> this.factory
+            .createPredicate(Arrays.asList(condition("data.request.requestedSessionId", "prefix", "a"))));
+        assertThrows(IllegalArgumentException.class,
+            () -> this.factory.createProperty("data.userReference"));
+
+        when(this.configuration.getFilterProperties()).thenReturn(Arrays.asList("source.title"));
+
+        EventPredicate predicate =
+            this.factory.createPredicate(Arrays.asList(condition("source.title", "equals", "Title")));
+        assertTrue(test(predicate, Collections.singletonMap("title", "Title"), null));
+        assertEquals("source.title", this.factory.createProperty("source.title").toString());
+    }
+
+    @Test
+    void createInvalidPredicate()
+    {
+        assertThrows(IllegalArgumentException.class, () -> this.factory.createPredicate("source"));
+        assertThrows(IllegalArgumentException.class,
+            () -> this.factory.createPredicate(Arrays.asList(condition("event.name", "equals", "name"))));
+        assertThrows(IllegalArgumentException.class,
+            () -> this.factory.createPredicate(Arrays.asList(condition("data.action", "unknown", "save"))));
+
+        Map<String, Object> condition = condition("data.action", "equals", "save");
+        condition.put("prefix", "sa");
+        assertThrows(IllegalArgumentException.class,
+            () -> this.factory.createPredicate(Arrays.asList(condition)));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.filter.TokenFilter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link EventProjection}.
+ *
+ * @version $Id$
+ */
+class EventProjectionTest
+{
+    private EventProjection parse(Boolean source, Boolean data, String... paths)
+    {
+        Map<String, Object> projection = new HashMap<>();
+        projection.put("source", source);
+        projection.put("data", data);
+        projection.put("paths", Arrays.asList(paths));
+
+        return EventProjection.parse(projection);
+    }
+
+    @Test
+    void parse()
+    {
+        assertSame(EventProjection.ALL, EventProjection.parse(null));
+        assertSame(EventProjection.ALL, EventProjection.parse(Collections.emptyMap()));
+        // Keeping a whole part is the same as not giving any path for it
+        assertSame(EventProjection.ALL, parse(true, null, "/source"));
+
+        EventProjection projection = parse(null, false, "/source/documentReference", "/data/ignored");
+        assertSame(TokenFilter.INCLUDE_ALL, projection.getFilter(EventProjection.EVENT));
+        assertNotNull(projection.getFilter(EventProjection.SOURCE));
+        assertFalse(projection.getFilter(EventProjection.SOURCE) == TokenFilter.INCLUDE_ALL);
+        assertNull(projection.getFilter(EventProjection.DATA));
+
+        // The projections are compared by value
+        assertEquals(projection, parse(true, false, "/source/documentReference"));
+    }
+
+    @Test
+    void parseInvalid()
+    {
+        assertThrows(IllegalArgumentException.class, () -> EventProjection.parse("source"));
+        assertThrows(IllegalArgumentException.class, () -> parse(null, null, "source"));
+        assertThrows(IllegalArgumentException.class, () -> parse(null, null, "/unknown/path"));
+        assertThrows(IllegalArgumentException.class,
+            () -> EventProjection.parse(Collections.singletonMap("paths", "/source")));
+    }
+
+    @Test
+    void union()
+    {
+        EventProjection reference = parse(null, false, "/source/documentReference");
+        EventProjection locale = parse(null, false, "/source/locale", "/event/name");
+
+        EventProjection union = reference.union(locale);
+        assertEquals(parse(null, false, "/source/documentReference", "/source/locale"), union);
+        assertTrue(union.includes(reference));
+        assertTrue(union.includes(locale));
+        assertFalse(reference.includes(union));
+
+        assertSame(EventProjection.ALL, union.union(EventProjection.ALL));
+        assertSame(reference, reference.union(parse(null, false, "/source/documentReference")));
+    }
+}
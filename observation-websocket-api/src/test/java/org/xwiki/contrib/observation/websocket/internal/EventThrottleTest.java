@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.event.WikiReadyEvent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link EventThrottle}.
+ *
+ * @version $Id$
+ */
+class EventThrottleTest
+{
+    private Map<String, Object> options(String key1, Object value1, String key2, Object value2)
+    {
+        Map<String, Object> options = new HashMap<>();
+        options.put(key1, value1);
+        options.put(key2, value2);
+
+        return options;
+    }
+
+    private EventThrottle throttle(Object conflate, Object rateLimit)
+    {
+        return EventThrottle.create(conflate, rateLimit, path -> new EventPredicate.Property(String.valueOf(path)));
+    }
+
+    @Test
+    void create()
+    {
+        assertNull(throttle(null, null));
+        assertTrue(throttle(Collections.singletonMap("window", 100), null).isConflating());
+        assertFalse(throttle(null, Collections.singletonMap("maxEvents", 10)).isConflating());
+
+        assertThrows(IllegalArgumentException.class, () -> throttle("window", null));
+        assertThrows(IllegalArgumentException.class,
+            () -> throttle(Collections.singletonMap("window", 600000), null));
+        assertThrows(IllegalArgumentException.class,
+            () -> throttle(options("key", "document", "window", 100), null));
+        assertThrows(IllegalArgumentException.class,
+            () -> throttle(null, Collections.singletonMap("period", 1000)));
+    }
+
+    @Test
+    void conflate()
+    {
+        EventThrottle throttle = throttle(options("key", "data.name", "window", 100), null);
+
+        Object key = throttle.getKey(new EventPredicate.PropertyValues(null, Collections.singletonMap("name", "a")));
+        assertEquals("a", key);
+
+        EventThrottle.HeldEvent first = new EventThrottle.HeldEvent(new WikiReadyEvent(), null, "first");
+        EventThrottle.HeldEvent second = new EventThrottle.HeldEvent(new WikiReadyEvent(), null, "second");
+
+        // The first event is sent and opens the window, the following ones replace each other
+        assertFalse(throttle.hold(key, first));
+        assertTrue(throttle.openWindow(key));
+        assertTrue(throttle.hold(key, first));
+        assertTrue(throttle.hold(key, second));
+
+        // The latest event is sent when the window closes, which opens a new window
+        assertSame(second, throttle.closeWindow(key));
+        assertTrue(throttle.hold(key, first));
+        assertSame(first, throttle.closeWindow(key));
+
+        // The window is closed when no event was held
+        assertNull(throttle.closeWindow(key));
+        assertFalse(throttle.hold(key, first));
+    }
+
+    @Test
+    void rateLimit()
+    {
+        EventThrottle throttle = throttle(null, options("maxEvents", 2, "period", 100));
+
+        assertTrue(throttle.acquire(1000));
+        assertTrue(throttle.acquire(1010));
+        assertFalse(throttle.acquire(1020));
+        assertFalse(throttle.acquire(1050));
+        assertEquals(2, throttle.getSuppressed());
+        assertEquals(1100, throttle.getPeriodEnd());
+
+        // A new period starts
+        assertTrue(throttle.acquire(1100));
+        assertEquals(2, throttle.takeSuppressed());
+        assertEquals(0, throttle.getSuppressed());
+    }
+}
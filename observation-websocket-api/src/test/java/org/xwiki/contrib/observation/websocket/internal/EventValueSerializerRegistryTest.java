@@ -0,0 +1,161 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.contrib.observation.websocket.EventValueSerializer;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link EventValueSerializerRegistry}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class EventValueSerializerRegistryTest
+{
+    private static final Type NAMED_SERIALIZER_TYPE =
+        new DefaultParameterizedType(null, EventValueSerializer.class, Named.class);
+
+    @MockComponent
+    private WebSocketObservationConfiguration configuration;
+
+    @InjectMockComponents
+    private EventValueSerializerRegistry registry;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    private final EventValueSerializer<Named> namedSerializer =
+        (value, generator, provider) -> generator.writeString(value.getName());
+
+    public interface Named
+    {
+        String getName();
+    }
+
+    public static class Node
+    {
+        public String name;
+
+        public Node child;
+
+        Node(String name, Node child)
+        {
+            this.name = name;
+            this.child = child;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.name;
+        }
+    }
+
+    public static class NamedNode extends Node implements Named
+    {
+        NamedNode(String name)
+        {
+            super(name, null);
+        }
+
+        @Override
+        public String getName()
+        {
+            return "named " + this.name;
+        }
+    }
+
+    @BeforeEach
+    void beforeEach()
+    {
+        when(this.configuration.getSerializerMaxDepth()).thenReturn(2);
+    }
+
+    @Test
+    void resolveAlongTypeHierarchy() throws Exception
+    {
+        this.componentManager.registerComponent(NAMED_SERIALIZER_TYPE, this.namedSerializer);
+
+        assertSame(this.namedSerializer, this.registry.getSerializer(NamedNode.class));
+        assertNull(this.registry.getSerializer(Node.class));
+
+        assertEquals("{\"node\":\"named a\"}",
+            this.registry.getMapper().writeValueAsString(Collections.singletonMap("node", new NamedNode("a"))));
+    }
+
+    @Test
+    void invalidate() throws Exception
+    {
+        assertEquals("{\"name\":\"named a\",\"child\":null}",
+            this.registry.getMapper().writeValueAsString(new NamedNode("a")));
+
+        this.componentManager.registerComponent(NAMED_SERIALIZER_TYPE, this.namedSerializer);
+
+        // The resolved serializers are cached
+        assertNull(this.registry.getSerializer(NamedNode.class));
+
+        this.registry.invalidate();
+
+        assertSame(this.namedSerializer, this.registry.getSerializer(NamedNode.class));
+        assertEquals("\"named a\"", this.registry.getMapper().writeValueAsString(new NamedNode("a")));
+    }
+
+    @Test
+    void boundedDepth() throws Exception
+    {
+        Node node = new Node("a", new Node("b", new Node("c", new Node("d", null))));
+
+        assertEquals("{\"name\":\"a\",\"child\":{\"name\":\"b\",\"child\":\"c\"}}",
+            this.registry.getMapper().writeValueAsString(node));
+    }
+
+    @Test
+    void boundedDepthOfContainers() throws Exception
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("name", "a");
+        map.put("self", map);
+
+        assertEquals("{\"name\":\"a\",\"self\":{\"name\":\"a\",\"self\":\"LinkedHashMap(2)\"}}",
+            this.registry.getMapper().writeValueAsString(map));
+
+        Object[] array = new Object[] {"a", new Object[] {"b", new Object[] {"c", "d"}}};
+
+        assertEquals("[\"a\",[\"b\",\"Object[](2)\"]]", this.registry.getMapper().writeValueAsString(array));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link InboundMessageParser}.
+ *
+ * @version $Id$
+ */
+class InboundMessageParserTest
+{
+    @Test
+    void parseAddListeners() throws IOException
+    {
+        InboundMessage message = InboundMessageParser.parse("{\"type\": \"resume\", \"unknown\": {\"a\": [1]}, "
+            + "\"data\": [{\"listenerId\": 1, \"eventType\": {\"id\": \"org.xwiki.bridge.event.DocumentUpdatedEvent\", "
+            + "\"params\": {\"wikiId\": \"xwiki\"}}, \"where\": [{\"property\": \"source.documentReference\", "
+            + "\"space\": \"xwiki:Sandbox\"}], \"projection\": {\"data\": false}, \"rateLimit\": {\"maxEvents\": 10}, "
+            + "\"eventData\": {\"nested\": [true, null, 1.5]}, \"seq\": 1760784000000042, \"priority\": \"high\"}]}");
+
+        assertEquals(InboundMessage.Type.RESUME, message.getType());
+        assertEquals(1, message.getListeners().size());
+        ListenerRequest listener = message.getListeners().get(0);
+        assertEquals(1, listener.getListenerId());
+        assertEquals("org.xwiki.bridge.event.DocumentUpdatedEvent", listener.getEventType());
+        assertEquals(Collections.singletonMap("wikiId", "xwiki"), listener.getParams());
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("property", "source.documentReference");
+        condition.put("space", "xwiki:Sandbox");
+        assertEquals(Collections.singletonList(condition), listener.getWhere());
+        assertEquals(Collections.singletonMap("data", false), listener.getProjection());
+        assertNull(listener.getConflate());
+        assertEquals(Collections.singletonMap("maxEvents", 10), listener.getRateLimit());
+        assertEquals(Collections.singletonMap("nested", Arrays.asList(true, null, 1.5)), listener.getEventData());
+        assertEquals(Long.valueOf(1760784000000042L), listener.getSequence());
+        assertTrue(listener.isHighPriority());
+    }
+
+    @Test
+    void parseDataBeforeType() throws IOException
+    {
+        InboundMessage message = InboundMessageParser.parse(
+            "{\"data\": {\"eventType\": {\"id\": \"org.xwiki.bridge.event.DocumentCreatedEvent\"}}, "
+                + "\"type\": \"addListener\"}");
+
+        assertEquals(InboundMessage.Type.ADD_LISTENER, message.getType());
+        ListenerRequest listener = message.getListeners().get(0);
+        assertEquals("org.xwiki.bridge.event.DocumentCreatedEvent", listener.getEventType());
+        assertEquals(Collections.emptyMap(), listener.getParams());
+        assertNull(listener.getListenerId());
+        assertNull(listener.getSequence());
+        assertFalse(listener.isHighPriority());
+    }
+
+    @Test
+    void parseRemoveListenersAndConfigure() throws IOException
+    {
+        InboundMessage message = InboundMessageParser.parse("{\"type\": \"removeListeners\", \"data\": [42, 43]}");
+        assertEquals(InboundMessage.Type.REMOVE_LISTENERS, message.getType());
+        assertEquals(Arrays.asList(42L, 43L), message.getIds());
+
+        message = InboundMessageParser.parse("{\"type\": \"configure\", \"data\": {\"batch\": null, "
+            + "\"encoding\": \"smile\"}}");
+        assertEquals(InboundMessage.Type.CONFIGURE, message.getType());
+        assertEquals(Arrays.asList("batch", "encoding"), Arrays.asList(message.getOptions().keySet().toArray()));
+        assertNull(message.getOptions().get("batch"));
+        assertEquals("smile", message.getOptions().get("encoding"));
+    }
+
+    @Test
+    void parseInvalid()
+    {
+        assertThrows(IOException.class, () -> InboundMessageParser.parse("{\"type\": \"addListeners\""));
+        assertThrows(JsonParseException.class, () -> InboundMessageParser.parse("[]"));
+        assertThrows(JsonParseException.class, () -> InboundMessageParser.parse("{\"data\": []}"));
+        assertThrows(JsonParseException.class, () -> InboundMessageParser.parse("{\"type\": \"unknown\"}"));
+        assertThrows(JsonParseException.class, () -> InboundMessageParser.parse("{\"type\": \"addListeners\"}"));
+        assertThrows(JsonParseException.class,
+            () -> InboundMessageParser.parse("{\"type\": \"addListeners\", \"data\": {}}"));
+        assertThrows(JsonParseException.class,
+            () -> InboundMessageParser.parse("{\"type\": \"removeListeners\", \"data\": [\"42\"]}"));
+        assertThrows(JsonParseException.class,
+            () -> InboundMessageParser.parse("{\"type\": \"configure\", \"data\": {}} {}"));
+
+        // The free-form values have a limited depth
+        StringBuilder nested = new StringBuilder("{\"type\": \"configure\", \"data\": {\"a\": ");
+        for (int i = 0; i < InboundMessageParser.MAX_DEPTH; i++) {
+            nested.append('[');
+        }
+        for (int i = 0; i < InboundMessageParser.MAX_DEPTH; i++) {
+            nested.append(']');
+        }
+        nested.append("}}");
+        assertThrows(JsonParseException.class, () -> InboundMessageParser.parse(nested.toString()));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Validate {@link LatencyHistogram}.
+ *
+ * @version $Id$
+ */
+class LatencyHistogramTest
+{
+    @Test
+    void snapshot()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getSnapshot().get("count"));
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(5000));
+
+        Map<String, Long> snapshot = histogram.getSnapshot();
+        assertEquals(100, snapshot.get("count"));
+        assertEquals((98 * 10 + 100 + 5000) / 100, snapshot.get("mean"));
+        // The upper bound of the bucket holding the value
+        assertEquals(16, snapshot.get("p50"));
+        assertEquals(16, snapshot.get("p90"));
+        assertEquals(128, snapshot.get("p99"));
+        assertEquals(5000, snapshot.get("max"));
+    }
+}
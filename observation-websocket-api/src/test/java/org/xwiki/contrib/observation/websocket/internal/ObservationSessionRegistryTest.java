@@ -0,0 +1,110 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.websocket.Session;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration.SlowClientPolicy;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Validate {@link ObservationSessionRegistry}.
+ *
+ * @version $Id$
+ */
+class ObservationSessionRegistryTest
+{
+    private static final DocumentReference ALICE = new DocumentReference("wiki", "XWiki", "Alice");
+
+    private final ObservationSessionRegistry registry = new ObservationSessionRegistry();
+
+    private final Map<Long, ObservationSession> created = new HashMap<>();
+
+    private ObservationSession register(DocumentReference user, int maxSessionsPerUser)
+    {
+        return this.registry.register(user, maxSessionsPerUser, id -> {
+            ObservationSession session = new ObservationSession(mock(Session.class), 10, 1000, 10,
+                SlowClientPolicy.DROP_OLDEST, mock(WebSocketObservationScheduler.class),
+                new WebSocketObservationMetrics(), mock(Logger.class), mock(Runnable.class));
+            session.setUser(user);
+            this.created.put(id, session);
+
+            return session;
+        });
+    }
+
+    @Test
+    void sessionsPerUser()
+    {
+        ObservationSession session = register(ALICE, 2);
+        assertNotNull(register(ALICE, 2));
+        // Too many sessions for the user
+        assertNull(register(ALICE, 2));
+        // The other users are not affected, nor the unknown ones
+        assertNotNull(register(new DocumentReference("wiki", "XWiki", "Bob"), 2));
+        assertNotNull(register(null, 2));
+        assertEquals(4, this.registry.getSessionCount());
+
+        long id = this.created.entrySet().stream().filter(entry -> entry.getValue() == session).findFirst().get()
+            .getKey();
+        assertSame(session, this.registry.get(id));
+        assertSame(session, this.registry.unregister(id));
+        assertNull(this.registry.get(id));
+        assertNull(this.registry.unregister(id));
+
+        // The released session can be used again
+        assertNotNull(register(ALICE, 2));
+    }
+
+    @Test
+    void subscriptions()
+    {
+        ObservationSession session = register(ALICE, 0);
+        this.registry.acquireSubscription(session, 1, 2);
+        session.getSubscriptions().put(1L, new EventSubscription(1, Object.class, null, "null", new byte[0],
+            EventProjection.ALL, session, false));
+
+        IllegalStateException exception =
+            assertThrows(IllegalStateException.class, () -> this.registry.acquireSubscription(session, 1, 2));
+        assertEquals("Too many listeners registered by this client (limit: 1)", exception.getMessage());
+
+        ObservationSession other = register(ALICE, 0);
+        this.registry.acquireSubscription(other, 1, 2);
+        exception = assertThrows(IllegalStateException.class,
+            () -> this.registry.acquireSubscription(register(ALICE, 0), 1, 2));
+        assertEquals("Too many listeners registered on the server (limit: 2)", exception.getMessage());
+        assertEquals(2, this.registry.getSubscriptionCount());
+
+        this.registry.releaseSubscriptions(2);
+        assertEquals(0, this.registry.getSubscriptionCount());
+    }
+}
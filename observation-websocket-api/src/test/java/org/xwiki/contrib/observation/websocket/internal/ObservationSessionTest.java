@@ -0,0 +1,360 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.apache.commons.lang3.tuple.Triple;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.WikiReadyEvent;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration.SlowClientPolicy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ObservationSession}.
+ *
+ * @version $Id$
+ */
+class ObservationSessionTest
+{
+    private static final Triple<Map<String, Object>, Object, Object> FILTER_KEY =
+        Triple.of(Collections.emptyMap(), null, null);
+
+    private Session session;
+
+    private final WebSocketObservationScheduler scheduler = mock(WebSocketObservationScheduler.class);
+
+    private final WebSocketObservationMetrics metrics = new WebSocketObservationMetrics();
+
+    private final List<String> sent = new ArrayList<>();
+
+    private final List<SendHandler> handlers = new ArrayList<>();
+
+    private final Runnable releaser = mock(Runnable.class);
+
+    @BeforeEach
+    void beforeEach()
+    {
+        this.session = mock(Session.class);
+        RemoteEndpoint.Async async = mock(RemoteEndpoint.Async.class);
+        when(this.session.getAsyncRemote()).thenReturn(async);
+        // Simulate a slow client: the messages are sent only when the test completes the pending handlers
+        doAnswer(invocation -> {
+            this.sent.add(invocation.getArgument(0));
+            this.handlers.add(invocation.getArgument(1));
+
+            return null;
+        }).when(async).sendText(any(), any());
+    }
+
+    private ObservationSession createSession(int maxMessages, SlowClientPolicy policy)
+    {
+        return new ObservationSession(this.session, maxMessages, 1000, 2, policy, this.scheduler, this.metrics,
+            mock(Logger.class), this.releaser);
+    }
+
+    private WebSocketEventsSerializer createSerializer()
+    {
+        WebSocketObservationConfiguration configuration = mock(WebSocketObservationConfiguration.class);
+        when(configuration.getSerializerMaxDepth()).thenReturn(5);
+        when(configuration.getCompressionLevel()).thenReturn(6);
+        EventValueSerializerRegistry registry = new EventValueSerializerRegistry();
+        ReflectionUtils.setFieldValue(registry, "configuration", configuration);
+        ReflectionUtils.setFieldValue(registry, "componentManager", mock(ComponentManager.class));
+
+        WebSocketEventsSerializer serializer = new WebSocketEventsSerializer();
+        ReflectionUtils.setFieldValue(serializer, "registry", registry);
+        ReflectionUtils.setFieldValue(serializer, "configuration", configuration);
+
+        return serializer;
+    }
+
+    private void completeAll()
+    {
+        while (!this.handlers.isEmpty()) {
+            this.handlers.remove(0).onResult(new SendResult());
+        }
+    }
+
+    @Test
+    void sendOneAtATime()
+    {
+        ObservationSession observationSession = createSession(10, SlowClientPolicy.DROP_OLDEST);
+
+        observationSession.send(new OutboundMessage("a", 1));
+        observationSession.send(new OutboundMessage("b", 1));
+
+        assertEquals(Arrays.asList("a"), this.sent);
+        assertEquals(1, observationSession.getQueueLength());
+
+        completeAll();
+
+        assertEquals(Arrays.asList("a", "b"), this.sent);
+        assertEquals(0, observationSession.getQueueLength());
+    }
+
+    @Test
+    void dropOldest()
+    {
+        ObservationSession observationSession = createSession(2, SlowClientPolicy.DROP_OLDEST);
+
+        observationSession.send(new OutboundMessage("a", 1));
+        observationSession.send(new OutboundMessage("b", 1));
+        observationSession.send(new OutboundMessage("c", 2));
+        observationSession.send(new OutboundMessage("d", 1));
+
+        completeAll();
+
+        assertEquals(Arrays.asList("a", "c", "d"), this.sent);
+        assertEquals(1, observationSession.getDroppedCount());
+        assertEquals(1, this.metrics.getDroppedMessageCount());
+        assertEquals(3, this.metrics.getSentFrameCount());
+        assertEquals(3, this.metrics.getSentBytes());
+    }
+
+    @Test
+    void conflate()
+    {
+        ObservationSession observationSession = createSession(2, SlowClientPolicy.CONFLATE);
+
+        observationSession.send(new OutboundMessage("a", 1));
+        observationSession.send(new OutboundMessage("b", 1));
+        observationSession.send(new OutboundMessage("c", 2));
+        observationSession.send(new OutboundMessage("d", 2));
+
+        completeAll();
+
+        assertEquals(Arrays.asList("a", "b", "d"), this.sent);
+        assertEquals(1, observationSession.getDroppedCount());
+    }
+
+    @Test
+    void close() throws Exception
+    {
+        ObservationSession observationSession = createSession(1, SlowClientPolicy.CLOSE);
+
+        observationSession.send(new OutboundMessage("a", 1));
+        observationSession.send(new OutboundMessage("b", 1));
+
+        verify(this.session, never()).close(any(CloseReason.class));
+
+        observationSession.send(new OutboundMessage("c", 1));
+
+        verify(this.session).close(any(CloseReason.class));
+
+        completeAll();
+
+        assertEquals(Arrays.asList("a"), this.sent);
+    }
+
+    @Test
+    void sendFailure() throws Exception
+    {
+        ObservationSession observationSession = createSession(10, SlowClientPolicy.DROP_OLDEST);
+        doThrow(new IllegalStateException("broken")).when(this.session.getAsyncRemote()).sendText(eq("b"), any());
+
+        observationSession.send(new OutboundMessage("a", 1));
+        observationSession.send(new OutboundMessage("b", 1));
+
+        verify(this.releaser, never()).run();
+
+        completeAll();
+
+        verify(this.releaser).run();
+        verify(this.session).close(any(CloseReason.class));
+        assertEquals(1, observationSession.getFailedCount());
+        assertEquals(1, this.metrics.getSendFailureCount());
+
+        // The session is closed so the next messages are ignored
+        observationSession.send(new OutboundMessage("c", 1));
+
+        assertEquals(Arrays.asList("a"), this.sent);
+    }
+
+    @Test
+    void priority()
+    {
+        ObservationSession observationSession = createSession(10, SlowClientPolicy.DROP_OLDEST);
+
+        observationSession.send(new OutboundMessage("a", 1));
+        observationSession.send(new OutboundMessage("b", 1));
+        observationSession.send(new OutboundMessage("c", 1));
+        observationSession.send(new OutboundMessage("d", 1));
+        observationSession.send(new OutboundMessage("p1", OutboundMessage.NO_KEY, true));
+        observationSession.send(new OutboundMessage("p2", OutboundMessage.NO_KEY, true));
+        observationSession.send(new OutboundMessage("p3", OutboundMessage.NO_KEY, true));
+
+        completeAll();
+
+        // The high priority messages go first, but not more than 2 in a row while normal messages are waiting
+        assertEquals(Arrays.asList("a", "p1", "p2", "b", "p3", "c", "d"), this.sent);
+    }
+
+    @Test
+    void dropNormalMessagesFirst()
+    {
+        ObservationSession observationSession = createSession(2, SlowClientPolicy.DROP_OLDEST);
+
+        observationSession.send(new OutboundMessage("a", 1));
+        observationSession.send(new OutboundMessage("p1", OutboundMessage.NO_KEY, true));
+        observationSession.send(new OutboundMessage("b", 1));
+        observationSession.send(new OutboundMessage("c", 1));
+
+        completeAll();
+
+        assertEquals(Arrays.asList("a", "p1", "c"), this.sent);
+        assertEquals(1, observationSession.getDroppedCount());
+    }
+
+    @Test
+    void batch() throws Exception
+    {
+        ObservationSession observationSession = createSession(10, SlowClientPolicy.DROP_OLDEST);
+        observationSession.setBatching(new ObservationSession.Batching(50, 2, 1000));
+
+        WebSocketEventFrame frame = createSerializer().serialize(new WikiReadyEvent("wiki1"), null, null);
+        EventSubscription subscription = new EventSubscription(1, WikiReadyEvent.class, FILTER_KEY, "1",
+            new byte[0], EventProjection.ALL, observationSession, false);
+
+        observationSession.sendEvent(frame, subscription);
+
+        ArgumentCaptor<Runnable> flushCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(this.scheduler).schedule(flushCaptor.capture(), eq(50L), eq(TimeUnit.MILLISECONDS));
+        assertTrue(this.sent.isEmpty());
+
+        // The delay expired
+        flushCaptor.getValue().run();
+
+        String eventData = frame.toEventData("1");
+        assertEquals(Arrays.asList("{\"type\":\"events\",\"data\":[" + eventData + "]}"), this.sent);
+
+        // The maximum number of events is reached
+        observationSession.sendEvent(frame, subscription);
+        observationSession.sendEvent(frame, subscription);
+        completeAll();
+
+        assertEquals("{\"type\":\"events\",\"data\":[" + eventData + ',' + eventData + "]}", this.sent.get(1));
+    }
+
+    @Test
+    void highPriorityEventsAreNotBatched() throws Exception
+    {
+        ObservationSession observationSession = createSession(10, SlowClientPolicy.DROP_OLDEST);
+        observationSession.setBatching(new ObservationSession.Batching(50, 2, 1000));
+
+        WebSocketEventFrame frame = createSerializer().serialize(new WikiReadyEvent("wiki1"), null, null);
+        EventSubscription subscription = new EventSubscription(1, WikiReadyEvent.class, FILTER_KEY, "1",
+            new byte[0], EventProjection.ALL, observationSession, true);
+
+        observationSession.sendEvent(frame, subscription);
+
+        verify(this.scheduler, never()).schedule(any(Runnable.class), eq(50L), eq(TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList(frame.toMessage("1")), this.sent);
+    }
+
+    @Test
+    void binary() throws Exception
+    {
+        ObservationSession observationSession = createSession(10, SlowClientPolicy.DROP_OLDEST);
+        observationSession.setEncoding(ObservationSession.Encoding.SMILE);
+
+        WebSocketEventsSerializer serializer = createSerializer();
+        WebSocketEventFrame frame = serializer.serialize(new WikiReadyEvent("wiki1"), null, null);
+        byte[] listenerData = serializer.serializeBinaryListenerData("data");
+        EventSubscription subscription =
+            new EventSubscription(1, WikiReadyEvent.class, FILTER_KEY, "\"data\"", listenerData,
+                EventProjection.ALL, observationSession, false);
+
+        observationSession.sendEvent(frame, subscription);
+
+        ArgumentCaptor<ByteBuffer> bufferCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
+        verify(this.session.getAsyncRemote()).sendBinary(bufferCaptor.capture(), any());
+
+        ByteBuffer buffer = bufferCaptor.getValue();
+        // The Smile document holding the event followed by the one holding the listener data
+        assertEquals(frame.getBinary().length + listenerData.length, buffer.remaining());
+        assertEquals(':', buffer.get(0));
+        assertEquals(':', buffer.get(frame.getBinary().length));
+    }
+
+    @Test
+    void compressed() throws Exception
+    {
+        ObservationSession observationSession = createSession(10, SlowClientPolicy.DROP_OLDEST);
+        observationSession.setCompressed(true);
+
+        WebSocketEventsSerializer serializer = createSerializer();
+        WebSocketEventFrame frame = serializer.serialize(new WikiReadyEvent("wiki1"), null, null);
+        byte[] listenerData = serializer.serializeBinaryListenerData("data");
+        EventSubscription subscription = new EventSubscription(1, WikiReadyEvent.class, FILTER_KEY, "\"data\"",
+            listenerData, EventProjection.ALL, observationSession, false);
+
+        observationSession.sendEvent(frame, subscription);
+
+        ArgumentCaptor<ByteBuffer> bufferCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
+        verify(this.session.getAsyncRemote()).sendBinary(bufferCaptor.capture(), any());
+
+        // The lengths of the compressed event and of the listener data, followed by their content
+        ByteBuffer buffer = bufferCaptor.getValue();
+        byte[] compressed = new byte[buffer.getInt()];
+        assertEquals(listenerData.length, buffer.getInt());
+        buffer.get(compressed);
+        assertEquals(listenerData.length, buffer.remaining());
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed);
+        byte[] event = new byte[frame.getBinary().length];
+        assertEquals(event.length, inflater.inflate(event));
+        assertArrayEquals(frame.getBinary(), event);
+
+        // The event is compressed only once
+        assertSame(frame.getCompressed(), frame.getCompressed());
+    }
+}
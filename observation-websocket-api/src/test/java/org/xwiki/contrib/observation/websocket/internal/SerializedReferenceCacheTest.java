@@ -0,0 +1,214 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link SerializedReferenceCache}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class SerializedReferenceCacheTest
+{
+    private static final DocumentReference PAGE = new DocumentReference("wiki", "Space", "Page");
+
+    private static final DocumentReference OTHER = new DocumentReference("wiki", "Space", "Other");
+
+    private static final DocumentReference USER = new DocumentReference("wiki", "XWiki", "User");
+
+    @MockComponent
+    private WebSocketObservationConfiguration configuration;
+
+    @MockComponent
+    private WebSocketObservationMetrics metrics;
+
+    @InjectMockComponents
+    private SerializedReferenceCache cache;
+
+    private final AtomicInteger serializations = new AtomicInteger();
+
+    private ObjectMapper mapper;
+
+    /**
+     * Holds a reference at a given nesting level.
+     */
+    private static final class Holder
+    {
+        private final EntityReference reference;
+
+        private final int depth;
+
+        Holder(EntityReference reference, int depth)
+        {
+            this.reference = reference;
+            this.depth = depth;
+        }
+    }
+
+    @BeforeEach
+    void beforeEach()
+    {
+        SimpleModule module = new SimpleModule();
+        module.addSerializer(EntityReference.class, new JsonSerializer<EntityReference>()
+        {
+            @Override
+            public void serialize(EntityReference value, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+            {
+                serializations.incrementAndGet();
+                generator.writeStartObject();
+                generator.writeStringField("name", value.getName());
+                generator.writeNumberField("depth", generator.getOutputContext().getNestingDepth());
+                generator.writeEndObject();
+            }
+        });
+        module.addSerializer(Holder.class, new JsonSerializer<Holder>()
+        {
+            @Override
+            public void serialize(Holder value, JsonGenerator generator, SerializerProvider provider)
+                throws IOException
+            {
+                for (int i = 0; i < value.depth; ++i) {
+                    generator.writeStartArray();
+                }
+                cache.serialize(value.reference, generator, provider);
+                for (int i = 0; i < value.depth; ++i) {
+                    generator.writeEndArray();
+                }
+            }
+        });
+        this.mapper = new ObjectMapper().registerModule(module);
+    }
+
+    private void initialize(int size)
+    {
+        when(this.configuration.getSerializerReferenceCacheSize()).thenReturn(size);
+        this.cache.initialize();
+    }
+
+    private String write(EntityReference reference, int depth) throws IOException
+    {
+        return this.mapper.writeValueAsString(new Holder(reference, depth));
+    }
+
+    @Test
+    void serializeFromCache() throws Exception
+    {
+        initialize(10);
+
+        assertEquals("{\"name\":\"Page\",\"depth\":1}", write(PAGE, 0));
+        assertEquals("{\"name\":\"Page\",\"depth\":1}", write(PAGE, 0));
+        // Equal references share the same entry
+        assertEquals("{\"name\":\"Page\",\"depth\":1}", write(new DocumentReference("wiki", "Space", "Page"), 0));
+        assertEquals(1, this.serializations.get());
+
+        // The serialization depends on the nesting level
+        assertEquals("[[{\"name\":\"Page\",\"depth\":3}]]", write(PAGE, 2));
+        assertEquals("[[{\"name\":\"Page\",\"depth\":3}]]", write(PAGE, 2));
+        assertEquals(2, this.serializations.get());
+
+        assertEquals("null", write(null, 0));
+
+        verify(this.metrics, times(3)).referenceCacheHit();
+        verify(this.metrics, times(2)).referenceCacheMissed();
+    }
+
+    @Test
+    void serializeReferencesCreatedForEachRequest() throws Exception
+    {
+        initialize(10);
+
+        // The user reference of each request is a new instance, collected once the request is handled
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("{\"name\":\"User\",\"depth\":1}",
+                write(new DocumentReference("wiki", "XWiki", "User"), 0));
+            System.gc();
+        }
+
+        assertEquals(1, this.serializations.get());
+        verify(this.metrics, times(2)).referenceCacheHit();
+        verify(this.metrics).referenceCacheMissed();
+    }
+
+    @Test
+    void evictLeastRecentlyUsed() throws Exception
+    {
+        initialize(2);
+
+        write(PAGE, 0);
+        write(OTHER, 0);
+        write(PAGE, 0);
+        write(USER, 0);
+        assertEquals(3, this.serializations.get());
+
+        // The other page was evicted
+        write(PAGE, 0);
+        write(OTHER, 0);
+        assertEquals(4, this.serializations.get());
+    }
+
+    @Test
+    void clear() throws Exception
+    {
+        initialize(10);
+
+        write(PAGE, 0);
+        this.cache.clear();
+        write(PAGE, 0);
+
+        assertEquals(2, this.serializations.get());
+    }
+
+    @Test
+    void disabled() throws Exception
+    {
+        initialize(0);
+
+        write(PAGE, 0);
+        write(PAGE, 0);
+
+        assertEquals(2, this.serializations.get());
+        verify(this.metrics, never()).referenceCacheHit();
+        verify(this.metrics, never()).referenceCacheMissed();
+    }
+}
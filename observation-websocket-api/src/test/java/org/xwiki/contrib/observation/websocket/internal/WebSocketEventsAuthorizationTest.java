@@ -0,0 +1,179 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link WebSocketEventsAuthorization}.
+ *
+ * @version $Id$
+ */
+class WebSocketEventsAuthorizationTest
+{
+    private static final DocumentReference ALICE = new DocumentReference("wiki", "XWiki", "Alice");
+
+    private static final DocumentReference BOB = new DocumentReference("wiki", "XWiki", "Bob");
+
+    private static final DocumentReference PAGE = new DocumentReference("wiki", "Space", "Page");
+
+    private final AuthorizationManager authorizationManager = mock(AuthorizationManager.class);
+
+    private final Map<String, Boolean> cached = new HashMap<>();
+
+    private final EntityReferenceSerializer<String> serializer = mock(EntityReferenceSerializer.class);
+
+    private WebSocketEventsAuthorization authorization;
+
+    @BeforeEach
+    void beforeEach() throws Exception
+    {
+        Cache<Boolean> cache = mock(Cache.class);
+        when(cache.get(any())).then(invocation -> this.cached.get(invocation.getArgument(0)));
+        doAnswer(invocation -> this.cached.put(invocation.getArgument(0), invocation.getArgument(1))).when(cache)
+            .set(any(), any());
+        doAnswer(invocation -> {
+            this.cached.clear();
+
+            return null;
+        }).when(cache).removeAll();
+        CacheManager cacheManager = mock(CacheManager.class);
+        when(cacheManager.<Boolean>createNewCache(any())).thenReturn(cache);
+
+        when(this.serializer.serialize(any())).then(invocation -> String.valueOf(invocation.getArgument(0)));
+
+        this.authorization = new WebSocketEventsAuthorization();
+        ReflectionUtils.setFieldValue(this.authorization, "authorization", this.authorizationManager);
+        ReflectionUtils.setFieldValue(this.authorization, "cacheManager", cacheManager);
+        ReflectionUtils.setFieldValue(this.authorization, "serializer", this.serializer);
+        WebSocketObservationConfiguration configuration = mock(WebSocketObservationConfiguration.class);
+        when(configuration.getAuthorizationPublicSources()).thenReturn(Arrays.asList("java.lang.CharSequence"));
+        ReflectionUtils.setFieldValue(this.authorization, "configuration", configuration);
+        this.authorization.initialize();
+    }
+
+    @Test
+    void getReference()
+    {
+        assertSame(PAGE, this.authorization.getReference(PAGE));
+        DocumentModelBridge document = mock(DocumentModelBridge.class);
+        when(document.getDocumentReference()).thenReturn(PAGE);
+        assertSame(PAGE, this.authorization.getReference(document));
+        assertNull(this.authorization.getReference("wiki"));
+        assertNull(this.authorization.getReference(null));
+    }
+
+    @Test
+    void isPublic()
+    {
+        assertTrue(this.authorization.isPublic(null));
+        // The configured classes and their sub classes
+        assertTrue(this.authorization.isPublic("wiki"));
+        assertTrue(this.authorization.isPublic(new StringBuilder()));
+        // The other sources are denied by default
+        assertFalse(this.authorization.isPublic(42));
+        assertFalse(this.authorization.isPublic(new Object()));
+    }
+
+    @Test
+    void invalidateDuringCheck()
+    {
+        // The rights change while the decision is taken
+        when(this.authorizationManager.hasAccess(Right.VIEW, ALICE, PAGE)).then(invocation -> {
+            this.authorization.invalidate();
+
+            return true;
+        });
+
+        assertTrue(this.authorization.canView(ALICE, PAGE));
+
+        // The decision based on the previous rights is not cached
+        assertTrue(this.cached.isEmpty());
+        assertTrue(this.authorization.canView(ALICE, PAGE));
+        verify(this.authorizationManager, times(2)).hasAccess(Right.VIEW, ALICE, PAGE);
+    }
+
+    @Test
+    void canViewWithUnambiguousKeys()
+    {
+        // The user and reference serializations concatenate to the same string, the user lengths being 42 and 942
+        DocumentReference user1 = new DocumentReference("wiki", "XWiki", "User1");
+        DocumentReference user2 = new DocumentReference("wiki", "XWiki", "User2");
+        DocumentReference page2 = new DocumentReference("wiki", "Space", "Page2");
+        when(this.serializer.serialize(user1)).thenReturn("0" + StringUtils.repeat('x', 41));
+        when(this.serializer.serialize(PAGE)).thenReturn(StringUtils.repeat('x', 901) + "wiki:Space.Page");
+        when(this.serializer.serialize(user2)).thenReturn(StringUtils.repeat('x', 942));
+        when(this.serializer.serialize(page2)).thenReturn("wiki:Space.Page");
+        when(this.authorizationManager.hasAccess(Right.VIEW, user1, PAGE)).thenReturn(true);
+
+        assertTrue(this.authorization.canView(user1, PAGE));
+        assertFalse(this.authorization.canView(user2, page2));
+        assertEquals(2, this.cached.size());
+    }
+
+    @Test
+    void canView()
+    {
+        when(this.authorizationManager.hasAccess(Right.VIEW, ALICE, PAGE)).thenReturn(true);
+
+        assertTrue(this.authorization.canView(ALICE, PAGE));
+        assertFalse(this.authorization.canView(BOB, PAGE));
+        assertFalse(this.authorization.canView(null, PAGE));
+
+        // The decisions are cached
+        assertTrue(this.authorization.canView(ALICE, PAGE));
+        assertFalse(this.authorization.canView(BOB, PAGE));
+        verify(this.authorizationManager, times(1)).hasAccess(Right.VIEW, ALICE, PAGE);
+        verify(this.authorizationManager, times(1)).hasAccess(Right.VIEW, BOB, PAGE);
+
+        // Until the rights change
+        when(this.authorizationManager.hasAccess(Right.VIEW, BOB, PAGE)).thenReturn(true);
+        this.authorization.invalidate();
+
+        assertTrue(this.authorization.canView(BOB, PAGE));
+        verify(this.authorizationManager, times(2)).hasAccess(Right.VIEW, BOB, PAGE);
+    }
+}
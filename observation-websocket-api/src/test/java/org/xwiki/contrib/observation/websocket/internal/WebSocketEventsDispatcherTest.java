@@ -0,0 +1,201 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration.OverflowPolicy;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link WebSocketEventsDispatcher}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class WebSocketEventsDispatcherTest
+{
+    @MockComponent
+    private WebSocketObservationConfiguration configuration;
+
+    @InjectMockComponents
+    private WebSocketEventsDispatcher dispatcher;
+
+    @AfterEach
+    void afterEach() throws Exception
+    {
+        this.dispatcher.dispose();
+    }
+
+    @Test
+    void dispatchSynchronously()
+    {
+        assertFalse(this.dispatcher.isAsynchronous());
+
+        List<String> steps = new ArrayList<>();
+        this.dispatcher.dispatch(() -> {
+            steps.add("prepare");
+
+            return () -> steps.add("send");
+        });
+
+        assertEquals(Arrays.asList("prepare", "send"), steps);
+    }
+
+    @Test
+    void dispatchAsynchronouslyInOrder() throws Exception
+    {
+        when(this.configuration.isAsynchronousDispatch()).thenReturn(true);
+        when(this.configuration.getDispatchThreads()).thenReturn(4);
+        when(this.configuration.getDispatchQueueSize()).thenReturn(1000);
+        this.dispatcher.initialize();
+
+        assertTrue(this.dispatcher.isAsynchronous());
+
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(100);
+        for (int i = 0; i < 100; ++i) {
+            int index = i;
+            this.dispatcher.dispatch(() -> () -> {
+                sent.add(index);
+                latch.countDown();
+            });
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, sent.get(i));
+        }
+    }
+
+    private CountDownLatch block(CountDownLatch blocker, List<String> sent, String name)
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        this.dispatcher.dispatch(() -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return () -> sent.add(name);
+        });
+
+        return started;
+    }
+
+    @Test
+    void dropWhenFull() throws Exception
+    {
+        when(this.configuration.isAsynchronousDispatch()).thenReturn(true);
+        when(this.configuration.getDispatchThreads()).thenReturn(2);
+        when(this.configuration.getDispatchQueueSize()).thenReturn(2);
+        when(this.configuration.getDispatchOverflowPolicy()).thenReturn(OverflowPolicy.DROP);
+        this.dispatcher.initialize();
+
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocker = new CountDownLatch(1);
+        // Occupy the first thread
+        assertTrue(block(blocker, sent, "first").await(10, TimeUnit.SECONDS));
+
+        // The second event is prepared but waits for the first one to be sent
+        CountDownLatch prepared = new CountDownLatch(1);
+        this.dispatcher.dispatch(() -> {
+            prepared.countDown();
+
+            return () -> sent.add("second");
+        });
+        assertTrue(prepared.await(10, TimeUnit.SECONDS));
+        assertEquals(2, this.dispatcher.getQueueSize());
+
+        // Overflow
+        this.dispatcher.dispatch(() -> () -> sent.add("third"));
+        assertEquals(1, this.dispatcher.getOverflowCount());
+        assertEquals(1, this.dispatcher.getDroppedCount());
+
+        blocker.countDown();
+        awaitSent(sent, 2);
+        assertEquals(0, this.dispatcher.getQueueSize());
+
+        // The events are accepted again once the previous ones are sent
+        this.dispatcher.dispatch(() -> () -> sent.add("fourth"));
+        awaitSent(sent, 3);
+        assertEquals(Arrays.asList("first", "second", "fourth"), sent);
+    }
+
+    private void awaitSent(List<String> sent, int count) throws InterruptedException
+    {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (sent.size() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void callerRunsWhenFull() throws Exception
+    {
+        when(this.configuration.isAsynchronousDispatch()).thenReturn(true);
+        when(this.configuration.getDispatchThreads()).thenReturn(1);
+        when(this.configuration.getDispatchQueueSize()).thenReturn(1);
+        when(this.configuration.getDispatchOverflowPolicy()).thenReturn(OverflowPolicy.CALLER_RUNS);
+        this.dispatcher.initialize();
+
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocker = new CountDownLatch(1);
+        assertTrue(block(blocker, sent, "first").await(10, TimeUnit.SECONDS));
+
+        // The event over the limit is prepared by the thread which fired it, which waits for the first one to be sent
+        List<Thread> preparers = Collections.synchronizedList(new ArrayList<>());
+        Thread firing = new Thread(() -> this.dispatcher.dispatch(() -> {
+            preparers.add(Thread.currentThread());
+
+            return () -> sent.add("second");
+        }));
+        firing.start();
+        firing.join(200);
+
+        assertTrue(firing.isAlive());
+        assertEquals(Collections.singletonList(firing), preparers);
+        assertTrue(sent.isEmpty());
+        assertEquals(1, this.dispatcher.getOverflowCount());
+        assertEquals(0, this.dispatcher.getDroppedCount());
+
+        blocker.countDown();
+        firing.join(10000);
+
+        assertFalse(firing.isAlive());
+        assertEquals(Arrays.asList("first", "second"), sent);
+    }
+}
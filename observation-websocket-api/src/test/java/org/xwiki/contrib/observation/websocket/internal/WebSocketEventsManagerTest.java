@@ -19,23 +19,34 @@
  */
 package org.xwiki.contrib.observation.websocket.internal;
 
-import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.mockito.invocation.InvocationOnMock;
-import org.mockito.stubbing.Answer;
+import org.mockito.ArgumentCaptor;
 import org.suigeneris.jrcs.rcs.Version;
+import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.bridge.event.WikiReadyEvent;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration.SlowClientPolicy;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.properties.ConverterManager;
+import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectComponentManager;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
@@ -49,11 +60,21 @@ import com.xpn.xwiki.test.reference.ReferenceComponentList;
 import com.xpn.xwiki.web.Utils;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -64,6 +85,8 @@ import static org.mockito.Mockito.when;
  */
 @ComponentTest
 @ReferenceComponentList
+@ComponentList({WebSocketEventsSerializer.class, EventValueSerializerRegistry.class, XWikiDocumentSerializer.class,
+    XWikiContextSerializer.class, SerializedReferenceCache.class, EventFilterFactory.class})
 class WebSocketEventsManagerTest
 {
     @MockComponent
@@ -75,72 +98,647 @@ class WebSocketEventsManagerTest
     @MockComponent
     private ConverterManager converter;
 
+    @MockComponent
+    private WebSocketObservationConfiguration configuration;
+
+    @MockComponent
+    private WebSocketEventsDispatcher dispatcher;
+
+    @MockComponent
+    private WebSocketObservationScheduler scheduler;
+
+    @MockComponent
+    private WebSocketEventsAuthorization authorization;
+
+    @MockComponent
+    private DocumentAccessBridge bridge;
+
     @InjectMockComponents
     private WebSocketEventsManager manager;
 
     @InjectComponentManager
     private ComponentManager componentManager;
 
-    @Test
-    void test() throws ClassNotFoundException, InstantiationException, IllegalAccessException, IllegalArgumentException,
-        InvocationTargetException, NoSuchMethodException, SecurityException
+    @BeforeEach
+    void beforeEach()
     {
-        Utils.setComponentManager(this.componentManager);
+        when(this.configuration.getSessionQueueMaxMessages()).thenReturn(100);
+        when(this.configuration.getSessionQueueMaxSize()).thenReturn(100000L);
+        when(this.configuration.getSlowClientPolicy()).thenReturn(SlowClientPolicy.DROP_OLDEST);
+        when(this.configuration.getSerializerMaxDepth()).thenReturn(5);
+        when(this.configuration.getSerializerReferenceCacheSize()).thenReturn(100);
+        when(this.authorization.getReference(any())).thenCallRealMethod();
+        when(this.authorization.canView(any(), any())).thenReturn(true);
+        when(this.authorization.isPublic(any())).thenReturn(true);
+
+        doAnswer(invocation -> {
+            Supplier<Runnable> preparation = invocation.getArgument(0);
+            preparation.get().run();
+
+            return null;
+        }).when(this.dispatcher).dispatch(any());
+    }
 
+    private Session createSession()
+    {
+        Session session = mockSession();
+        assertTrue(this.manager.open(session));
+
+        return session;
+    }
+
+    private Session mockSession()
+    {
         Session session = mock(Session.class);
         Map<String, Object> userProperties = new HashMap<>();
         when(session.getUserProperties()).thenReturn(userProperties);
         RemoteEndpoint.Async async = mock(RemoteEndpoint.Async.class);
         when(session.getAsyncRemote()).thenReturn(async);
+        doAnswer(invocation -> {
+            SendHandler handler = invocation.getArgument(1);
+            handler.onResult(new SendResult());
 
-        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+            return null;
+        }).when(async).sendText(any(), any());
+
+        return session;
+    }
 
+    private Map<String, Object> createMessage(String wikiId, Object data)
+    {
         Map<String, Object> message = new HashMap<>();
-        message.put("eventData", "custom data");
+        message.put("eventData", data);
         Map<String, Object> eventType = new HashMap<>();
         eventType.put("id", WikiReadyEvent.class.getName());
         message.put("eventType", eventType);
         Map<String, Object> params = new HashMap<>();
-        params.put("wikiId", "wiki1");
+        params.put("wikiId", wikiId);
         eventType.put("params", params);
 
-        doAnswer(new Answer<Void>()
-        {
-            @Override
-            public Void answer(InvocationOnMock invocation) throws Throwable
-            {
-                EventListener listener = invocation.getArgument(0);
+        return message;
+    }
 
-                assertEquals("websocket-1", listener.getName());
-                assertSame(WikiReadyEvent.class, listener.getEvents().get(0).getClass());
-                assertEquals("wiki1", ((WikiReadyEvent) listener.getEvents().get(0)).getWikiId());
+    private EventListener getRegisteredListener()
+    {
+        ArgumentCaptor<EventListener> listenerCaptor = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.observation).addListener(listenerCaptor.capture());
 
-                return null;
-            }
+        return listenerCaptor.getValue();
+    }
 
-        }).when(this.observation).addListener(any());
+    @Test
+    void test() throws Exception
+    {
+        Utils.setComponentManager(this.componentManager);
 
-        this.manager.addEvent(message, session);
+        Session session = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
 
-        Map<String, EventListener> listeners =
-            (Map) session.getUserProperties().get(WebSocketEventsManager.KEY_SESSION_LISTENERS);
+        this.manager.addEvent(createMessage("wiki1", "custom data"), session);
 
-        assertNotNull(listeners);
+        EventListener listener = getRegisteredListener();
 
-        Map.Entry<String, EventListener> listenerEntry = listeners.entrySet().iterator().next();
+        assertEquals("websocket-1", listener.getName());
+        assertSame(WikiReadyEvent.class, listener.getEvents().get(0).getClass());
+        // The registered listener is notified of all the events of the class and the filtering happens in the manager
+        assertNull(((WikiReadyEvent) listener.getEvents().get(0)).getWikiId());
 
-        EventListener listener = listenerEntry.getValue();
+        ObservationSession observationSession = this.manager.getRegisteredSession(session);
 
-        assertEquals(listener.getName(), listenerEntry.getKey());
+        assertNotNull(observationSession);
+        assertEquals(1, observationSession.getSubscriptions().size());
+        assertEquals(1, this.manager.getSessionCount());
+        assertEquals(Collections.singletonMap(WikiReadyEvent.class, 1), this.manager.getSubscriptionCounts());
+        // The session is not open anymore but it was not disposed
+        assertEquals(1, this.manager.getLeakedSubscriptionCount());
 
         XWikiDocument document = new XWikiDocument(new DocumentReference("wiki", "space", "document"));
         document.setRCSVersion(new Version(42, 43));
         XWikiContext xcontext = new XWikiContext();
         xcontext.setWiki(new XWiki());
         listener.onEvent(new WikiReadyEvent("wiki1"), document, xcontext);
+        listener.onEvent(new WikiReadyEvent("wiki2"), document, xcontext);
+
+        ArgumentCaptor<String> messageCaptor = ArgumentCaptor.forClass(String.class);
+        verify(session.getAsyncRemote()).sendText(messageCaptor.capture(), any());
+        assertTrue(messageCaptor.getValue().startsWith("{\"type\" : \"event\","));
+        assertTrue(messageCaptor.getValue().endsWith(",\"eventData\":\"custom data\"}}"));
+
+        this.manager.dispose(session);
+
+        verify(this.observation).removeListener(listener.getName());
+        assertNull(session.getUserProperties().get(WebSocketEventsManager.KEY_SESSION));
+        assertTrue(observationSession.getSubscriptions().isEmpty());
+        assertEquals(0, this.manager.getSessionCount());
+        assertEquals(0, this.manager.getLeakedSubscriptionCount());
+    }
+
+    @Test
+    void sharedFilter() throws Exception
+    {
+        Session session1 = createSession();
+        Session session2 = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        this.manager.addEvent(createMessage("wiki1", "data1"), session1);
+        this.manager.addEvent(createMessage("wiki1", "data2"), session2);
+
+        // A single listener is registered and the filter is created only once
+        EventListener listener = getRegisteredListener();
+        verify(this.converter).convert(String.class, "wiki1");
+
+        listener.onEvent(new WikiReadyEvent("wiki1"), null, null);
+
+        ArgumentCaptor<String> message1 = ArgumentCaptor.forClass(String.class);
+        verify(session1.getAsyncRemote()).sendText(message1.capture(), any());
+        ArgumentCaptor<String> message2 = ArgumentCaptor.forClass(String.class);
+        verify(session2.getAsyncRemote()).sendText(message2.capture(), any());
+
+        // Only the listener data differs
+        String suffix1 = "\"eventData\":\"data1\"}}";
+        String suffix2 = "\"eventData\":\"data2\"}}";
+        assertTrue(message1.getValue().endsWith(suffix1));
+        assertTrue(message2.getValue().endsWith(suffix2));
+        assertEquals(message1.getValue().substring(0, message1.getValue().length() - suffix1.length()),
+            message2.getValue().substring(0, message2.getValue().length() - suffix2.length()));
+
+        this.manager.dispose(session1);
+
+        verify(this.observation, never()).removeListener(any());
+
+        this.manager.dispose(session2);
+
+        verify(this.observation).removeListener(listener.getName());
+    }
+
+    @Test
+    void addAndRemoveListeners() throws Exception
+    {
+        Session session = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Map<String, Object> message1 = createMessage("wiki1", "data1");
+        message1.put("listenerId", 7);
+        Map<String, Object> message2 = createMessage("wiki1", "data2");
+        message2.put("listenerId", 8);
+        ((Map<String, Object>) message2.get("eventType")).put("id", "org.xwiki.UnknownEvent");
+
+        this.manager.addEvents(Arrays.asList(message1, message2), session);
+
+        // Each subscription is acknowledged, successful or not
+        ArgumentCaptor<String> ack = ArgumentCaptor.forClass(String.class);
+        verify(session.getAsyncRemote()).sendText(ack.capture(), any());
+        assertTrue(ack.getValue().matches(
+            "\\{\"type\":\"ack\",\"data\":\\[\\{\"listenerId\":7,\"id\":1,\"seq\":\\d+\\},\\{\"listenerId\":8,"
+            + "\"error\":\"ClassNotFoundException: org.xwiki.UnknownEvent\"\\}\\]\\}"),
+            ack.getValue());
+
+        EventListener listener = getRegisteredListener();
+
+        // Unknown identifiers are ignored
+        this.manager.removeEvents(Arrays.asList(1, 42), session);
+
+        verify(this.observation).removeListener(listener.getName());
+        ObservationSession observationSession = this.manager.getRegisteredSession(session);
+        assertTrue(observationSession.getSubscriptions().isEmpty());
+    }
+
+    @Test
+    void highPriority() throws Exception
+    {
+        Session session = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Map<String, Object> message1 = createMessage("wiki1", "data1");
+        message1.put("listenerId", 1);
+        message1.put("priority", "high");
+        Map<String, Object> message2 = createMessage("wiki1", "data2");
+        message2.put("listenerId", 2);
+
+        this.manager.addEvents(Arrays.asList(message1, message2), session);
+
+        ObservationSession observationSession = this.manager.getRegisteredSession(session);
+        assertEquals(2, observationSession.getSubscriptions().size());
+        for (EventSubscription subscription : observationSession.getSubscriptions().values()) {
+            assertEquals("\"data1\"".equals(subscription.getListenerData()), subscription.isHighPriority());
+        }
+    }
+
+    @Test
+    void limits() throws Exception
+    {
+        when(this.configuration.getMaxSessionsPerUser()).thenReturn(1);
+        when(this.configuration.getMaxSubscriptionsPerSession()).thenReturn(1);
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        DocumentReference alice = new DocumentReference("wiki", "XWiki", "Alice");
+        when(this.bridge.getCurrentUserReference()).thenReturn(alice);
+        Session session1 = mockSession();
+        Session session2 = mockSession();
+
+        assertTrue(this.manager.open(session1));
+        // The user has too many sessions
+        assertFalse(this.manager.open(session2));
+        assertNull(this.manager.getRegisteredSession(session2));
+
+        Map<String, Object> message1 = createMessage("wiki1", "data1");
+        message1.put("listenerId", 1);
+        Map<String, Object> message2 = createMessage("wiki1", "data2");
+        message2.put("listenerId", 2);
+        this.manager.addEvents(Arrays.asList(message1, message2), session1);
+
+        // The subscription over the limit is rejected
+        ArgumentCaptor<String> ack = ArgumentCaptor.forClass(String.class);
+        verify(session1.getAsyncRemote()).sendText(ack.capture(), any());
+        assertTrue(ack.getValue().matches("\\{\"type\":\"ack\",\"data\":\\[\\{\"listenerId\":1,\"id\":\\d+,"
+            + "\"seq\":\\d+\\},\\{\"listenerId\":2,\"error\":\"IllegalStateException: Too many listeners registered by "
+            + "this client \\(limit: 1\\)\"\\}\\]\\}"), ack.getValue());
+        assertEquals(1, this.manager.getRegisteredSession(session1).getSubscriptions().size());
+
+        // Closing the session releases everything
+        this.manager.dispose(session1);
+        assertEquals(0, this.manager.getSessionCount());
+        assertTrue(this.manager.open(session2));
+    }
+
+    @Test
+    void disposedSession() throws Exception
+    {
+        Session session = createSession();
+        this.manager.dispose(session);
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        // The messages handled after the session is disposed don't register it again
+        Map<String, Object> message = createMessage("wiki1", "data");
+        message.put("listenerId", 1);
+        this.manager.addEvents(Arrays.asList(message), session);
+        this.manager.configure(Collections.singletonMap("encoding", "smile"), session);
+        assertThrows(IllegalStateException.class, () -> this.manager.addEvent(createMessage("wiki1", "data"), session));
+
+        assertNull(this.manager.getRegisteredSession(session));
+        assertEquals(0, this.manager.getSessionCount());
+        verify(this.observation, never()).addListener(any());
+        verify(session.getAsyncRemote(), never()).sendText(any(), any());
+    }
+
+    @Test
+    void failedSubscriptionIsReleased() throws Exception
+    {
+        when(this.configuration.getMaxSubscriptions()).thenReturn(1);
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Session session = createSession();
+
+        doThrow(new RuntimeException("failed")).doNothing().when(this.observation).addListener(any());
+        assertThrows(RuntimeException.class, () -> this.manager.addEvent(createMessage("wiki1", "data"), session));
+        assertTrue(this.manager.getRegisteredSession(session).getSubscriptions().isEmpty());
+
+        // The failed subscription doesn't count against the limit of listeners on the server
+        this.manager.addEvent(createMessage("wiki1", "data"), session);
+        assertEquals(1, this.manager.getRegisteredSession(session).getSubscriptions().size());
+    }
+
+    @Test
+    void compression()
+    {
+        Map<String, List<String>> compression = Collections.singletonMap("compression", Arrays.asList("deflate"));
+
+        // The client is told that the compression is disabled on the server
+        Session refused = mockSession();
+        when(refused.getRequestParameterMap()).thenReturn(compression);
+        assertTrue(this.manager.open(refused));
+        ArgumentCaptor<String> refusal = ArgumentCaptor.forClass(String.class);
+        verify(refused.getAsyncRemote()).sendText(refusal.capture(), any());
+        assertEquals("{\"type\":\"compression\",\"data\":null}", refusal.getValue());
+
+        when(this.configuration.getCompressionLevel()).thenReturn(6);
+        Session accepted = mockSession();
+        when(accepted.getRequestParameterMap()).thenReturn(compression);
+        assertTrue(this.manager.open(accepted));
+        ArgumentCaptor<String> acknowledgement = ArgumentCaptor.forClass(String.class);
+        verify(accepted.getAsyncRemote()).sendText(acknowledgement.capture(), any());
+        assertEquals("{\"type\":\"compression\",\"data\":\"deflate\"}", acknowledgement.getValue());
+
+        // Nothing is sent to the clients which don't ask for compression
+        verify(createSession().getAsyncRemote(), never()).sendText(any(), any());
+    }
+
+    @Test
+    void sessionQueues() throws Exception
+    {
+        when(this.configuration.getSessionQueueMaxMessages()).thenReturn(2);
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Session session = createSession();
+        when(session.getId()).thenReturn("slow");
+        // The client never completes the first send
+        doAnswer(invocation -> null).when(session.getAsyncRemote()).sendText(any(), any());
+
+        this.manager.addEvent(createMessage("wiki1", "data"), session);
+        EventListener listener = getRegisteredListener();
+        for (int i = 0; i < 4; i++) {
+            listener.onEvent(new WikiReadyEvent("wiki1"), null, null);
+        }
+
+        // The first event is being sent, the second one was dropped
+        assertEquals(Collections.singletonMap("slow", 2), this.manager.getSessionQueueLengths());
+        assertEquals(Collections.singletonMap("slow", 1L), this.manager.getSessionDroppedMessageCounts());
 
         this.manager.dispose(session);
 
+        assertTrue(this.manager.getSessionQueueLengths().isEmpty());
+        assertTrue(this.manager.getSessionDroppedMessageCounts().isEmpty());
+    }
+
+    @Test
+    void projection() throws Exception
+    {
+        Utils.setComponentManager(this.componentManager);
+
+        Session session1 = createSession();
+        Session session2 = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Map<String, Object> message = createMessage("wiki1", "data1");
+        Map<String, Object> projection = new HashMap<>();
+        projection.put("data", false);
+        projection.put("paths", Arrays.asList("/source/documentReference"));
+        message.put("projection", projection);
+        this.manager.addEvent(message, session1);
+        this.manager.addEvent(createMessage("wiki1", "data2"), session2);
+
+        XWikiDocument document = new XWikiDocument(new DocumentReference("wiki", "space", "document"));
+        XWikiContext xcontext = new XWikiContext();
+        xcontext.setWiki(new XWiki());
+        getRegisteredListener().onEvent(new WikiReadyEvent("wiki1"), document, xcontext);
+
+        ArgumentCaptor<String> message1 = ArgumentCaptor.forClass(String.class);
+        verify(session1.getAsyncRemote()).sendText(message1.capture(), any());
+        ArgumentCaptor<String> message2 = ArgumentCaptor.forClass(String.class);
+        verify(session2.getAsyncRemote()).sendText(message2.capture(), any());
+
+        // Only the projected parts are sent to the first client
+        assertTrue(message1.getValue().contains(",\"source\":{\"documentReference\":"), message1.getValue());
+        assertFalse(message1.getValue().contains("documentReferenceWithLocale"), message1.getValue());
+        assertFalse(message1.getValue().contains(",\"data\":"), message1.getValue());
+        assertTrue(message2.getValue().contains("documentReferenceWithLocale"), message2.getValue());
+        assertTrue(message2.getValue().contains(",\"data\":"), message2.getValue());
+    }
+
+    @Test
+    void conditions() throws Exception
+    {
+        Utils.setComponentManager(this.componentManager);
+
+        Session session1 = createSession();
+        Session session2 = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("property", "source.documentReference");
+        condition.put("space", "wiki:Space");
+        Map<String, Object> message1 = createMessage("wiki1", "data1");
+        message1.put("where", Arrays.asList(condition));
+        this.manager.addEvent(message1, session1);
+
+        Map<String, Object> message2 = createMessage("wiki1", "data2");
+        message2.put("where", Arrays.asList(Collections.singletonMap("property", "source.documentReference")));
+        assertThrows(IllegalArgumentException.class, () -> this.manager.addEvent(message2, session2));
+        Map<String, Object> otherCondition = new HashMap<>(condition);
+        otherCondition.put("space", "wiki:Other");
+        message2.put("where", Arrays.asList(otherCondition));
+        this.manager.addEvent(message2, session2);
+
+        // A single listener is registered and the groups are only different by their conditions
+        EventListener listener = getRegisteredListener();
+        assertEquals(Collections.singletonMap(WikiReadyEvent.class, 2), this.manager.getSubscriptionCounts());
+
+        listener.onEvent(new WikiReadyEvent("wiki1"),
+            new XWikiDocument(new DocumentReference("wiki", "Space", "Page")), null);
+
+        verify(session1.getAsyncRemote()).sendText(any(), any());
+        verify(session2.getAsyncRemote(), never()).sendText(any(), any());
+    }
+
+    @Test
+    void viewRight() throws Exception
+    {
+        Utils.setComponentManager(this.componentManager);
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        DocumentReference alice = new DocumentReference("wiki", "XWiki", "Alice");
+        DocumentReference bob = new DocumentReference("wiki", "XWiki", "Bob");
+        when(this.bridge.getCurrentUserReference()).thenReturn(alice);
+        Session aliceSession1 = createSession();
+        Session aliceSession2 = createSession();
+        this.manager.addEvent(createMessage("wiki1", "data"), aliceSession1);
+        this.manager.addEvent(createMessage("wiki1", "data"), aliceSession2);
+        when(this.bridge.getCurrentUserReference()).thenReturn(bob);
+        Session bobSession = createSession();
+        this.manager.addEvent(createMessage("wiki1", "data"), bobSession);
+
+        DocumentReference page = new DocumentReference("wiki", "Space", "Page");
+        when(this.authorization.canView(bob, page)).thenReturn(false);
+
+        XWikiDocument document = new XWikiDocument(page);
+        getRegisteredListener().onEvent(new WikiReadyEvent("wiki1"), document, null);
+
+        // Only the users allowed to view the document receive the event
+        verify(aliceSession1.getAsyncRemote()).sendText(any(), any());
+        verify(aliceSession2.getAsyncRemote()).sendText(any(), any());
+        verify(bobSession.getAsyncRemote(), never()).sendText(any(), any());
+
+        // The right is checked once per user
+        verify(this.authorization).canView(alice, page);
+        verify(this.authorization).canView(bob, page);
+    }
+
+    @Test
+    void sourceWithoutRights() throws Exception
+    {
+        Session session = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        this.manager.addEvent(createMessage("wiki1", "data"), session);
+
+        // The source is not an entity and is not public
+        Object source = new Object();
+        when(this.authorization.isPublic(source)).thenReturn(false);
+        getRegisteredListener().onEvent(new WikiReadyEvent("wiki1"), source, null);
+
+        verify(session.getAsyncRemote(), never()).sendText(any(), any());
+    }
+
+    @Test
+    void conflate() throws Exception
+    {
+        Session session = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Map<String, Object> message = createMessage("wiki1", "data");
+        Map<String, Object> conflate = new HashMap<>();
+        conflate.put("key", "source.documentReference");
+        conflate.put("window", 500);
+        message.put("conflate", conflate);
+        this.manager.addEvent(message, session);
+
+        EventListener listener = getRegisteredListener();
+        Map<String, Object> source = Collections.singletonMap("documentReference", "wiki:Space.Page");
+        listener.onEvent(new WikiReadyEvent("wiki1"), source, "first");
+        listener.onEvent(new WikiReadyEvent("wiki1"), source, "second");
+        listener.onEvent(new WikiReadyEvent("wiki1"), source, "third");
+        // Another key is not conflated with the first one
+        listener.onEvent(new WikiReadyEvent("wiki1"), Collections.singletonMap("documentReference", "wiki:Other"),
+            "other");
+
+        List<String> messages = getSentMessages(session);
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0).contains("\"data\":\"first\""), messages.get(0));
+        assertTrue(messages.get(1).contains("\"data\":\"other\""), messages.get(1));
+
+        // The latest event of the window is sent when the window closes
+        ArgumentCaptor<Runnable> closeWindow = ArgumentCaptor.forClass(Runnable.class);
+        verify(this.scheduler, times(2)).schedule(closeWindow.capture(), eq(500L), eq(TimeUnit.MILLISECONDS));
+        closeWindow.getAllValues().get(0).run();
+
+        messages = getSentMessages(session);
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(2).contains("\"data\":\"third\""), messages.get(2));
+        assertTrue(getSequence(messages.get(2)) > getSequence(messages.get(1)));
+    }
+
+    @Test
+    void rateLimit() throws Exception
+    {
+        Session session = createSession();
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Map<String, Object> message = createMessage("wiki1", "data");
+        Map<String, Object> rateLimit = new HashMap<>();
+        rateLimit.put("maxEvents", 2);
+        rateLimit.put("period", 1000);
+        message.put("rateLimit", rateLimit);
+        long id = this.manager.addEvent(message, session);
+
+        EventListener listener = getRegisteredListener();
+        for (int i = 0; i < 5; i++) {
+            listener.onEvent(new WikiReadyEvent("wiki1"), null, null);
+        }
+
+        assertEquals(2, getSentMessages(session).size());
+
+        // The suppressed events are reported at the end of the period
+        ArgumentCaptor<Runnable> report = ArgumentCaptor.forClass(Runnable.class);
+        verify(this.scheduler).schedule(report.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+        report.getValue().run();
+
+        List<String> messages = getSentMessages(session);
+        assertEquals(3, messages.size());
+        assertEquals("{\"type\":\"suppressed\",\"data\":{\"id\":" + id + ",\"count\":3,\"eventData\":\"data\"}}",
+            messages.get(2));
+    }
+
+    @Test
+    void invalidThrottle()
+    {
+        Map<String, Object> message = createMessage("wiki1", "data");
+        message.put("rateLimit", Collections.singletonMap("maxEvents", 0));
+
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        assertThrows(IllegalArgumentException.class, () -> this.manager.addEvent(message, createSession()));
+    }
+
+    @Test
+    void invalidProjection()
+    {
+        Map<String, Object> message = createMessage("wiki1", "data");
+        message.put("projection", Collections.singletonMap("paths", Arrays.asList("/unknown")));
+
+        assertThrows(IllegalArgumentException.class, () -> this.manager.addEvent(message, createSession()));
+    }
+
+    private List<String> getSentMessages(Session session)
+    {
+        ArgumentCaptor<String> messages = ArgumentCaptor.forClass(String.class);
+        verify(session.getAsyncRemote(), atLeastOnce()).sendText(messages.capture(), any());
+
+        return messages.getAllValues();
+    }
+
+    @Test
+    void resume() throws Exception
+    {
+        when(this.configuration.getReplayMaxEvents()).thenReturn(10);
+        when(this.configuration.getReplayMaxAge()).thenReturn(60000L);
+        when(this.converter.convert(String.class, "wiki1")).thenReturn("wiki1");
+
+        Session session1 = createSession();
+        Map<String, Object> message = createMessage("wiki1", "data");
+        message.put("listenerId", 1);
+        this.manager.addEvents(Arrays.asList(message), session1);
+
+        EventListener listener = getRegisteredListener();
+        listener.onEvent(new WikiReadyEvent("wiki1"), null, null);
+
+        List<String> messages1 = getSentMessages(session1);
+        assertEquals(2, messages1.size());
+        long lastSequence = getSequence(messages1.get(1));
+
+        // The client is disconnected but the events keep being recorded
+        this.manager.dispose(session1);
+        verify(this.observation, never()).removeListener(any());
+        ArgumentCaptor<Runnable> expiration = ArgumentCaptor.forClass(Runnable.class);
+        verify(this.scheduler).schedule(expiration.capture(), eq(60000L), eq(TimeUnit.MILLISECONDS));
+
+        listener.onEvent(new WikiReadyEvent("wiki1"), null, null);
+
+        // The client reconnects and receives the missed event before the acknowledgement
+        Session session2 = createSession();
+        message.put("seq", lastSequence);
+        this.manager.addEvents(Arrays.asList(message), session2);
+
+        List<String> messages2 = getSentMessages(session2);
+        assertEquals(2, messages2.size());
+        assertEquals(lastSequence + 1, getSequence(messages2.get(0)));
+        assertTrue(messages2.get(1).startsWith("{\"type\":\"ack\","));
+
+        // The events older than the ones in the buffer cannot be replayed
+        Session session3 = createSession();
+        message.put("seq", lastSequence - 1000);
+        this.manager.addEvents(Arrays.asList(message), session3);
+
+        List<String> messages3 = getSentMessages(session3);
+        assertEquals(2, messages3.size());
+        assertEquals("{\"type\":\"reset\",\"data\":[1]}", messages3.get(1));
+
+        // The group is used again so the first expiration has no effect
+        this.manager.dispose(session2);
+        this.manager.dispose(session3);
+        expiration.getValue().run();
+        verify(this.observation, never()).removeListener(any());
+
+        verify(this.scheduler, times(2)).schedule(expiration.capture(), eq(60000L), eq(TimeUnit.MILLISECONDS));
+        expiration.getValue().run();
         verify(this.observation).removeListener(listener.getName());
     }
+
+    private long getSequence(String message)
+    {
+        Matcher matcher = Pattern.compile("\"seq\":(\\d+)").matcher(message);
+        assertTrue(matcher.find(), message);
+
+        return Long.parseLong(matcher.group(1));
+    }
 }
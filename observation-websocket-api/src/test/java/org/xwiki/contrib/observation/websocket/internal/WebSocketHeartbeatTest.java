@@ -0,0 +1,143 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.CloseReason;
+import javax.websocket.MessageHandler;
+import javax.websocket.PongMessage;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link WebSocketHeartbeat}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class WebSocketHeartbeatTest
+{
+    @MockComponent
+    private WebSocketObservationConfiguration configuration;
+
+    @MockComponent
+    private WebSocketObservationScheduler scheduler;
+
+    @MockComponent
+    private WebSocketSessionReleaser releaser;
+
+    @InjectMockComponents
+    private WebSocketHeartbeat heartbeat;
+
+    private final List<Runnable> beats = new ArrayList<>();
+
+    @BeforeEach
+    void beforeEach()
+    {
+        when(this.configuration.getHeartbeatInterval()).thenReturn(30000L);
+        when(this.configuration.getHeartbeatMaxMissedPongs()).thenReturn(2);
+        when(this.configuration.getHeartbeatBatchSize()).thenReturn(100);
+
+        doAnswer(invocation -> {
+            this.beats.add(invocation.getArgument(0));
+
+            return null;
+        }).when(this.scheduler).schedule(any(), anyLong(), any());
+
+        doAnswer(invocation -> {
+            this.heartbeat.unregister(invocation.getArgument(0));
+
+            return null;
+        }).when(this.releaser).release(any());
+    }
+
+    private void beat()
+    {
+        this.beats.remove(0).run();
+    }
+
+    @Test
+    void pingAndClose() throws Exception
+    {
+        Session session = mock(Session.class);
+        when(session.isOpen()).thenReturn(true);
+        when(session.getMaxIdleTimeout()).thenReturn(10000L);
+        RemoteEndpoint.Async async = mock(RemoteEndpoint.Async.class);
+        when(session.getAsyncRemote()).thenReturn(async);
+
+        this.heartbeat.register(session);
+
+        // The interval is shortened to keep the connection alive
+        verify(this.scheduler).schedule(any(), eq(5000L), eq(TimeUnit.MILLISECONDS));
+        assertEquals(-1, this.heartbeat.getRoundTripTime(session));
+
+        beat();
+
+        ArgumentCaptor<ByteBuffer> payload = ArgumentCaptor.forClass(ByteBuffer.class);
+        verify(async).sendPing(payload.capture());
+
+        // The client answers the ping
+        ArgumentCaptor<MessageHandler> handler = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(session).addMessageHandler(handler.capture());
+        PongMessage pong = mock(PongMessage.class);
+        when(pong.getApplicationData()).thenReturn(payload.getValue().duplicate());
+        ((MessageHandler.Whole<PongMessage>) handler.getValue()).onMessage(pong);
+
+        assertTrue(this.heartbeat.getRoundTripTime(session) >= 0);
+
+        // The client stops answering
+        beat();
+        beat();
+        verify(async, times(3)).sendPing(any());
+        verify(this.releaser, never()).release(session);
+
+        beat();
+        verify(async, times(3)).sendPing(any());
+        // The session is released as when the container notices it's closed
+        verify(this.releaser).release(session);
+        verify(session).close(any(CloseReason.class));
+
+        // The heartbeat stops when there's no session left
+        assertTrue(this.beats.isEmpty());
+    }
+}
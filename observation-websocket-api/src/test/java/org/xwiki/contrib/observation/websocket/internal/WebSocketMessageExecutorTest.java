@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.Session;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link WebSocketMessageExecutor}.
+ *
+ * @version $Id$
+ */
+@ComponentTest
+class WebSocketMessageExecutorTest
+{
+    @MockComponent
+    private WebSocketObservationConfiguration configuration;
+
+    @InjectMockComponents
+    private WebSocketMessageExecutor executor;
+
+    @AfterEach
+    void afterEach() throws Exception
+    {
+        this.executor.dispose();
+    }
+
+    private Session createSession(boolean open)
+    {
+        Session session = mock(Session.class);
+        when(session.getUserProperties()).thenReturn(new ConcurrentHashMap<>());
+        when(session.isOpen()).thenReturn(open);
+
+        return session;
+    }
+
+    private void initialize(int threads, int queueSize) throws Exception
+    {
+        when(this.configuration.getMessageThreads()).thenReturn(threads);
+        when(this.configuration.getMessageQueueSize()).thenReturn(queueSize);
+        this.executor.initialize();
+    }
+
+    @Test
+    void executeInOrder() throws Exception
+    {
+        initialize(4, 1000);
+
+        Session session1 = createSession(true);
+        Session session2 = createSession(true);
+        List<Integer> handled1 = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> handled2 = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(200);
+        for (int i = 0; i < 100; ++i) {
+            int index = i;
+            assertTrue(this.executor.execute(session1, () -> {
+                handled1.add(index);
+                latch.countDown();
+            }));
+            assertTrue(this.executor.execute(session2, () -> {
+                handled2.add(index);
+                latch.countDown();
+            }));
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; ++i) {
+            assertEquals(i, handled1.get(i));
+            assertEquals(i, handled2.get(i));
+        }
+    }
+
+    @Test
+    void rejectWhenTooManyMessages() throws Exception
+    {
+        initialize(1, 2);
+
+        Session session = createSession(true);
+        CountDownLatch blocker = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        // Occupy the only thread
+        assertTrue(this.executor.execute(session, () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        assertTrue(this.executor.execute(session, () -> { }));
+        assertTrue(this.executor.execute(session, () -> { }));
+        assertFalse(this.executor.execute(session, () -> { }));
+
+        // The other sessions are not affected
+        CountDownLatch handled = new CountDownLatch(1);
+        assertTrue(this.executor.execute(createSession(true), handled::countDown));
+
+        blocker.countDown();
+        assertTrue(handled.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void skipClosedSessions() throws Exception
+    {
+        initialize(1, 10);
+
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(1);
+        this.executor.execute(createSession(false), () -> handled.add("closed"));
+        this.executor.execute(createSession(true), () -> {
+            handled.add("open");
+            latch.countDown();
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("open"), handled);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.websocket.Session;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.WikiReadyEvent;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.contrib.observation.websocket.internal.EventFilterFactory;
+import org.xwiki.contrib.observation.websocket.internal.EventValueSerializerRegistry;
+import org.xwiki.contrib.observation.websocket.internal.SerializedReferenceCache;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsAuthorization;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsDispatcher;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsManager;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsSerializer;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration.SlowClientPolicy;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationMetrics;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationScheduler;
+import org.xwiki.contrib.observation.websocket.internal.XWikiContextSerializer;
+import org.xwiki.contrib.observation.websocket.internal.XWikiDocumentSerializer;
+import org.xwiki.management.JMXBeanRegistration;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.properties.ConverterManager;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import com.xpn.xwiki.CoreConfiguration;
+import com.xpn.xwiki.test.reference.ReferenceComponentList;
+import com.xpn.xwiki.web.Utils;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Assemble a {@link WebSocketEventsManager} with the real serialization and dispatch components, the rest of the
+ * environment (the observation manager, the configuration, the rights) being mocked. Apart from the rights, the mocks
+ * are only called when subscribing, not when dispatching the events. The events are dispatched synchronously, in the
+ * benchmark thread.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractEventsManagerBenchmark
+{
+    private static final List<Class<?>> COMPONENTS = Arrays.asList(WebSocketEventsManager.class,
+        WebSocketEventsDispatcher.class, WebSocketObservationScheduler.class, WebSocketEventsSerializer.class,
+        EventValueSerializerRegistry.class, XWikiDocumentSerializer.class, XWikiContextSerializer.class,
+        SerializedReferenceCache.class, EventFilterFactory.class, WebSocketObservationMetrics.class);
+
+    /**
+     * The wiki of the events matched by the subscriptions.
+     */
+    protected static final String WIKI = "wiki";
+
+    protected MockitoComponentManager componentManager;
+
+    protected WebSocketEventsManager manager;
+
+    /**
+     * The listener registered by the manager in the observation manager, notified of the events to dispatch.
+     */
+    protected EventListener listener;
+
+    /**
+     * Counts what is sent to all the sessions.
+     */
+    protected final CountingRemote remote = new CountingRemote();
+
+    private int sessionCounter;
+
+    private int listenerCounter;
+
+    /**
+     * Create the components.
+     *
+     * @throws Exception when failing to create the components
+     */
+    protected void setUpComponents() throws Exception
+    {
+        this.componentManager = new MockitoComponentManager();
+        // The documents used as event source need the reference components
+        for (Class<?> component : ReferenceComponentList.class.getAnnotation(ComponentList.class).value()) {
+            this.componentManager.registerComponent(component);
+        }
+        for (Class<?> component : COMPONENTS) {
+            this.componentManager.registerComponent(component);
+        }
+        Utils.setComponentManager(this.componentManager);
+
+        registerMock(CoreConfiguration.class);
+        registerMock(JMXBeanRegistration.class);
+        registerMock(DocumentAccessBridge.class);
+
+        // All the users are allowed to view the documents, the decisions being taken once per user and event
+        WebSocketEventsAuthorization authorization = registerMock(WebSocketEventsAuthorization.class);
+        when(authorization.getReference(any())).thenCallRealMethod();
+        when(authorization.canView(any(), any())).thenReturn(true);
+        when(authorization.isPublic(any())).thenReturn(true);
+
+        ObservationManager observation = registerMock(ObservationManager.class);
+        doAnswer(invocation -> {
+            this.listener = invocation.getArgument(0);
+
+            return null;
+        }).when(observation).addListener(any());
+
+        ConverterManager converter = registerMock(ConverterManager.class);
+        when(converter.convert(eq(String.class), any())).thenAnswer(invocation -> invocation.getArgument(1));
+
+        WebSocketObservationConfiguration configuration = registerMock(WebSocketObservationConfiguration.class);
+        when(configuration.getSessionQueueMaxMessages()).thenReturn(1000);
+        when(configuration.getSessionQueueMaxSize()).thenReturn(10L * 1024 * 1024);
+        when(configuration.getSlowClientPolicy()).thenReturn(SlowClientPolicy.DROP_OLDEST);
+        when(configuration.getSerializerMaxDepth()).thenReturn(5);
+        when(configuration.getSerializerReferenceCacheSize()).thenReturn(1000);
+        configure(configuration);
+
+        this.manager = this.componentManager.getInstance(WebSocketEventsManager.class);
+    }
+
+    private <T> T registerMock(Class<T> role) throws Exception
+    {
+        // Don't record the invocations, which would keep growing during the benchmark
+        T mock = mock(role, withSettings().stubOnly());
+        DefaultComponentDescriptor<T> descriptor = new DefaultComponentDescriptor<>();
+        descriptor.setRoleType(role);
+        this.componentManager.registerComponent(descriptor, mock);
+
+        return mock;
+    }
+
+    /**
+     * Customize the configuration of the manager.
+     *
+     * @param configuration the mocked configuration
+     */
+    protected void configure(WebSocketObservationConfiguration configuration)
+    {
+        // The default configuration is fine.
+    }
+
+    /**
+     * Release the components.
+     *
+     * @throws Exception when failing to release the components
+     */
+    protected void tearDownComponents() throws Exception
+    {
+        this.componentManager.dispose();
+    }
+
+    /**
+     * @return a new session, registered as the endpoint does when the session is opened
+     */
+    protected CountingSession createSession()
+    {
+        CountingSession session = new CountingSession(String.valueOf(this.sessionCounter++), this.remote);
+        this.manager.open(session);
+
+        return session;
+    }
+
+    /**
+     * @param session the session
+     * @param count the number of subscriptions to add
+     * @return the identifiers of the subscriptions
+     * @throws Exception when failing to add the subscriptions
+     */
+    protected List<Number> subscribe(Session session, int count) throws Exception
+    {
+        List<Number> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(this.manager.addEvent(createMessage(WIKI), session));
+        }
+
+        return ids;
+    }
+
+    /**
+     * @param wikiId the wiki of the events to subscribe to
+     * @return an addListener message
+     */
+    protected Map<String, Object> createMessage(String wikiId)
+    {
+        Map<String, Object> params = new HashMap<>();
+        params.put("wikiId", wikiId);
+        Map<String, Object> eventType = new HashMap<>();
+        eventType.put("id", WikiReadyEvent.class.getName());
+        eventType.put("params", params);
+        // The listener data differs for each subscription, as with the JavaScript API
+        Map<String, Object> eventData = new HashMap<>();
+        eventData.put("listenerId", this.listenerCounter++);
+        eventData.put("data", null);
+        Map<String, Object> message = new HashMap<>();
+        message.put("eventType", eventType);
+        message.put("eventData", eventData);
+
+        return message;
+    }
+}
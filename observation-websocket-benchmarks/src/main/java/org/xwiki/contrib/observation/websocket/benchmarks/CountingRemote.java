@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+
+/**
+ * A remote endpoint which only counts the messages and bytes it's asked to send, completing each send immediately.
+ *
+ * @version $Id$
+ */
+public class CountingRemote implements RemoteEndpoint.Async
+{
+    private static final SendResult OK = new SendResult();
+
+    private long messages;
+
+    private long bytes;
+
+    /**
+     * @return the number of messages sent
+     */
+    public long getMessages()
+    {
+        return this.messages;
+    }
+
+    /**
+     * @return the number of bytes (or characters, for the text messages) sent
+     */
+    public long getBytes()
+    {
+        return this.bytes;
+    }
+
+    @Override
+    public void sendText(String text, SendHandler handler)
+    {
+        this.messages++;
+        this.bytes += text.length();
+        handler.onResult(OK);
+    }
+
+    @Override
+    public Future<Void> sendText(String text)
+    {
+        sendText(text, result -> { });
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer data, SendHandler handler)
+    {
+        this.messages++;
+        this.bytes += data.remaining();
+        handler.onResult(OK);
+    }
+
+    @Override
+    public Future<Void> sendBinary(ByteBuffer data)
+    {
+        sendBinary(data, result -> { });
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void sendObject(Object data, SendHandler handler)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<Void> sendObject(Object data)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getSendTimeout()
+    {
+        return 0;
+    }
+
+    @Override
+    public void setSendTimeout(long timeoutmillis)
+    {
+        // Sending never blocks.
+    }
+
+    @Override
+    public void setBatchingAllowed(boolean allowed)
+    {
+        // Nothing is actually sent.
+    }
+
+    @Override
+    public boolean getBatchingAllowed()
+    {
+        return false;
+    }
+
+    @Override
+    public void flushBatch()
+    {
+        // Nothing is actually sent.
+    }
+
+    @Override
+    public void sendPing(ByteBuffer applicationData)
+    {
+        // Nothing is actually sent.
+    }
+
+    @Override
+    public void sendPong(ByteBuffer applicationData)
+    {
+        // Nothing is actually sent.
+    }
+}
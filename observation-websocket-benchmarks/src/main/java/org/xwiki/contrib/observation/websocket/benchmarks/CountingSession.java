@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.benchmarks;
+
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Extension;
+import javax.websocket.MessageHandler;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+
+/**
+ * A WebSocket session whose remote endpoint only counts what is sent to the client. The sessions of a benchmark
+ * share the same remote endpoint, so that the total amount sent is cheap to read.
+ *
+ * @version $Id$
+ */
+public class CountingSession implements Session
+{
+    private final String id;
+
+    private final CountingRemote remote;
+
+    private final Map<String, Object> userProperties = new HashMap<>();
+
+    private boolean open = true;
+
+    /**
+     * @param id the session identifier
+     * @param remote the remote endpoint counting the messages sent to the client
+     */
+    public CountingSession(String id, CountingRemote remote)
+    {
+        this.id = id;
+        this.remote = remote;
+    }
+
+    @Override
+    public RemoteEndpoint.Async getAsyncRemote()
+    {
+        return this.remote;
+    }
+
+    @Override
+    public RemoteEndpoint.Basic getBasicRemote()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<String, Object> getUserProperties()
+    {
+        return this.userProperties;
+    }
+
+    @Override
+    public String getId()
+    {
+        return this.id;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return this.open;
+    }
+
+    @Override
+    public void close()
+    {
+        this.open = false;
+    }
+
+    @Override
+    public void close(CloseReason closeReason)
+    {
+        this.open = false;
+    }
+
+    @Override
+    public WebSocketContainer getContainer()
+    {
+        return null;
+    }
+
+    @Override
+    public void addMessageHandler(MessageHandler handler)
+    {
+        // The benchmarks don't receive messages.
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, MessageHandler.Whole<T> handler)
+    {
+        // The benchmarks don't receive messages.
+    }
+
+    @Override
+    public <T> void addMessageHandler(Class<T> clazz, MessageHandler.Partial<T> handler)
+    {
+        // The benchmarks don't receive messages.
+    }
+
+    @Override
+    public Set<MessageHandler> getMessageHandlers()
+    {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void removeMessageHandler(MessageHandler handler)
+    {
+        // The benchmarks don't receive messages.
+    }
+
+    @Override
+    public String getProtocolVersion()
+    {
+        return "13";
+    }
+
+    @Override
+    public String getNegotiatedSubprotocol()
+    {
+        return null;
+    }
+
+    @Override
+    public List<Extension> getNegotiatedExtensions()
+    {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isSecure()
+    {
+        return false;
+    }
+
+    @Override
+    public long getMaxIdleTimeout()
+    {
+        return 0;
+    }
+
+    @Override
+    public void setMaxIdleTimeout(long milliseconds)
+    {
+        // Sessions never time out.
+    }
+
+    @Override
+    public void setMaxBinaryMessageBufferSize(int length)
+    {
+        // The benchmarks don't receive messages.
+    }
+
+    @Override
+    public int getMaxBinaryMessageBufferSize()
+    {
+        return 0;
+    }
+
+    @Override
+    public void setMaxTextMessageBufferSize(int length)
+    {
+        // The benchmarks don't receive messages.
+    }
+
+    @Override
+    public int getMaxTextMessageBufferSize()
+    {
+        return 0;
+    }
+
+    @Override
+    public URI getRequestURI()
+    {
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestParameterMap()
+    {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String getQueryString()
+    {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getPathParameters()
+    {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Principal getUserPrincipal()
+    {
+        return null;
+    }
+
+    @Override
+    public Set<Session> getOpenSessions()
+    {
+        return Collections.emptySet();
+    }
+}
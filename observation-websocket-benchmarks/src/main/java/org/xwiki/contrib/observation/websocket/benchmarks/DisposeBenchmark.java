@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the release of a session (i.e. when the client disconnects) having several subscriptions.
+ * <p>
+ * A new session is subscribed before each invocation, which is acceptable here because the release of the
+ * subscriptions takes much longer than the timestamps taken around each invocation.
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DisposeBenchmark extends AbstractEventsManagerBenchmark
+{
+    /**
+     * The number of subscriptions of the released session.
+     */
+    @Param({ "10", "100" })
+    public int subscriptions;
+
+    /**
+     * The number of subscriptions (of other sessions) sharing the filter of the released subscriptions. With 0 the
+     * listener is unregistered each time.
+     */
+    @Param({ "0", "1000" })
+    public int existingSubscriptions;
+
+    private CountingSession session;
+
+    /**
+     * Create the existing subscriptions.
+     *
+     * @throws Exception when failing to create the subscriptions
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        setUpComponents();
+
+        if (this.existingSubscriptions > 0) {
+            subscribe(createSession(), this.existingSubscriptions);
+        }
+    }
+
+    /**
+     * Create the session to release.
+     *
+     * @throws Exception when failing to create the subscriptions
+     */
+    @Setup(Level.Invocation)
+    public void setUpSession() throws Exception
+    {
+        this.session = createSession();
+        subscribe(this.session, this.subscriptions);
+    }
+
+    /**
+     * Release the components.
+     *
+     * @throws Exception when failing to release the components
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        tearDownComponents();
+    }
+
+    /**
+     * Release the session.
+     */
+    @Benchmark
+    public void dispose()
+    {
+        this.manager.dispose(this.session);
+    }
+}
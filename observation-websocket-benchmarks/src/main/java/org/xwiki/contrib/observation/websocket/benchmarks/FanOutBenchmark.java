@@ -0,0 +1,161 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.bridge.event.WikiReadyEvent;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Measure the dispatch of an event to N sessions having M subscriptions each, all matching the event: the filtering,
+ * the serialization of the event, its source and data, and the encoding of a message for each subscription.
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark extends AbstractEventsManagerBenchmark
+{
+    /**
+     * The number of sessions.
+     */
+    @Param({ "1", "10", "100", "1000" })
+    public int sessions;
+
+    /**
+     * The number of subscriptions of each session.
+     */
+    @Param({ "1", "10" })
+    public int subscriptions;
+
+    /**
+     * The source and data of the event: {@code none}, or a document and the XWiki context (as for the document
+     * events).
+     */
+    @Param({ "none", "document" })
+    public String source;
+
+    /**
+     * The encoding of the events sent to the clients: {@code json} or {@code smile}.
+     */
+    @Param({ "json", "smile" })
+    public String encoding;
+
+    private final WikiReadyEvent event = new WikiReadyEvent(WIKI);
+
+    private Object eventSource;
+
+    private Object eventData;
+
+    /**
+     * The amount sent to the clients, reported along with the throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sent
+    {
+        /**
+         * The number of messages sent.
+         */
+        public long messages;
+
+        /**
+         * The number of bytes (or characters, for the text messages) sent.
+         */
+        public long bytes;
+    }
+
+    /**
+     * Create the sessions and their subscriptions.
+     *
+     * @throws Exception when failing to create the subscriptions
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        setUpComponents();
+
+        for (int i = 0; i < this.sessions; i++) {
+            CountingSession session = createSession();
+            this.manager.configure(Collections.singletonMap("encoding", this.encoding), session);
+            subscribe(session, this.subscriptions);
+        }
+
+        if ("document".equals(this.source)) {
+            XWikiContext xcontext = new XWikiContext();
+            xcontext.setWiki(new XWiki());
+            xcontext.setWikiId(WIKI);
+            XWikiDocument document = new XWikiDocument(new DocumentReference(WIKI, "Space", "Page"));
+            this.eventSource = document;
+            this.eventData = xcontext;
+        }
+    }
+
+    /**
+     * Release the components.
+     *
+     * @throws Exception when failing to release the components
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        tearDownComponents();
+    }
+
+    /**
+     * Fire an event matched by all the subscriptions.
+     *
+     * @param sent the amount sent to the clients
+     */
+    @Benchmark
+    public void onEvent(Sent sent)
+    {
+        long messages = this.remote.getMessages();
+        long bytes = this.remote.getBytes();
+
+        this.listener.onEvent(this.event, this.eventSource, this.eventData);
+
+        sent.messages += this.remote.getMessages() - messages;
+        sent.bytes += this.remote.getBytes() - bytes;
+    }
+}
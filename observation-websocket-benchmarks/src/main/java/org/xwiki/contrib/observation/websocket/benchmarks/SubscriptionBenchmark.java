@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.benchmarks;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.websocket.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measure the cost of adding a subscription: the resolution of the event class and constructor, the creation of the
+ * filter and the registration in the shared groups. The subscription is removed right away so that the state doesn't
+ * grow during the benchmark.
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionBenchmark extends AbstractEventsManagerBenchmark
+{
+    /**
+     * The number of subscriptions (of other sessions) sharing the filter of the added subscription. With 0 the
+     * listener is registered and unregistered each time.
+     */
+    @Param({ "0", "1000" })
+    public int existingSubscriptions;
+
+    private Session session;
+
+    private Map<String, Object> message;
+
+    /**
+     * Create the existing subscriptions.
+     *
+     * @throws Exception when failing to create the subscriptions
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        setUpComponents();
+
+        if (this.existingSubscriptions > 0) {
+            subscribe(createSession(), this.existingSubscriptions);
+        }
+
+        this.session = createSession();
+        this.message = createMessage(WIKI);
+    }
+
+    /**
+     * Release the components.
+     *
+     * @throws Exception when failing to release the components
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        tearDownComponents();
+    }
+
+    /**
+     * Add a subscription and remove it.
+     *
+     * @return the identifier of the subscription
+     * @throws Exception when failing to add the subscription
+     */
+    @Benchmark
+    public long addEvent() throws Exception
+    {
+        long id = this.manager.addEvent(this.message, this.session);
+        this.manager.removeEvents(Collections.singletonList(id), this.session);
+
+        return id;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of the delivery latencies, precise enough to compute the high percentiles: below 64 microseconds each
+ * bucket holds a single value, above each power of two is split in 32 buckets (i.e. an error of at most 3%). The
+ * recording is lock-free, so that it can be done by the threads of all the clients.
+ *
+ * @version $Id$
+ */
+final class LatencyRecorder
+{
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The values lower than this are recorded exactly.
+     */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    private static final int LINEAR_EXPONENT = SUB_BUCKET_BITS + 1;
+
+    private static final int BUCKETS = LINEAR_LIMIT + (Long.SIZE - 1 - LINEAR_EXPONENT) * SUB_BUCKETS;
+
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    /**
+     * @param nanos the latency to record, in nanoseconds
+     */
+    void record(long nanos)
+    {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+
+        this.buckets.incrementAndGet(getBucket(micros));
+        this.sum.add(micros);
+        this.max.accumulate(micros);
+    }
+
+    private static int getBucket(long micros)
+    {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+
+        return LINEAR_LIMIT + (exponent - LINEAR_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value recorded in the given bucket
+     */
+    private static long getUpperBound(int bucket)
+    {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_EXPONENT;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Forget the recorded latencies, e.g. at the end of the warm up. The latencies recorded at the same time may be
+     * partially kept.
+     */
+    void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.sum.reset();
+        this.max.reset();
+    }
+
+    /**
+     * @return the number of recorded latencies, and their mean, percentiles and maximum in microseconds
+     */
+    Map<String, Long> getSnapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            count += counts[i];
+        }
+
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count);
+        snapshot.put("mean", count > 0 ? this.sum.sum() / count : 0);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            snapshot.put(PERCENTILE_NAMES[i], getPercentile(counts, count, PERCENTILES[i]));
+        }
+        snapshot.put("max", this.max.get());
+
+        return snapshot;
+    }
+
+    private long getPercentile(long[] counts, long count, double percentile)
+    {
+        long rank = (long) Math.ceil(count * percentile);
+        long cumulated = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulated += counts[i];
+            if (cumulated >= rank && cumulated > 0) {
+                // Don't exceed the actual maximum
+                return Math.min(getUpperBound(i), this.max.get());
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.loadtest;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.DeploymentException;
+import javax.websocket.Session;
+
+import org.glassfish.tyrus.client.ClientManager;
+import org.glassfish.tyrus.client.ClientProperties;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationMetrics;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Run a load test: start the server, connect the clients and register their listeners, then fire document updates at
+ * a constant rate and measure how the clients receive them.
+ * <p>
+ * The latency of an event is measured from the time it should have been fired according to the rate, so that the
+ * events delayed by the previous ones (e.g. when the events are dispatched synchronously) are reported as late rather
+ * than hidden. The events are randomly spread over the documents, with a fixed seed so that the runs can be compared.
+ * The clients run in the same process as the server, and share its heap and CPU.
+ *
+ * @version $Id$
+ */
+final class LoadTest
+{
+    private static final long HEAP_SAMPLING_PERIOD = 100;
+
+    private static final long SUBSCRIPTION_TIMEOUT = 10;
+
+    private static final String SPACE = "Space";
+
+    private static final String DOCUMENT = "Document";
+
+    private final LoadTestOptions options;
+
+    private final LoadTestServer server = new LoadTestServer();
+
+    private final LoadTestClient.Statistics statistics = new LoadTestClient.Statistics();
+
+    private final List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    private final LongAccumulator peakHeap = new LongAccumulator(Long::max, 0);
+
+    private final Random random = new Random(0);
+
+    private final XWikiDocument[][] documents;
+
+    /**
+     * The number of ready clients listening to each space.
+     */
+    private final int[] spaceClients;
+
+    /**
+     * The number of ready clients listening to each document.
+     */
+    private final int[][] documentClients;
+
+    /**
+     * The number of ready clients, all listening to all the document updates.
+     */
+    private int readyClients;
+
+    /**
+     * The number of events the clients should receive.
+     */
+    private long expected;
+
+    /**
+     * @param options the options of the load test
+     */
+    LoadTest(LoadTestOptions options)
+    {
+        this.options = options;
+        this.documents = new XWikiDocument[options.getSpaces()][options.getDocuments()];
+        this.spaceClients = new int[options.getSpaces()];
+        this.documentClients = new int[options.getSpaces()][options.getDocuments()];
+    }
+
+    /**
+     * @return the results of the load test
+     * @throws Exception when failing to run the load test
+     */
+    Map<String, Object> run() throws Exception
+    {
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("options", this.options.toMap());
+
+        Map<String, Object> heap = new LinkedHashMap<>();
+        heap.put("beforeStart", getUsedHeap());
+
+        this.server.start(this.options.getConfiguration());
+        ClientManager client = ClientManager.createClient();
+        client.getProperties().put(ClientProperties.SHARED_CONTAINER, true);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            results.put("clients", connect(client));
+            heap.put("afterSetup", getUsedHeap());
+
+            sampler.scheduleAtFixedRate(() -> this.peakHeap.accumulate(this.memory.getHeapMemoryUsage().getUsed()), 0,
+                HEAP_SAMPLING_PERIOD, TimeUnit.MILLISECONDS);
+
+            ObservationManager observation = this.server.getObservationManager();
+            WebSocketObservationMetrics metrics = this.server.getMetrics();
+
+            // Warm up
+            if (this.options.getWarmup() > 0) {
+                fire(observation, this.options.getWarmup());
+                drain();
+                this.statistics.reset();
+                this.expected = 0;
+            }
+
+            long droppedBefore = metrics.getDroppedMessageCount();
+            long[] gcBefore = getGarbageCollections();
+            long start = System.nanoTime();
+            long fired = fire(observation, this.options.getDuration());
+            long firingEnd = System.nanoTime();
+            boolean drained = drain();
+            long end = System.nanoTime();
+            long[] gcAfter = getGarbageCollections();
+
+            Map<String, Object> events = new LinkedHashMap<>();
+            events.put("fired", fired);
+            events.put("rate", fired / toSeconds(firingEnd - start));
+            results.put("events", events);
+
+            long received = this.statistics.getEvents();
+            Map<String, Object> deliveries = new LinkedHashMap<>();
+            deliveries.put("expected", this.expected);
+            deliveries.put("received", received);
+            deliveries.put("dropped", Math.max(0, this.expected - received));
+            deliveries.put("droppedByServer", metrics.getDroppedMessageCount() - droppedBefore);
+            deliveries.put("drained", drained);
+            deliveries.put("throughput", received / toSeconds(end - start));
+            deliveries.put("messages", this.statistics.getMessages());
+            deliveries.put("resets", this.statistics.getResets());
+            results.put("deliveries", deliveries);
+
+            results.put("latency", this.statistics.getLatency().getSnapshot());
+
+            heap.put("peak", this.peakHeap.get());
+            heap.put("afterRun", getUsedHeap());
+            results.put("heap", heap);
+
+            Map<String, Object> gc = new LinkedHashMap<>();
+            gc.put("collections", gcAfter[0] - gcBefore[0]);
+            gc.put("time", gcAfter[1] - gcBefore[1]);
+            results.put("gc", gc);
+
+            results.put("server", metrics.getSnapshot());
+        } finally {
+            sampler.shutdownNow();
+            disconnect();
+            client.shutdown();
+            this.server.stop();
+        }
+
+        return results;
+    }
+
+    private Map<String, Object> connect(ClientManager client) throws InterruptedException
+    {
+        int clientCount = this.options.getClients();
+        CountDownLatch subscribed = new CountDownLatch(clientCount);
+        List<LoadTestClient> clients = new ArrayList<>(clientCount);
+        int[] clientSpaces = new int[clientCount];
+        int[] clientDocuments = new int[clientCount];
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(this.options.getConnectThreads());
+        try {
+            for (int i = 0; i < clientCount; i++) {
+                clientSpaces[i] = this.random.nextInt(this.options.getSpaces());
+                clientDocuments[i] = this.random.nextInt(this.options.getDocuments());
+                String space = LoadTestServer.WIKI + ":" + SPACE + clientSpaces[i];
+                String document = space + '.' + DOCUMENT + clientDocuments[i];
+                LoadTestClient loadTestClient =
+                    new LoadTestClient(space, document, this.options.getBatch(), this.statistics, subscribed);
+                clients.add(loadTestClient);
+
+                // The clients are spread over the users, as if each user had several browsers open
+                URI uri = URI.create(String.format("%s?%s=user%d", this.server.getURI(), LoadTestServer.USER,
+                    i % this.options.getUsers()));
+                executor.execute(() -> {
+                    try {
+                        ClientEndpointConfig config = ClientEndpointConfig.Builder.create().build();
+                        this.sessions.add(client.connectToServer(loadTestClient, config, uri));
+                    } catch (DeploymentException | IOException e) {
+                        subscribed.countDown();
+                    }
+                });
+            }
+            subscribed.await(SUBSCRIPTION_TIMEOUT, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+        long end = System.nanoTime();
+
+        for (int i = 0; i < clientCount; i++) {
+            if (clients.get(i).isReady()) {
+                this.readyClients++;
+                this.spaceClients[clientSpaces[i]]++;
+                this.documentClients[clientSpaces[i]][clientDocuments[i]]++;
+            }
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("connected", this.sessions.size());
+        report.put("ready", this.readyClients);
+        report.put("rejectedListeners", this.statistics.getRejectedListeners());
+        report.put("closedSessions", this.statistics.getClosedSessions());
+        report.put("closeReasons", this.statistics.getCloseReasons());
+        report.put("setupTime", TimeUnit.NANOSECONDS.toMillis(end - start));
+
+        return report;
+    }
+
+    private void disconnect()
+    {
+        synchronized (this.sessions) {
+            for (Session session : this.sessions) {
+                try {
+                    session.close();
+                } catch (IOException e) {
+                    // The session is already closed.
+                }
+            }
+        }
+    }
+
+    private DocumentReference getDocumentReference(int space, int document)
+    {
+        return new DocumentReference(LoadTestServer.WIKI, SPACE + space, DOCUMENT + document);
+    }
+
+    /**
+     * Fire document updates at the configured rate.
+     *
+     * @param observation the observation manager to fire the events with
+     * @param seconds how long to fire the events
+     * @return the number of fired events
+     */
+    private long fire(ObservationManager observation, int seconds)
+    {
+        int rate = this.options.getRate();
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long count = (long) rate * seconds;
+        long start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            long firedAt = start + i * interval;
+            for (long delay = firedAt - System.nanoTime(); delay > 0; delay = firedAt - System.nanoTime()) {
+                LockSupport.parkNanos(delay);
+            }
+
+            int space = this.random.nextInt(this.documents.length);
+            int document = this.random.nextInt(this.documents[space].length);
+            XWikiDocument source = this.documents[space][document];
+            if (source == null) {
+                source = new XWikiDocument(getDocumentReference(space, document));
+                this.documents[space][document] = source;
+            }
+            this.expected += this.readyClients + this.spaceClients[space] + this.documentClients[space][document];
+
+            observation.notify(new DocumentUpdatedEvent(source.getDocumentReference()), source,
+                Collections.singletonMap(LoadTestClient.FIRED_AT, firedAt));
+        }
+
+        return count;
+    }
+
+    /**
+     * Wait for the clients to receive the events fired so far.
+     *
+     * @return {@code true} if all the events were received, {@code false} if some were still missing when the drain
+     *         timeout expired
+     */
+    private boolean drain() throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.options.getDrain());
+        while (this.statistics.getEvents() < this.expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        return this.statistics.getEvents() >= this.expected;
+    }
+
+    private long getUsedHeap()
+    {
+        // Measure what is retained
+        this.memory.gc();
+
+        return this.memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return the number of garbage collections and their accumulated time, in milliseconds
+     */
+    private long[] getGarbageCollections()
+    {
+        long[] collections = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections[0] += Math.max(0, collector.getCollectionCount());
+            collections[1] += Math.max(0, collector.getCollectionTime());
+        }
+
+        return collections;
+    }
+
+    private static double toSeconds(long nanos)
+    {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.loadtest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A WebSocket client registering the listeners of a typical page: all the document updates (only their reference and
+ * the time they were fired), the updates of a space, the updates of the displayed document and its deletion (which
+ * never happens during the load test). The delivery latency of each event is measured from the time it was fired,
+ * given in the event data.
+ *
+ * @version $Id$
+ */
+final class LoadTestClient extends Endpoint
+{
+    /**
+     * The key of the event data holding the time (as given by {@link System#nanoTime()}) the event was fired.
+     */
+    static final String FIRED_AT = "firedAt";
+
+    private static final String FIRED_AT_FIELD = '"' + FIRED_AT + "\":";
+
+    private static final String TYPE = "type";
+
+    private static final String DATA = "data";
+
+    private static final String ERROR = "error";
+
+    private static final String SOURCE_REFERENCE = "source.documentReference";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String space;
+
+    private final String document;
+
+    private final int batchDelay;
+
+    private final Statistics statistics;
+
+    private final CountDownLatch subscribed;
+
+    private final AtomicBoolean acknowledged = new AtomicBoolean();
+
+    private volatile boolean ready;
+
+    private volatile boolean closed;
+
+    /**
+     * What the clients received, shared by all the clients.
+     */
+    static final class Statistics
+    {
+        private final LatencyRecorder latency = new LatencyRecorder();
+
+        private final LongAdder events = new LongAdder();
+
+        private final LongAdder messages = new LongAdder();
+
+        private final LongAdder resets = new LongAdder();
+
+        private final AtomicInteger rejectedListeners = new AtomicInteger();
+
+        private final AtomicInteger closedSessions = new AtomicInteger();
+
+        private final Map<String, Integer> closeReasons = new HashMap<>();
+
+        /**
+         * @return the latency of the events received by the clients
+         */
+        LatencyRecorder getLatency()
+        {
+            return this.latency;
+        }
+
+        /**
+         * @return the number of events received by the clients
+         */
+        long getEvents()
+        {
+            return this.events.sum();
+        }
+
+        /**
+         * @return the number of messages received by the clients, an {@code events} message holding several events
+         */
+        long getMessages()
+        {
+            return this.messages.sum();
+        }
+
+        /**
+         * @return the number of {@code reset} messages received by the clients
+         */
+        long getResets()
+        {
+            return this.resets.sum();
+        }
+
+        /**
+         * @return the number of listeners the server refused to register
+         */
+        int getRejectedListeners()
+        {
+            return this.rejectedListeners.get();
+        }
+
+        /**
+         * @return the number of sessions closed by the server
+         */
+        int getClosedSessions()
+        {
+            return this.closedSessions.get();
+        }
+
+        /**
+         * @return the reasons why the server closed the sessions, with the number of sessions closed for each reason
+         */
+        synchronized Map<String, Integer> getCloseReasons()
+        {
+            return new HashMap<>(this.closeReasons);
+        }
+
+        /**
+         * Forget the events received so far, e.g. at the end of the warm up.
+         */
+        void reset()
+        {
+            this.latency.reset();
+            this.events.reset();
+            this.messages.reset();
+        }
+
+        private synchronized void closed(CloseReason reason)
+        {
+            this.closedSessions.incrementAndGet();
+            this.closeReasons.merge(reason.getCloseCode().getCode() + " " + reason.getReasonPhrase(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * @param space the space whose updates the client listens to, e.g. {@code xwiki:Space1}
+     * @param document the document whose updates the client listens to, e.g. {@code xwiki:Space1.Document2}
+     * @param batchDelay the maximum delay (in milliseconds) of the batches of events; 0 to receive the events one at a
+     *            time
+     * @param statistics where to record what the client receives
+     * @param subscribed counted down when the listeners of the client are registered, or rejected
+     */
+    LoadTestClient(String space, String document, int batchDelay, Statistics statistics, CountDownLatch subscribed)
+    {
+        this.space = space;
+        this.document = document;
+        this.batchDelay = batchDelay;
+        this.statistics = statistics;
+        this.subscribed = subscribed;
+    }
+
+    /**
+     * @return {@code true} if all the listeners of the client were registered and the session is still open
+     */
+    boolean isReady()
+    {
+        return this.ready && !this.closed;
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config)
+    {
+        session.addMessageHandler(new MessageHandler.Whole<String>()
+        {
+            @Override
+            public void onMessage(String message)
+            {
+                handleMessage(message);
+            }
+        });
+
+        try {
+            // The latency is read from the JSON messages
+            Map<String, Object> configuration = new HashMap<>();
+            configuration.put("encoding", "json");
+            if (this.batchDelay > 0) {
+                Map<String, Object> batch = new HashMap<>();
+                batch.put("delay", this.batchDelay);
+                configuration.put("batch", batch);
+            }
+            session.getBasicRemote().sendText(MAPPER.writeValueAsString(createMessage("configure", configuration)));
+            session.getBasicRemote().sendText(MAPPER.writeValueAsString(createMessage("addListeners", Arrays.asList(
+                createListener(1, DocumentUpdatedEvent.class, null, Collections.singletonMap("paths",
+                    Arrays.asList("/source/documentReference", "/data/" + FIRED_AT))),
+                createListener(2, DocumentUpdatedEvent.class, createCondition("space", this.space), null),
+                createListener(3, DocumentUpdatedEvent.class, createCondition("equals", this.document), null),
+                createListener(4, DocumentDeletedEvent.class, createCondition("equals", this.document), null)))));
+        } catch (IOException e) {
+            acknowledge(false);
+        }
+    }
+
+    private void acknowledge(boolean success)
+    {
+        if (this.acknowledged.compareAndSet(false, true)) {
+            this.ready = success;
+            this.subscribed.countDown();
+        }
+    }
+
+    private static Map<String, Object> createMessage(String type, Object data)
+    {
+        Map<String, Object> message = new HashMap<>();
+        message.put(TYPE, type);
+        message.put(DATA, data);
+
+        return message;
+    }
+
+    private static Map<String, Object> createListener(int listenerId, Class<?> eventClass, Object where,
+        Object projection)
+    {
+        Map<String, Object> listener = new HashMap<>();
+        listener.put("listenerId", listenerId);
+        listener.put("eventType", Collections.singletonMap("id", eventClass.getName()));
+        listener.put("eventData", Collections.singletonMap("listenerId", listenerId));
+        if (where != null) {
+            listener.put("where", where);
+        }
+        if (projection != null) {
+            listener.put("projection", projection);
+        }
+
+        return listener;
+    }
+
+    private static List<Map<String, Object>> createCondition(String operator, String value)
+    {
+        Map<String, Object> condition = new HashMap<>();
+        condition.put("property", SOURCE_REFERENCE);
+        condition.put(operator, value);
+
+        return Collections.singletonList(condition);
+    }
+
+    private void handleMessage(String message)
+    {
+        long now = System.nanoTime();
+
+        this.statistics.messages.increment();
+
+        // Don't parse the events, only find the time they were fired (a batch holds several events)
+        int count = 0;
+        int length = message.length();
+        for (int index = message.indexOf(FIRED_AT_FIELD); index >= 0;
+            index = message.indexOf(FIRED_AT_FIELD, index)) {
+            index += FIRED_AT_FIELD.length();
+            int end = index;
+            while (end < length && (Character.isDigit(message.charAt(end)) || message.charAt(end) == '-')) {
+                end++;
+            }
+            this.statistics.latency.record(now - Long.parseLong(message.substring(index, end)));
+            count++;
+        }
+
+        if (count > 0) {
+            this.statistics.events.add(count);
+        } else {
+            handleControlMessage(message);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handleControlMessage(String message)
+    {
+        try {
+            Map<String, Object> control = MAPPER.readValue(message, Map.class);
+            Object type = control.get(TYPE);
+            if ("ack".equals(type)) {
+                List<Map<String, Object>> acknowledgements = (List<Map<String, Object>>) control.get(DATA);
+                int rejected = 0;
+                for (Map<String, Object> acknowledgement : acknowledgements) {
+                    if (acknowledgement.containsKey(ERROR)) {
+                        rejected++;
+                    }
+                }
+                this.statistics.rejectedListeners.addAndGet(rejected);
+                acknowledge(rejected == 0);
+            } else if ("reset".equals(type)) {
+                this.statistics.resets.increment();
+            }
+        } catch (IOException e) {
+            // Not a message of the protocol, ignore it.
+        }
+    }
+
+    @Override
+    public void onClose(Session session, CloseReason closeReason)
+    {
+        if (!this.closed) {
+            this.closed = true;
+            this.statistics.closed(closeReason);
+            // The server may have refused the connection
+            acknowledge(false);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The options of a load test run, given on the command line as {@code --name value}. The configuration of the
+ * observation WebSocket is read from the properties file given with {@code --config} (with the same format as
+ * {@code xwiki.properties}) and from the {@code observation.websocket.*} system properties, which take precedence.
+ *
+ * @version $Id$
+ */
+final class LoadTestOptions
+{
+    private static final String CONFIGURATION_PREFIX = "observation.websocket.";
+
+    private final Map<String, String> values = new LinkedHashMap<>();
+
+    private final Properties configuration = new Properties();
+
+    private LoadTestOptions()
+    {
+        this.values.put("clients", "1000");
+        this.values.put("users", "100");
+        this.values.put("spaces", "10");
+        this.values.put("documents", "100");
+        this.values.put("rate", "1000");
+        this.values.put("duration", "30");
+        this.values.put("warmup", "5");
+        this.values.put("drain", "10");
+        this.values.put("batch", "0");
+        this.values.put("connectThreads", "16");
+        this.values.put("config", "");
+        this.values.put("result", "loadtest-result.json");
+    }
+
+    /**
+     * @param args the command line arguments
+     * @return the parsed options
+     * @throws IOException when failing to read the configuration file
+     * @throws IllegalArgumentException when an option is unknown or has no value
+     */
+    static LoadTestOptions parse(String[] args) throws IOException
+    {
+        LoadTestOptions options = new LoadTestOptions();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+            if (name == null || !options.values.containsKey(name)) {
+                throw new IllegalArgumentException(String.format("Unknown option [%s]", args[i]));
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(String.format("The option [%s] has no value", args[i]));
+            }
+            options.values.put(name, args[++i]);
+        }
+
+        String configurationFile = options.values.get("config");
+        if (!configurationFile.isEmpty()) {
+            try (InputStream stream = Files.newInputStream(Paths.get(configurationFile))) {
+                options.configuration.load(stream);
+            }
+        }
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(CONFIGURATION_PREFIX)) {
+                options.configuration.setProperty(key, System.getProperty(key));
+            }
+        }
+
+        return options;
+    }
+
+    /**
+     * @return the usage of the command line
+     */
+    static String getUsage()
+    {
+        StringBuilder usage = new StringBuilder("Usage: java [-Dobservation.websocket.<property>=<value>...] -jar "
+            + "loadtest.jar [--<option> <value>...]\nOptions (with their default value):\n");
+        new LoadTestOptions().values.forEach((name, value) -> usage.append(String.format("  --%-15s %s%n", name,
+            value)));
+        usage.append("See the README for their description.");
+
+        return usage.toString();
+    }
+
+    private int getInt(String name)
+    {
+        return Integer.parseInt(this.values.get(name));
+    }
+
+    /**
+     * @return the number of WebSocket clients
+     */
+    int getClients()
+    {
+        return getInt("clients");
+    }
+
+    /**
+     * @return the number of users the clients are spread over (each user opens several connections, as with several
+     *         browsers)
+     */
+    int getUsers()
+    {
+        return getInt("users");
+    }
+
+    /**
+     * @return the number of spaces holding the updated documents
+     */
+    int getSpaces()
+    {
+        return getInt("spaces");
+    }
+
+    /**
+     * @return the number of documents in each space
+     */
+    int getDocuments()
+    {
+        return getInt("documents");
+    }
+
+    /**
+     * @return the number of events fired per second
+     */
+    int getRate()
+    {
+        return getInt("rate");
+    }
+
+    /**
+     * @return how long (in seconds) the events are fired, once the clients are connected and warmed up
+     */
+    int getDuration()
+    {
+        return getInt("duration");
+    }
+
+    /**
+     * @return how long (in seconds) the events are fired before the measurement starts
+     */
+    int getWarmup()
+    {
+        return getInt("warmup");
+    }
+
+    /**
+     * @return how long (in seconds) to wait for the last events to be delivered, the events not delivered by then
+     *         being counted as dropped
+     */
+    int getDrain()
+    {
+        return getInt("drain");
+    }
+
+    /**
+     * @return the maximum delay (in milliseconds) of the batches of events the clients ask for; 0 to receive the events
+     *         one at a time
+     */
+    int getBatch()
+    {
+        return getInt("batch");
+    }
+
+    /**
+     * @return the number of threads opening the client connections
+     */
+    int getConnectThreads()
+    {
+        return getInt("connectThreads");
+    }
+
+    /**
+     * @return the file where the results are written, as JSON
+     */
+    String getResult()
+    {
+        return this.values.get("result");
+    }
+
+    /**
+     * @return the configuration of the observation WebSocket
+     */
+    Properties getConfiguration()
+    {
+        return this.configuration;
+    }
+
+    /**
+     * @return the options and the configuration, to report them with the results
+     */
+    Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new LinkedHashMap<>(this.values);
+        Map<String, String> properties = new LinkedHashMap<>();
+        this.configuration.stringPropertyNames().stream().sorted()
+            .forEach(key -> properties.put(key, this.configuration.getProperty(key)));
+        map.put("configuration", properties);
+
+        return map;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.loadtest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Run the load test with the options given on the command line, print a summary of the results and write them all in
+ * {@code loadtest-result.json} by default, so that they can be compared between configurations and releases.
+ *
+ * @version $Id$
+ */
+public final class LoadTestRunner
+{
+    private LoadTestRunner()
+    {
+        // Utility class.
+    }
+
+    /**
+     * @param args the load test options
+     * @throws Exception when failing to run the load test
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.println(LoadTestOptions.getUsage());
+
+            return;
+        }
+
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadTestOptions.getUsage());
+            System.exit(2);
+
+            return;
+        }
+
+        Map<String, Object> results = new LoadTest(options).run();
+
+        for (String part : Arrays.asList("clients", "events", "deliveries", "latency", "heap", "gc")) {
+            System.out.format("%-10s %s%n", part, results.get(part));
+        }
+
+        File resultFile = new File(options.getResult());
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(resultFile, results);
+        System.out.format("The results were written in %s%n", resultFile.getAbsolutePath());
+
+        // Don't wait for the idle threads of the WebSocket container to stop
+        System.exit(0);
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.observation.websocket.loadtest;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javax.websocket.Endpoint;
+import javax.websocket.Session;
+import javax.websocket.server.ServerApplicationConfig;
+import javax.websocket.server.ServerEndpointConfig;
+
+import org.glassfish.tyrus.server.Server;
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.observation.websocket.internal.EventFilterFactory;
+import org.xwiki.contrib.observation.websocket.internal.EventValueSerializerRegistry;
+import org.xwiki.contrib.observation.websocket.internal.SerializedReferenceCache;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsAuthorization;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsDispatcher;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsEndpoint;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsManager;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketEventsSerializer;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketHeartbeat;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketMessageExecutor;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationConfiguration;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationMetrics;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketObservationScheduler;
+import org.xwiki.contrib.observation.websocket.internal.WebSocketSessionReleaser;
+import org.xwiki.contrib.observation.websocket.internal.XWikiContextSerializer;
+import org.xwiki.contrib.observation.websocket.internal.XWikiDocumentSerializer;
+import org.xwiki.management.JMXBeanRegistration;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.internal.DefaultObservationManager;
+import org.xwiki.properties.ConverterManager;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.mockito.MockitoComponentManager;
+import org.xwiki.websocket.EndpointComponent;
+import org.xwiki.websocket.WebSocketContext;
+
+import com.xpn.xwiki.CoreConfiguration;
+import com.xpn.xwiki.test.reference.ReferenceComponentList;
+import com.xpn.xwiki.web.Utils;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Deploy the observation endpoint in an embedded WebSocket container listening on the loopback interface. The endpoint
+ * and the components it relies on are the real ones, as well as the observation manager the events are fired with.
+ * The rest of the environment is stubbed: the configuration is read from properties, the user of a connection is
+ * given by its {@code user} query parameter, and all the users are allowed to view all the documents.
+ *
+ * @version $Id$
+ */
+final class LoadTestServer
+{
+    /**
+     * The wiki of the fired events.
+     */
+    static final String WIKI = "xwiki";
+
+    /**
+     * The query parameter holding the name of the user of a connection.
+     */
+    static final String USER = "user";
+
+    private static final String PATH = "/observation";
+
+    private static final String CONTEXT_PATH = "/websocket";
+
+    private static final List<Class<?>> COMPONENTS = Arrays.asList(DefaultObservationManager.class,
+        WebSocketEventsEndpoint.class, WebSocketEventsManager.class, WebSocketEventsDispatcher.class,
+        WebSocketMessageExecutor.class, WebSocketSessionReleaser.class, WebSocketObservationConfiguration.class,
+        WebSocketObservationScheduler.class, WebSocketHeartbeat.class, WebSocketEventsSerializer.class,
+        EventValueSerializerRegistry.class, XWikiDocumentSerializer.class, XWikiContextSerializer.class,
+        SerializedReferenceCache.class, EventFilterFactory.class, WebSocketObservationMetrics.class);
+
+    /**
+     * The user of the connection whose message is being handled, as the XWiki context would hold it.
+     */
+    private static final ThreadLocal<DocumentReference> CURRENT_USER = new ThreadLocal<>();
+
+    /**
+     * The endpoint to deploy, the application configuration being instantiated by the container.
+     */
+    private static Endpoint endpoint;
+
+    private MockitoComponentManager componentManager;
+
+    private Server server;
+
+    private URI uri;
+
+    /**
+     * Deploy the endpoint component in the container, as XWiki does.
+     */
+    public static final class ApplicationConfig implements ServerApplicationConfig
+    {
+        @Override
+        public Set<ServerEndpointConfig> getEndpointConfigs(Set<Class<? extends Endpoint>> endpointClasses)
+        {
+            Endpoint instance = endpoint;
+            ServerEndpointConfig.Configurator configurator = new ServerEndpointConfig.Configurator()
+            {
+                @Override
+                public <T> T getEndpointInstance(Class<T> endpointClass)
+                {
+                    return endpointClass.cast(instance);
+                }
+            };
+
+            return Collections.singleton(
+                ServerEndpointConfig.Builder.create(instance.getClass(), PATH).configurator(configurator).build());
+        }
+
+        @Override
+        public Set<Class<?>> getAnnotatedEndpointClasses(Set<Class<?>> scanned)
+        {
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Create the components and start the container.
+     *
+     * @param configuration the configuration of the observation WebSocket
+     * @throws Exception when failing to start the server
+     */
+    void start(Properties configuration) throws Exception
+    {
+        this.componentManager = new MockitoComponentManager();
+        // The documents used as event source need the reference components
+        for (Class<?> component : ReferenceComponentList.class.getAnnotation(ComponentList.class).value()) {
+            this.componentManager.registerComponent(component);
+        }
+        this.componentManager.registerComponent(ComponentManager.class, "context", this.componentManager);
+        Utils.setComponentManager(this.componentManager);
+
+        registerMock(CoreConfiguration.class);
+        registerMock(JMXBeanRegistration.class);
+
+        ConverterManager converter = registerMock(ConverterManager.class);
+        when(converter.convert(eq(String.class), any())).thenAnswer(invocation -> invocation.getArgument(1));
+
+        ConfigurationSource source = registerMock(ConfigurationSource.class, "xwikiproperties");
+        when(source.getProperty(anyString(), any(Object.class))).thenAnswer(
+            invocation -> convert(configuration.getProperty(invocation.getArgument(0)), invocation.getArgument(1)));
+
+        // The context is initialized from the connection, which gives the current user
+        WebSocketContext context = registerMock(WebSocketContext.class);
+        doAnswer(invocation -> {
+            Runnable runnable = invocation.getArgument(1);
+
+            return call(invocation.getArgument(0), () -> {
+                runnable.run();
+
+                return null;
+            });
+        }).when(context).run(any(), any());
+        when(context.call(any(), any())).thenAnswer(invocation -> call(invocation.getArgument(0),
+            invocation.getArgument(1)));
+        DocumentAccessBridge bridge = registerMock(DocumentAccessBridge.class);
+        when(bridge.getCurrentUserReference()).thenAnswer(invocation -> CURRENT_USER.get());
+
+        // All the users are allowed to view the documents, the decisions being taken once per user and event
+        WebSocketEventsAuthorization authorization = registerMock(WebSocketEventsAuthorization.class);
+        when(authorization.getReference(any())).thenCallRealMethod();
+        when(authorization.canView(any(), any())).thenReturn(true);
+        when(authorization.isPublic(any())).thenReturn(true);
+
+        for (Class<?> component : COMPONENTS) {
+            this.componentManager.registerComponent(component);
+        }
+
+        endpoint = this.componentManager.getInstance(EndpointComponent.class, "observation");
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        this.server = new Server(host, port, CONTEXT_PATH, Collections.emptyMap(), ApplicationConfig.class);
+        this.server.start();
+        this.uri = new URI(String.format("ws://%s:%d%s%s", host, port, CONTEXT_PATH, PATH));
+    }
+
+    private <T> T registerMock(Class<T> role) throws Exception
+    {
+        return registerMock(role, "default");
+    }
+
+    private <T> T registerMock(Class<T> role, String hint) throws Exception
+    {
+        // Don't record the invocations, which would keep growing during the load test
+        T mock = mock(role, withSettings().stubOnly());
+        DefaultComponentDescriptor<T> descriptor = new DefaultComponentDescriptor<>();
+        descriptor.setRoleType(role);
+        descriptor.setRoleHint(hint);
+        this.componentManager.registerComponent(descriptor, mock);
+
+        return mock;
+    }
+
+    /**
+     * @return the value of a configuration property, with the type of its default value
+     */
+    private static Object convert(String value, Object defaultValue)
+    {
+        if (value == null) {
+            return defaultValue;
+        } else if (defaultValue instanceof Boolean) {
+            return Boolean.valueOf(value.trim());
+        } else if (defaultValue instanceof Integer) {
+            return Integer.valueOf(value.trim());
+        } else if (defaultValue instanceof Long) {
+            return Long.valueOf(value.trim());
+        }
+
+        return value;
+    }
+
+    private static <T> T call(Session session, Callable<T> callable) throws Exception
+    {
+        List<String> user = session.getRequestParameterMap().get(USER);
+        CURRENT_USER.set(user != null && !user.isEmpty() ? new DocumentReference(WIKI, "XWiki", user.get(0)) : null);
+        try {
+            return callable.call();
+        } finally {
+            CURRENT_USER.remove();
+        }
+    }
+
+    /**
+     * @return the URI of the observation endpoint
+     */
+    URI getURI()
+    {
+        return this.uri;
+    }
+
+    /**
+     * @return the observation manager to fire the events with
+     * @throws Exception when failing to get the observation manager
+     */
+    ObservationManager getObservationManager() throws Exception
+    {
+        return this.componentManager.getInstance(ObservationManager.class);
+    }
+
+    /**
+     * @return the metrics recorded by the server
+     * @throws Exception when failing to get the metrics
+     */
+    WebSocketObservationMetrics getMetrics() throws Exception
+    {
+        return this.componentManager.getInstance(WebSocketObservationMetrics.class);
+    }
+
+    /**
+     * Stop the container and release the components.
+     *
+     * @throws Exception when failing to release the components
+     */
+    void stop() throws Exception
+    {
+        if (this.server != null) {
+            this.server.stop();
+        }
+        if (this.componentManager != null) {
+            this.componentManager.dispose();
+        }
+        endpoint = null;
+    }
+}
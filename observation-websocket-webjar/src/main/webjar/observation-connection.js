@@ -0,0 +1,764 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+// The connection with the observation WebSocket end-point, shared by the browser tabs (clients) that listen to
+// server-side events. It runs in a SharedWorker when the browser supports it, otherwise it's loaded as an AMD module by
+// one of the tabs (the leader), which relays the messages of the other tabs.
+(function(factory) {
+  "use strict";
+
+  if (typeof define === 'function' && define.amd) {
+    define([], factory);
+  } else {
+    // Running in a SharedWorker: each client communicates with the connection through its own port. The clients using
+    // different WebSocket URLs (e.g. different wikis) don't share the connection.
+    var createConnection = factory();
+    var connections = {};
+    self.onconnect = function(event) {
+      var port = event.ports[0];
+      port.onmessage = function(message) {
+        var url = message.data.url;
+        connections[url] = connections[url] || createConnection(url);
+        connections[url].receive(message.data, reply => port.postMessage(reply));
+      };
+    };
+  }
+}(function() {
+  "use strict";
+
+  // Ask the server to compress the events when the browser is able to decompress them. Some browsers have
+  // DecompressionStream without supporting the raw deflate format, so it has to be instantiated to know.
+  var compressionSupported = typeof DecompressionStream === 'function';
+  try {
+    new DecompressionStream('deflate-raw');
+  } catch (e) {
+    compressionSupported = false;
+  }
+
+  // The delay before the first reconnection attempt, doubled after each failed attempt up to the maximum delay. The
+  // actual delay is chosen randomly below this limit (full jitter) so that the clients disconnected at the same time
+  // (e.g. when the server restarts) don't reconnect all at once.
+  var RECONNECT_BASE_DELAY = 1000;
+  var RECONNECT_MAX_DELAY = 60000;
+
+  var decompress = function(buffer) {
+    // The events are compressed with deflate, without header nor checksum.
+    var stream = new Blob([buffer]).stream().pipeThrough(new DecompressionStream('deflate-raw'));
+    return new Response(stream).arrayBuffer();
+  };
+
+  /**
+   * Serializes the given value as JSON, with the object keys sorted, so that the same event types registered by
+   * different clients (or in a different order) get the same key.
+   */
+  var getKey = function(value) {
+    if (Array.isArray(value)) {
+      return '[' + value.map(getKey).join(',') + ']';
+    } else if (value && typeof value === 'object') {
+      return '{' + Object.keys(value).filter(name => value[name] !== undefined).sort()
+        .map(name => JSON.stringify(name) + ':' + getKey(value[name])).join(',') + '}';
+    }
+    return JSON.stringify(value);
+  };
+
+  /**
+   * Reads the Smile documents (binary JSON, see https://github.com/FasterXML/smile-format-specification) of a binary
+   * message.
+   */
+  var SmileReader = function(buffer) {
+    this.bytes = new Uint8Array(buffer);
+    this.view = new DataView(new ArrayBuffer(8));
+    this.pos = 0;
+  };
+
+  // The maximum size of the tables of shared (back-referenced) names and values.
+  SmileReader.MAX_SHARED = 1024;
+
+  SmileReader.textDecoder = new TextDecoder();
+
+  SmileReader.zigzag = function(value) {
+    return value % 2 === 0 ? value / 2 : -(value + 1) / 2;
+  };
+
+  SmileReader.toNumber = function(bytes) {
+    // Two's complement, big-endian.
+    var value = BigInt(0);
+    bytes.forEach(b => {
+      value = (value << BigInt(8)) | BigInt(b);
+    });
+    if (bytes.length && (bytes[0] & 0x80)) {
+      value -= BigInt(1) << BigInt(8 * bytes.length);
+    }
+    return Number(value);
+  };
+
+  SmileReader.prototype.readDocuments = function() {
+    var documents = [];
+    while (this.pos < this.bytes.length) {
+      if (this.bytes[this.pos] === 0xFF) {
+        // Optional end marker.
+        this.pos++;
+      } else {
+        this.readHeader();
+        documents.push(this.readValue());
+      }
+    }
+    return documents;
+  };
+
+  SmileReader.prototype.readHeader = function() {
+    if (this.bytes[this.pos] !== 0x3A || this.bytes[this.pos + 1] !== 0x29 || this.bytes[this.pos + 2] !== 0x0A) {
+      throw new Error('Invalid Smile header.');
+    }
+    var flags = this.bytes[this.pos + 3];
+    this.pos += 4;
+    // Each document has its own tables of shared names and values.
+    this.sharedNames = (flags & 0x01) ? [] : null;
+    this.sharedValues = (flags & 0x02) ? [] : null;
+  };
+
+  SmileReader.prototype.share = function(table, value) {
+    if (table) {
+      if (table.length >= SmileReader.MAX_SHARED) {
+        table.length = 0;
+      }
+      table.push(value);
+    }
+    return value;
+  };
+
+  SmileReader.prototype.readValue = function() {
+    var token = this.bytes[this.pos++];
+    switch (token >> 5) {
+      case 0:
+        // Short shared value reference.
+        return this.sharedValues[token - 1];
+      case 1:
+        return this.readLiteral(token);
+      case 2:
+        // Tiny ASCII.
+        return this.share(this.sharedValues, this.readText((token & 0x1F) + 1));
+      case 3:
+        // Short ASCII.
+        return this.share(this.sharedValues, this.readText((token & 0x1F) + 33));
+      case 4:
+        // Tiny Unicode.
+        return this.share(this.sharedValues, this.readText((token & 0x1F) + 2));
+      case 5:
+        // Short Unicode.
+        return this.share(this.sharedValues, this.readText((token & 0x1F) + 34));
+      case 6:
+        // Small integer.
+        return SmileReader.zigzag(token & 0x1F);
+    }
+    if (token === 0xE0 || token === 0xE4) {
+      // Long ASCII / Unicode text.
+      return this.readTerminatedText();
+    } else if (token === 0xE8) {
+      return this.read7BitBinary(this.readVInt());
+    } else if (token >= 0xEC && token <= 0xEF) {
+      // Long shared value reference.
+      return this.sharedValues[((token & 0x03) << 8) | this.bytes[this.pos++]];
+    } else if (token === 0xF8) {
+      return this.readArray();
+    } else if (token === 0xFA) {
+      return this.readObject();
+    } else if (token === 0xFD) {
+      var length = this.readVInt();
+      this.pos += length;
+      return this.bytes.slice(this.pos - length, this.pos);
+    }
+    throw new Error(`Unexpected Smile token: ${token}`);
+  };
+
+  SmileReader.prototype.readLiteral = function(token) {
+    switch (token) {
+      case 0x20:
+        return '';
+      case 0x21:
+        return null;
+      case 0x22:
+        return false;
+      case 0x23:
+        return true;
+      case 0x24:
+      case 0x25:
+        // 32 and 64 bits integers (the precision of the later is limited to 53 bits).
+        return SmileReader.zigzag(this.readVInt());
+      case 0x26:
+        return SmileReader.toNumber(this.read7BitBinary(this.readVInt()));
+      case 0x28:
+        return this.readFloat();
+      case 0x29:
+        return this.readDouble();
+      case 0x2A:
+        var scale = SmileReader.zigzag(this.readVInt());
+        return SmileReader.toNumber(this.read7BitBinary(this.readVInt())) / Math.pow(10, scale);
+    }
+    throw new Error(`Unexpected Smile token: ${token}`);
+  };
+
+  SmileReader.prototype.readName = function(token) {
+    if (token === 0x20) {
+      return '';
+    } else if (token >= 0x30 && token <= 0x33) {
+      // Long shared name reference.
+      return this.sharedNames[((token & 0x03) << 8) | this.bytes[this.pos++]];
+    } else if (token === 0x34) {
+      // Long name.
+      return this.share(this.sharedNames, this.readTerminatedText());
+    } else if (token >= 0x40 && token <= 0x7F) {
+      // Short shared name reference.
+      return this.sharedNames[token & 0x3F];
+    } else if (token >= 0x80 && token <= 0xBF) {
+      // Short ASCII name.
+      return this.share(this.sharedNames, this.readText((token & 0x3F) + 1));
+    } else if (token >= 0xC0 && token <= 0xF7) {
+      // Short Unicode name.
+      return this.share(this.sharedNames, this.readText((token & 0x3F) + 2));
+    }
+    throw new Error(`Unexpected Smile name token: ${token}`);
+  };
+
+  SmileReader.prototype.readArray = function() {
+    var array = [];
+    while (this.bytes[this.pos] !== 0xF9) {
+      array.push(this.readValue());
+    }
+    this.pos++;
+    return array;
+  };
+
+  SmileReader.prototype.readObject = function() {
+    var object = {};
+    var token = this.bytes[this.pos++];
+    while (token !== 0xFB) {
+      var name = this.readName(token);
+      object[name] = this.readValue();
+      token = this.bytes[this.pos++];
+    }
+    return object;
+  };
+
+  SmileReader.prototype.readText = function(length) {
+    this.pos += length;
+    return SmileReader.textDecoder.decode(this.bytes.subarray(this.pos - length, this.pos));
+  };
+
+  SmileReader.prototype.readTerminatedText = function() {
+    var end = this.bytes.indexOf(0xFC, this.pos);
+    var text = SmileReader.textDecoder.decode(this.bytes.subarray(this.pos, end));
+    this.pos = end + 1;
+    return text;
+  };
+
+  SmileReader.prototype.readVInt = function() {
+    // 7 bits per byte, the last byte having the high bit set and holding only 6 bits.
+    var value = 0;
+    for (var b = this.bytes[this.pos++]; !(b & 0x80); b = this.bytes[this.pos++]) {
+      value = value * 128 + b;
+    }
+    return value * 64 + (b & 0x3F);
+  };
+
+  SmileReader.prototype.read7BitBinary = function(length) {
+    // Each group of 7 bytes is encoded in 8 bytes of 7 bits. The remaining n bytes are encoded in n + 1 bytes, the last
+    // one holding only the n remaining bits.
+    var result = new Uint8Array(length);
+    var accumulator = 0, bits = 0, index = 0;
+    var push = (value, count) => {
+      accumulator = ((accumulator << count) | value) & 0x7FFF;
+      bits += count;
+      if (bits >= 8) {
+        bits -= 8;
+        result[index++] = (accumulator >> bits) & 0xFF;
+      }
+    };
+    var remaining = length % 7;
+    var count = Math.floor(length / 7) * 8 + remaining;
+    for (var i = 0; i < count; i++) {
+      push(this.bytes[this.pos++] & 0x7F, 7);
+    }
+    if (remaining) {
+      push(this.bytes[this.pos++] & ((1 << remaining) - 1), remaining);
+    }
+    return result;
+  };
+
+  SmileReader.prototype.readFloat = function() {
+    // 32 bits encoded in 5 bytes of 7 bits.
+    var value = 0;
+    for (var i = 0; i < 5; i++) {
+      value = value * 128 + this.bytes[this.pos++];
+    }
+    this.view.setUint32(0, value % 0x100000000);
+    return this.view.getFloat32(0);
+  };
+
+  SmileReader.prototype.readDouble = function() {
+    // 64 bits encoded in 10 bytes of 7 bits.
+    var value = BigInt(0);
+    for (var i = 0; i < 10; i++) {
+      value = (value << BigInt(7)) | BigInt(this.bytes[this.pos++]);
+    }
+    this.view.setBigUint64(0, BigInt.asUintN(64, value));
+    return this.view.getFloat64(0);
+  };
+
+  /**
+   * Creates the connection with the given observation WebSocket end-point. The connection is established when the
+   * first client registers, and closed when the last client disconnects.
+   */
+  return function(observationWebSocketURL) {
+    // The subscriptions sent to the server, by id. The listeners of all the clients that registered for the same events
+    // (same event type, parameters, conditions, projection and throttling options) share a subscription, so the server
+    // sends each event only once. Each subscription holds the server-side id once the server acknowledged it, the
+    // sequence number of the last event received and the listener ids of each client.
+    var subscriptions = {};
+
+    // The same subscriptions, by key (the event type serialized by getKey).
+    var subscriptionsByKey = {};
+
+    // The functions used to send messages to the clients, by client id.
+    var clients = {};
+
+    // The options of the connection (e.g. the batching of the events), sent to the server when the connection is
+    // established. The options are shared by all the clients, the last one to configure the connection wins.
+    var options = {};
+
+    var nextSubscriptionId = 0;
+
+    var webSocket;
+
+    // Whether the server compresses the events of the current connection, as acknowledged by the server (it can refuse
+    // to). The compressed events are sent as binary messages, whatever the encoding.
+    var compressed = false;
+
+    var isOpen = function() {
+      return webSocket && webSocket.readyState === WebSocket.OPEN;
+    };
+
+    // Log the messages exchanged with the server (see the debug option of configure).
+    var debug = false;
+
+    // We need to be able to reconnect the WebSocket in case the connection is closed (e.g. when the connection times
+    // out or when the server restarts). Only one reconnection is scheduled at a time.
+    var connectTimeout = null;
+    // The number of reconnection attempts since the server last acknowledged the subscriptions.
+    var attempts = 0;
+    var reconnect = function(retryAfter) {
+      if (connectTimeout !== null) {
+        return;
+      }
+      var delay = Math.random() * Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY * Math.pow(2, attempts++));
+      // The server can ask the client to wait before reconnecting (e.g. when the client was too slow).
+      delay += retryAfter || 0;
+      if (debug) {
+        console.log(`Reconnecting the observation WebSocket in ${Math.round(delay)}ms`);
+      }
+      connectTimeout = setTimeout(() => {
+        connectTimeout = null;
+        // The subscriptions of the previous WebSocket connection (session) are added again, all at once, when the new
+        // connection is established. The server sends them the events they missed in the meantime.
+        Object.values(subscriptions).forEach(subscription => delete subscription.serverId);
+        connect();
+      }, delay);
+    };
+
+    var getRetryAfter = function(reason) {
+      // The close reason can end with a hint, in seconds: "... (retry-after=10)".
+      var match = /retry-after=(\d+)/.exec(reason || '');
+      return match ? Number(match[1]) * 1000 : 0;
+    };
+
+    // The messages are handled in the order they are received, even though the compressed events are decompressed
+    // asynchronously. This is the promise of the messages being handled asynchronously, null if there are none.
+    var handling = null;
+
+    var track = function(promise) {
+      if (promise) {
+        var tracked = handling = promise.catch(logFailure).then(() => {
+          if (handling === tracked) {
+            handling = null;
+          }
+        });
+      }
+    };
+
+    var logFailure = function(error) {
+      console.error('Failed to handle the observation WebSocket message', error);
+    };
+
+    var connect = function() {
+      var url = observationWebSocketURL;
+      // The server tells whether it compresses the events in its first message.
+      compressed = false;
+      if (compressionSupported) {
+        url += (url.includes('?') ? '&' : '?') + 'compression=deflate';
+      }
+      var socket = webSocket = new WebSocket(url);
+
+      socket.onopen = function() {
+        if (debug) {
+          console.log('Observation WebSocket opened!');
+        }
+        if (Object.keys(options).length) {
+          sendOptions(options);
+        }
+        addSubscriptions(Object.values(subscriptions));
+      };
+
+      socket.onclose = function(event) {
+        if (debug) {
+          console.log(`Observation WebSocket closed: ${event.code} ${event.reason}`);
+        }
+        reconnect(getRetryAfter(event.reason));
+      };
+
+      // The close event always follows the error event, so the reconnection is scheduled when the WebSocket is closed.
+      socket.onerror = function() {
+        if (debug) {
+          console.log('Observation WebSocket error');
+        }
+      };
+
+      // Binary messages are used when the 'smile' encoding or the compression is enabled.
+      socket.binaryType = 'arraybuffer';
+
+      socket.onmessage = function(event) {
+        if (handling) {
+          // Wait for the previous messages to be decompressed.
+          track(handling.then(() => handleMessage(event)));
+        } else {
+          // The messages that are not compressed are handled right away, without allocating promises.
+          try {
+            track(handleMessage(event));
+          } catch (error) {
+            logFailure(error);
+          }
+        }
+      };
+
+      // The server pings the client periodically to keep the connection alive, the browser answering automatically.
+    };
+
+    var close = function() {
+      clearTimeout(connectTimeout);
+      connectTimeout = null;
+      attempts = 0;
+      if (webSocket) {
+        // Don't reconnect.
+        webSocket.onclose = webSocket.onerror = null;
+        webSocket.close();
+        webSocket = null;
+      }
+    };
+
+    var handleMessage = function(event) {
+      if (event.data instanceof ArrayBuffer) {
+        if (compressed) {
+          return handleCompressedEvents(event.data);
+        }
+        // A binary message holds a list of events, each event being made of two Smile documents: the event (with its
+        // source and data) and the listener data.
+        var documents = new SmileReader(event.data).readDocuments();
+        for (var i = 0; i + 1 < documents.length; i += 2) {
+          documents[i].eventData = documents[i + 1];
+          handleEvent(documents[i]);
+        }
+      } else {
+        if (debug) {
+          console.log(`Observation WebSocket message: ${event.data}`);
+        }
+        var message = JSON.parse(event.data);
+        if (message.type === 'event') {
+          handleEvent(message.data);
+        } else if (message.type === 'events') {
+          // A batch of events, in the order they happened on the server side.
+          message.data.forEach(handleEvent);
+        } else if (message.type === 'ack') {
+          handleAck(message.data);
+        } else if (message.type === 'reset') {
+          handleReset(message.data);
+        } else if (message.type === 'suppressed') {
+          handleSuppressed(message.data);
+        } else if (message.type === 'compression') {
+          compressed = message.data === 'deflate';
+        }
+      }
+    };
+
+    var handleCompressedEvents = function(buffer) {
+      // A compressed message holds a list of events, each event being made of the length of the compressed event, the
+      // length of the listener data, the compressed Smile document holding the event (with its source and data) and
+      // the Smile document holding the listener data.
+      var view = new DataView(buffer);
+      var events = [];
+      for (var pos = 0; pos + 8 <= buffer.byteLength;) {
+        var eventLength = view.getUint32(pos);
+        var listenerDataLength = view.getUint32(pos + 4);
+        pos += 8;
+        events.push({
+          event: decompress(buffer.slice(pos, pos + eventLength)),
+          eventData: new SmileReader(buffer.slice(pos + eventLength, pos + eventLength + listenerDataLength))
+            .readDocuments()[0]
+        });
+        pos += eventLength + listenerDataLength;
+      }
+      return Promise.all(events.map(entry => entry.event)).then(eventBuffers => {
+        eventBuffers.forEach((eventBuffer, i) => {
+          var eventMessage = new SmileReader(eventBuffer).readDocuments()[0];
+          eventMessage.eventData = events[i].eventData;
+          handleEvent(eventMessage);
+        });
+      });
+    };
+
+    /**
+     * Sends a message to the clients having listeners in the given subscriptions, one message per client with the ids
+     * of its listeners.
+     */
+    var notify = function(notifiedSubscriptions, message) {
+      var listenerIdsByClient = {};
+      notifiedSubscriptions.forEach(subscription => {
+        Object.entries(subscription.clients).forEach(([clientId, listenerIds]) => {
+          listenerIdsByClient[clientId] = (listenerIdsByClient[clientId] || []).concat(listenerIds);
+        });
+      });
+      Object.entries(listenerIdsByClient).forEach(([clientId, listenerIds]) => {
+        var reply = clients[clientId];
+        if (reply) {
+          reply(Object.assign({listenerIds}, message));
+        }
+      });
+    };
+
+    var handleEvent = function(eventMessage) {
+      // An event happened on the server side. Forward it to the clients listening to it.
+      var subscription = eventMessage && eventMessage.eventData && subscriptions[eventMessage.eventData.listenerId];
+      if (subscription) {
+        // Remember the last event received, to get the missed events when reconnecting.
+        if (!(subscription.seq >= eventMessage.seq)) {
+          subscription.seq = eventMessage.seq;
+        }
+        // The event is forwarded to each client, so there's no need to go through notify.
+        for (var clientId in subscription.clients) {
+          clients[clientId]({
+            type: 'event',
+            listenerIds: subscription.clients[clientId],
+            seq: eventMessage.seq,
+            event: eventMessage.event,
+            source: eventMessage.source,
+            data: eventMessage.data
+          });
+        }
+      }
+    };
+
+    var sendOptions = function(newOptions) {
+      webSocket.send(JSON.stringify({
+        type: 'configure',
+        data: newOptions
+      }));
+    };
+
+    var handleAck = function(acknowledgements) {
+      // The connection is working again.
+      attempts = 0;
+      // Subscriptions removed before being acknowledged have to be removed on the server side too.
+      var removedIds = [];
+      acknowledgements.forEach(acknowledgement => {
+        var subscription = subscriptions[acknowledgement.listenerId];
+        if (acknowledgement.error) {
+          console.error(`Failed to add the observation listener ${acknowledgement.listenerId}: ` +
+            acknowledgement.error);
+          if (subscription) {
+            // Don't add it again when reconnecting.
+            deleteSubscription(subscription);
+            notify([subscription], {type: 'error', error: acknowledgement.error});
+          }
+        } else if (subscription) {
+          subscription.serverId = acknowledgement.id;
+          // The events sent before the subscription was added are not missed events.
+          subscription.seq = Math.max(subscription.seq || 0, acknowledgement.seq);
+          notify([subscription], {type: 'ack', seq: subscription.seq});
+        } else {
+          removedIds.push(acknowledgement.id);
+        }
+      });
+      if (removedIds.length && isOpen()) {
+        removeListeners(removedIds);
+      }
+    };
+
+    var handleReset = function(subscriptionIds) {
+      // Some events were missed while the connection was closed and the server doesn't have them anymore.
+      notify(subscriptionIds.map(id => subscriptions[id]).filter(subscription => subscription), {type: 'reset'});
+    };
+
+    var handleSuppressed = function(suppressed) {
+      // Some events exceeded the rate limit of the subscription.
+      var subscription = subscriptions[suppressed.eventData.listenerId];
+      if (subscription) {
+        notify([subscription], {type: 'suppressed', count: suppressed.count});
+      }
+    };
+
+    var addSubscriptions = function(addedSubscriptions) {
+      if (addedSubscriptions.length) {
+        var resuming = addedSubscriptions.some(subscription => subscription.seq !== undefined);
+        webSocket.send(JSON.stringify({
+          type: resuming ? 'resume' : 'addListeners',
+          data: addedSubscriptions.map(subscription => {
+            var {projection, where, conflate, rateLimit, priority, ...eventType} = subscription.eventType;
+            var listenerId = subscription.id;
+            return {
+              listenerId,
+              eventType,
+              projection,
+              where,
+              conflate,
+              rateLimit,
+              priority,
+              // The listener data is kept by the clients.
+              eventData: {listenerId},
+              seq: subscription.seq
+            };
+          })
+        }));
+      }
+    };
+
+    var removeListeners = function(serverIds) {
+      webSocket.send(JSON.stringify({
+        type: 'removeListeners',
+        data: serverIds
+      }));
+    };
+
+    var deleteSubscription = function(subscription) {
+      delete subscriptions[subscription.id];
+      delete subscriptionsByKey[subscription.key];
+    };
+
+    var on = function(clientId, clientListeners) {
+      var addedSubscriptions = [];
+      clientListeners.forEach(listener => {
+        var key = getKey(listener.eventType);
+        var subscription = subscriptionsByKey[key];
+        if (!subscription) {
+          // The sequence number is given when the client registers its listeners again with a new connection (e.g.
+          // when the leader tab was closed), in order to get the events it missed in the meantime.
+          subscription = {id: nextSubscriptionId++, key, eventType: listener.eventType, seq: listener.seq, clients: {}};
+          subscriptions[subscription.id] = subscriptionsByKey[key] = subscription;
+          addedSubscriptions.push(subscription);
+        } else if (addedSubscriptions.includes(subscription) && listener.seq !== undefined) {
+          // Resume from the oldest event missed by the clients sharing the subscription.
+          subscription.seq = Math.min(subscription.seq === undefined ? listener.seq : subscription.seq, listener.seq);
+        }
+        var listenerIds = subscription.clients[clientId] = subscription.clients[clientId] || [];
+        // The clients register their listeners again when they don't know whether the connection received them.
+        if (!listenerIds.includes(listener.id)) {
+          listenerIds.push(listener.id);
+        }
+        if (subscription.serverId !== undefined) {
+          clients[clientId]({type: 'ack', listenerIds: [listener.id], seq: subscription.seq});
+        }
+      });
+      // The subscriptions are added when the connection is established, otherwise.
+      if (isOpen()) {
+        addSubscriptions(addedSubscriptions);
+      }
+    };
+
+    var off = function(clientId, listenerIds) {
+      var serverIds = [];
+      Object.values(subscriptions).filter(subscription => subscription.clients[clientId]).forEach(subscription => {
+        var remainingIds = listenerIds ? subscription.clients[clientId].filter(id => !listenerIds.includes(id)) : [];
+        if (remainingIds.length) {
+          subscription.clients[clientId] = remainingIds;
+        } else {
+          delete subscription.clients[clientId];
+        }
+        if (!Object.keys(subscription.clients).length) {
+          deleteSubscription(subscription);
+          // The subscriptions that are not acknowledged yet are removed on the server side when the acknowledgement
+          // arrives.
+          if (subscription.serverId !== undefined) {
+            serverIds.push(subscription.serverId);
+          }
+        }
+      });
+      if (serverIds.length && isOpen()) {
+        removeListeners(serverIds);
+      }
+    };
+
+    var configure = function(newOptions) {
+      // The debug option is not sent to the server.
+      var {debug: debugOption, ...serverOptions} = newOptions;
+      if (debugOption !== undefined) {
+        debug = !!debugOption;
+      }
+      Object.assign(options, serverOptions);
+      // The options are sent when the connection is established, otherwise.
+      if (isOpen() && Object.keys(serverOptions).length) {
+        sendOptions(serverOptions);
+      }
+    };
+
+    var disconnect = function(clientId) {
+      off(clientId);
+      delete clients[clientId];
+      if (!Object.keys(clients).length) {
+        close();
+      }
+    };
+
+    /**
+     * Handles a message sent by a client.
+     *
+     * @param {Object} message the message, holding the id of the client and its type: 'on' (with the listeners to add,
+     *          each one with its id, event type and the sequence number of the last event it received), 'off' (with
+     *          the ids of the listeners to remove), 'configure' (with the options to set) or 'disconnect'
+     * @param {Function} reply the function used to send messages to the client: 'ack', 'error', 'event', 'reset' and
+     *          'suppressed', each one with the ids of the client listeners it's about
+     */
+    var receive = function(message, reply) {
+      if (message.type === 'disconnect') {
+        disconnect(message.client);
+        return;
+      }
+      clients[message.client] = reply;
+      if (message.type === 'on') {
+        on(message.client, message.listeners);
+      } else if (message.type === 'off') {
+        off(message.client, message.listenerIds);
+      } else if (message.type === 'configure') {
+        configure(message.options);
+      }
+      // Connect to the observation end-point on the server side when the first client registers.
+      if (!webSocket) {
+        connect();
+      }
+    };
+
+    return {receive};
+  };
+}));
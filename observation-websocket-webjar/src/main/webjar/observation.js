@@ -20,94 +20,199 @@
 /*!
 ## Velocity code here.
 #set ($observationWebSocketURL = $services.websocket.url('observation'))
+#set ($observationWebJarId = 'org.xwiki.contrib.observation-websocket:observation-websocket-webjar')
+#set ($observationConnectionURL = $services.webjars.url($observationWebJarId, 'observation-connection.js'))
 #[[*/
 // Start JavaScript-only code.
-(function(observationWebSocketURL) {
+(function(observationWebSocketURL, observationConnectionURL) {
   "use strict";
 
-define(['jquery'], function($) {
-  // The map of registered event listeners.
+define([], function() {
+  // The map of registered event listeners, by listener id. Each entry holds the sequence number of the last event
+  // received by the listener, used to resume when the listeners are registered with a new connection.
   var listeners = {};
 
-  // The promise used to access the WebSocket after the connection is established.
-  var webSocketPromise = $.Deferred();
+  // The functions to call when some events were missed while the connection was closed.
+  var resetCallbacks = [];
 
-  // We need to be able to reconnect the WebSocket in case the connection is closed (e.g. when the connection times out
-  // or when the server restarts).
-  var connectTimeout;
-  var reconnect = function() {
-    // We cannot change the promise state once it was resolved / rejected so we need to create another one.
-    if (webSocketPromise.state() !== 'pending') {
-      webSocketPromise = $.Deferred();
+  // The functions to call when some events were not sent because they exceeded the rate limit of their listener.
+  var suppressedCallbacks = [];
+
+  // The options set by this tab (e.g. the batching of the events), sent again when the connection changes.
+  var options = {};
+
+  // The WebSocket connection is shared by the browser tabs (see observation-connection.js). Each tab is a client of
+  // the connection, identified by a random id.
+  var clientId = Date.now().toString(36) + Math.random().toString(36).substring(2);
+
+  var receive = function(message) {
+    if (message.type === 'event') {
+      handleEvent(message);
+    } else if (message.type === 'ack') {
+      handleAck(message);
+    } else if (message.type === 'error') {
+      handleError(message);
+    } else if (message.type === 'reset') {
+      handleReset(message);
+    } else if (message.type === 'suppressed') {
+      handleSuppressed(message);
     }
+  };
 
-    // Wait 5 seconds before trying to reconnect.
-    clearTimeout(connectTimeout);
-    connectTimeout = setTimeout(() => {
-      connect();
+  var handleEvent = function(eventMessage) {
+    // An event happened on the server side. Call the event listeners on the client side.
+    eventMessage.listenerIds.forEach(listenerId => {
+      var entry = listeners[listenerId];
+      // Ignore the events already received through a previous connection.
+      if (entry && typeof entry.listener === 'function' && !(entry.seq >= eventMessage.seq)) {
+        // Remember the last event received, to get the missed events when the connection changes.
+        entry.seq = eventMessage.seq;
+        entry.listener(eventMessage.event, eventMessage.source, eventMessage.data, entry.data);
+      }
+    });
+  };
 
-      // Re-add the event listeners that were registered in the previous WebSocket connection (session).
-      var listenersArray = Object.values(listeners);
-      listeners = {};
-      listenersArray.forEach(listener => on(listener.eventType, listener.listener, listener.data));
-    }, 5000);
+  var handleAck = function(acknowledgement) {
+    acknowledgement.listenerIds.forEach(listenerId => {
+      var entry = listeners[listenerId];
+      if (entry) {
+        // The events sent before the listener was added are not missed events.
+        entry.seq = Math.max(entry.seq || 0, acknowledgement.seq);
+      }
+    });
   };
 
-  var connect = function() {
-    var webSocket = new WebSocket(observationWebSocketURL);
+  var handleError = function(error) {
+    error.listenerIds.forEach(listenerId => {
+      console.error(`Failed to add the observation listener ${listenerId}: ${error.error}`);
+      // Don't add it again when the connection changes.
+      delete listeners[listenerId];
+    });
+  };
 
-    webSocket.onopen = function() {
-      console.log('Observation WebSocket opened!');
-      // We can now use the WebSocket to register event listeners.
-      webSocketPromise.resolve(webSocket);
-    };
+  var getListeners = function(listenerIds) {
+    return listenerIds.map(listenerId => listeners[listenerId]).filter(entry => entry)
+      .map(entry => ({eventType: entry.eventType, listener: entry.listener, data: entry.data}));
+  };
 
-    webSocket.onclose = function(event) {
-      console.log(`Observation WebSocket closed: ${event.code} ${event.reason}`);
-      reconnect();
-    };
+  var handleReset = function(reset) {
+    // Some events were missed while the connection was closed and the server doesn't have them anymore.
+    var resetListeners = getListeners(reset.listenerIds);
+    if (resetListeners.length) {
+      resetCallbacks.forEach(callback => callback(resetListeners));
+    }
+  };
 
-    webSocket.onerror = function(event) {
-      console.log(`Observation WebSocket error: ${event.code} ${event.reason}`);
-      reconnect();
-    };
+  var handleSuppressed = function(suppressed) {
+    // Some events exceeded the rate limit of the listener.
+    getListeners(suppressed.listenerIds).forEach(suppressedListener => {
+      suppressedCallbacks.forEach(callback => callback(suppressedListener, suppressed.count));
+    });
+  };
+
+  var loadConnection = function() {
+    return new Promise((resolve, reject) => {
+      require([observationConnectionURL], createConnection => resolve(createConnection(observationWebSocketURL)),
+        reject);
+    });
+  };
+
+  var openSharedWorkerChannel = function() {
+    // The tabs using the same worker script and name share the worker, and thus the connection.
+    var worker = new SharedWorker(observationConnectionURL, {name: 'xwiki-observation'});
+    worker.port.onmessage = event => receive(event.data);
+    return message => worker.port.postMessage(message);
+  };
 
-    webSocket.onmessage = function(event) {
-      console.log(`Observation WebSocket message: ${event.data}`);
-      var message = JSON.parse(event.data);
-      if (message.type === 'event') {
-        // An event happened on the server side. Call the event listener on the client side.
-        /* jshint ignore:start */
-        // JSHint doesn't like pptional chaining (https://github.com/jshint/jshint/issues/3448)
-        var listener = listeners[message.data?.eventData?.listenerId]?.listener;
-        /* jshint ignore:end */
-        if (typeof listener === 'function') {
-          listener(message.data.event, message.data.source, message.data.data, message.data.eventData.data);
-        }
+  var openBroadcastChannel = function() {
+    var name = `xwiki-observation:${observationWebSocketURL}`;
+    var channel = new BroadcastChannel(name);
+    // The connection, when this tab is the leader.
+    var connection;
+    channel.onmessage = function(event) {
+      var message = event.data;
+      if (message.to === clientId) {
+        // A message sent by the connection of the leader tab.
+        receive(message);
+      } else if (message.type === 'leader') {
+        // The previous leader tab was closed (or there was none): register with the connection of the new leader.
+        register();
+      } else if (connection && message.client) {
+        // This tab is the leader: forward the messages of the other tabs to the connection.
+        connection.receive(message, reply => channel.postMessage(Object.assign({to: message.client}, reply)));
       }
     };
+    // The first tab to request the lock is the leader. The lock is released when the tab is closed and granted to the
+    // next tab waiting for it, which becomes the new leader.
+    navigator.locks.request(name, () => loadConnection().then(leaderConnection => {
+      connection = leaderConnection;
+      channel.postMessage({type: 'leader'});
+      register();
+      // Hold the lock as long as the tab is open.
+      return new Promise(() => {});
+    }));
+    // The messages sent before a leader is elected are lost, but the listeners are registered again when it announces
+    // itself.
+    return message => connection ? connection.receive(message, receive) : channel.postMessage(message);
+  };
+
+  var openLocalChannel = function() {
+    var connectionPromise = loadConnection();
+    return message => connectionPromise.then(connection => connection.receive(message, receive));
+  };
+
+  var openChannel = function() {
+    if (typeof SharedWorker === 'function') {
+      try {
+        return openSharedWorkerChannel();
+      } catch (e) {
+        console.warn(`Failed to start the observation worker: ${e}`);
+      }
+    }
+    // Elect a leader tab to hold the connection when the browser doesn't support shared workers (e.g. Chrome on
+    // Android). Web Locks are needed to elect the leader reliably.
+    if (typeof BroadcastChannel === 'function' && navigator.locks) {
+      return openBroadcastChannel();
+    }
+    // Each tab has its own connection, otherwise.
+    return openLocalChannel();
+  };
+
+  // The function used to send messages to the connection.
+  var post;
 
-    // TODO: We need to implement a ping-pong strategy in order to keep the WebSocket connection alive.
+  var send = function(message) {
+    post(Object.assign({url: observationWebSocketURL, client: clientId}, message));
+  };
+
+  var register = function() {
+    if (Object.keys(options).length) {
+      send({type: 'configure', options});
+    }
+    // The sequence numbers allow the new connection to get the events missed in the meantime.
+    var registeredListeners = Object.entries(listeners).map(([listenerId, entry]) => ({
+      id: Number(listenerId),
+      eventType: entry.eventType,
+      seq: entry.seq
+    }));
+    if (registeredListeners.length) {
+      send({type: 'on', listeners: registeredListeners});
+    }
   };
 
   // We need to know which listener function to call when an event message is received so we need to associate a unique
   // id (in the scope of this JavaScript module) to the listener function. We do this using a counter that always
-  // increments because in the future we may want to also remove event listeners.
+  // increments so that the events sent to a removed listener are ignored.
   var nextListenerId = 0;
 
-  var registerEventListener = function(webSocket, eventType, listener, data) {
-    if (typeof eventType === 'string') {
-      eventType = {id: eventType};
-    }
-    eventType.params = eventType.params || {};
-    var eventData = {data, listenerId: nextListenerId++};
-    // Add the event listener.
-    var message = {
-      type: 'addListener',
-      data: {eventData, eventType}
-    };
-    listeners[eventData.listenerId] = {eventType, listener, data};
-    webSocket.send(JSON.stringify(message));
+  var getEventTypes = function(eventTypes) {
+    return (Array.isArray(eventTypes) ? eventTypes : [eventTypes]).map(eventType => {
+      if (typeof eventType === 'string') {
+        eventType = {id: eventType};
+      }
+      eventType.params = eventType.params || {};
+      return eventType;
+    });
   };
 
   /**
@@ -115,9 +220,18 @@ define(['jquery'], function($) {
    *
    * @param {Array|Object|String} eventTypes the list of server-side events to listen to; each event is specified either
    *          using the full name of the Java event class (e.g. 'org.xwiki.refactoring.event.DocumentRenamedEvent') or
-   *          using an object with this format: {id: '<eventClassName>', params: {...}}; the event parameters can be
-   *          used to filter the events and are passed to the event constructor on the server-side so their name needs
-   *          to match the name of the event constructor parameters
+   *          using an object with this format: {id: '<eventClassName>', params: {...}, where: [...], projection: {...}};
+   *          the event parameters can be used to filter the events and are passed to the event constructor on the
+   *          server-side so their name needs to match the name of the event constructor parameters; the optional where
+   *          conditions filter the events on their source and data, e.g. {property: 'source.documentReference', space:
+   *          'xwiki:Sandbox'} (the operators are equals, in, prefix, wiki and space); the optional projection limits the
+   *          parts of the event that are sent: {source: false, data: false, paths: ['/source/documentReference']}
+   *          (the source and data can be excluded and each part can be limited to a list of JSON pointers); the
+   *          optional conflate option keeps only the latest event of each key during a window, e.g. {key:
+   *          'source.documentReference', window: 1000} (the first event of a key is sent right away); the optional
+   *          rateLimit option limits the number of events sent per period, e.g. {maxEvents: 10, period: 1000} (see
+   *          onSuppressed); the optional priority: 'high' option makes the server send the events before the other
+   *          events waiting to be sent (for rare but important events, which shouldn't wait behind a burst of updates)
    * @param {Function} listener the listener function to call when the specified event is triggered on the server-side;
    *          the listener receives 4 arguments: event, source, sourceData and eventData; source holds information about
    *          the code that triggered the event; event data is the data you passed when registering the event listener
@@ -125,19 +239,97 @@ define(['jquery'], function($) {
    *          event is triggered
    */
   var on = function(eventTypes, listener, data) {
-    webSocketPromise.done(function(webSocket) {
-      if (!$.isArray(eventTypes)) {
-        eventTypes = [eventTypes];
+    var addedListeners = getEventTypes(eventTypes).map(eventType => {
+      var listenerId = nextListenerId++;
+      listeners[listenerId] = {eventType, listener, data};
+      return {id: listenerId, eventType};
+    });
+    // The listener data is kept by this tab.
+    send({type: 'on', listeners: addedListeners});
+  };
+
+  /**
+   * Unregisters an event listener.
+   *
+   * @param {Array|Object|String} eventTypes the server-side events to stop listening to (optional, all the events the
+   *          listener was registered for by default)
+   * @param {Function} listener the listener function that was passed when registering the event listener
+   */
+  var off = function(eventTypes, listener) {
+    if (typeof eventTypes === 'function') {
+      listener = eventTypes;
+      eventTypes = null;
+    }
+    var eventIds = eventTypes && getEventTypes(eventTypes).map(eventType => eventType.id);
+    var listenerIds = [];
+    Object.entries(listeners).forEach(([listenerId, entry]) => {
+      if (entry.listener === listener && (!eventIds || eventIds.includes(entry.eventType.id))) {
+        delete listeners[listenerId];
+        listenerIds.push(Number(listenerId));
       }
-      eventTypes.forEach(eventType => registerEventListener(webSocket, eventType, listener, data));
     });
+    // The connection removes the listeners on the server side when no other tab needs them.
+    if (listenerIds.length) {
+      send({type: 'off', listenerIds});
+    }
   };
 
-  // Connect to the observation end-point on the server side in order to be able to register event listeners.
-  connect();
+  /**
+   * Configures the connection with the server. The options are kept and sent again when reconnecting. The connection
+   * is shared by the browser tabs, so are its options: the last tab to configure the connection wins.
+   *
+   * @param {Object} newOptions the options to set; the supported options are:
+   *          <ul>
+   *            <li>batch: {delay, maxEvents, maxSize} to receive the events in batches, the server waiting at most
+   *              'delay' milliseconds for more events before sending a batch (the maximum number of events and the
+   *              maximum size of a batch are optional); null to receive each event as soon as possible</li>
+   *            <li>encoding: 'smile' to receive the events as binary messages (more compact and faster to parse), 'json'
+   *              (the default) to receive them as JSON text messages</li>
+   *            <li>debug: true to log the messages exchanged with the server and the reconnection attempts (in the
+   *              console of the shared worker, when the connection is held by a shared worker)</li>
+   *          </ul>
+   */
+  var configure = function(newOptions) {
+    Object.assign(options, newOptions);
+    send({type: 'configure', options: newOptions});
+  };
+
+  /**
+   * Registers a function to call when some events were missed while the connection with the server was closed and
+   * cannot be replayed (e.g. because the server restarted or because the connection was closed for too long). This is
+   * the right place to reload the state that is normally kept up to date by the event listeners.
+   *
+   * @param {Function} callback the function to call; it receives the list of affected listeners, each one with the
+   *          eventType, listener and data that were passed when registering the event listener
+   */
+  var onReset = function(callback) {
+    resetCallbacks.push(callback);
+  };
+
+  /**
+   * Registers a function to call when some events were not sent to a listener because they exceeded its rate limit.
+   *
+   * @param {Function} callback the function to call; it receives the affected listener (with the eventType, listener
+   *          and data that were passed when registering the event listener) and the number of events that were not sent
+   */
+  var onSuppressed = function(callback) {
+    suppressedCallbacks.push(callback);
+  };
+
+  // Connect to the observation end-point on the server side (through the connection shared by the browser tabs) in
+  // order to be able to register event listeners.
+  post = openChannel();
+
+  // Release the listeners of this tab when it's closed, and register them again if it's restored from the cache.
+  window.addEventListener('pagehide', () => send({type: 'disconnect'}));
+  window.addEventListener('pageshow', event => {
+    if (event.persisted) {
+      register();
+    }
+  });
 
-  return {on};
+  return {on, off, configure, onReset, onSuppressed};
 });
 
 // End JavaScript-only code.
-}).apply(']]#', $jsontool.serialize([$observationWebSocketURL]));
+}).apply(']]#', $jsontool.serialize([$observationWebSocketURL, $observationConnectionURL]));